@@ -0,0 +1,5 @@
+#!/bin/bash
+set -e
+# The benchmarks use the driver from the local repository.
+mvn -f ../driver/pom.xml install -DskipTests
+mvn package
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.qflock.jdbc.QflockResultSet;
+import com.github.qflock.jdbc.api.QFResultSet;
+
+/**
+ * Results returned as parquet partitions, which the result set writes
+ * to its temp directory for Spark to read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParquetResultBenchmark {
+
+    @Param({"4", "32"})
+    public int files;
+
+    @Param({"1048576", "8388608"})
+    public int fileBytes;
+
+    private QFResultSet page;
+    private QFResultSet copy;
+    private File tempDir;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        page = QflockPayloads.parquetPage(files, fileBytes);
+        tempDir = Files.createTempDirectory("qflock-bench").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        copy = page.deepCopy();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        File[] written = tempDir.listFiles();
+        if (written != null) {
+            for (File f : written) {
+                f.delete();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public QflockResultSet writePartitions() throws Exception {
+        QflockResultSet results = new QflockResultSet(copy, tempDir.getPath());
+        results.close();
+        return results;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Factory;
+
+import com.github.qflock.jdbc.QflockCodec;
+import com.github.qflock.jdbc.api.QFResultSet;
+import com.github.qflock.jdbc.api.QFResultSetMetaData;
+import com.github.qflock.jdbc.api.QFResultSetMetaDataPart;
+
+/**
+ * Builds synthetic QFResultSet pages laid out the way the server sends them,
+ * with a TPC-DS like mix of columns: two bigint keys and counts, two double
+ * prices, a low cardinality state code and a free text description.
+ */
+final class QflockPayloads {
+
+    static final int COLUMNS = 6;
+    private static final String[] STATES = {"AL", "CA", "GA", "IL", "MI", "NY", "OH",
+                                            "PA", "TN", "TX"};
+
+    private QflockPayloads() {
+    }
+
+    /**
+     * @param rows rows of the page
+     * @param codec none, zstd or lz4
+     * @param dictionary true to dictionary encode the state column
+     */
+    static QFResultSet page(int rows, String codec, boolean dictionary) {
+        Random random = new Random(42);
+        List<QFResultSetMetaDataPart> parts = new ArrayList<QFResultSetMetaDataPart>();
+        List<byte[]> data = new ArrayList<byte[]>();
+        List<Integer> typeBytes = new ArrayList<Integer>();
+        List<List<Integer>> strLens = new ArrayList<List<Integer>>();
+        List<Integer> encodings = new ArrayList<Integer>();
+        List<ByteBuffer> dictionaries = new ArrayList<ByteBuffer>();
+
+        ByteBuffer keys = ByteBuffer.allocate(rows * 8);
+        ByteBuffer counts = ByteBuffer.allocate(rows * 8);
+        ByteBuffer prices = ByteBuffer.allocate(rows * 8);
+        ByteBuffer profits = ByteBuffer.allocate(rows * 8);
+        for (int i = 0; i < rows; i++) {
+            keys.putLong(random.nextInt(300000));
+            counts.putLong(1 + random.nextInt(100));
+            prices.putDouble(Math.round(random.nextDouble() * 20000) / 100.0);
+            profits.putDouble(Math.round((random.nextDouble() - 0.5) * 100000) / 100.0);
+        }
+        addFixed(parts, data, typeBytes, strLens, encodings, dictionaries,
+                 "ss_item_sk", Types.BIGINT, keys.array());
+        addFixed(parts, data, typeBytes, strLens, encodings, dictionaries,
+                 "ss_quantity", Types.BIGINT, counts.array());
+        addFixed(parts, data, typeBytes, strLens, encodings, dictionaries,
+                 "ss_sales_price", Types.DOUBLE, prices.array());
+        addFixed(parts, data, typeBytes, strLens, encodings, dictionaries,
+                 "ss_net_profit", Types.DOUBLE, profits.array());
+
+        String[] states = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            states[i] = STATES[random.nextInt(STATES.length)];
+        }
+        parts.add(part("s_state", Types.VARCHAR));
+        if (dictionary) {
+            byte[] codes = new byte[rows];
+            for (int i = 0; i < rows; i++) {
+                codes[i] = (byte) Arrays.asList(STATES).indexOf(states[i]);
+            }
+            List<Integer> lengths = new ArrayList<Integer>();
+            StringBuilder values = new StringBuilder();
+            for (String state : STATES) {
+                lengths.add(state.length());
+                values.append(state);
+            }
+            data.add(codes);
+            typeBytes.add(1);
+            strLens.add(lengths);
+            encodings.add(1);
+            dictionaries.add(ByteBuffer.wrap(values.toString().getBytes(StandardCharsets.UTF_8)));
+        } else {
+            addStrings(data, typeBytes, strLens, encodings, dictionaries, states);
+        }
+
+        String[] descriptions = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 3 + random.nextInt(6);
+            for (int w = 0; w < words; w++) {
+                text.append(w == 0 ? "" : " ").append(Long.toString(random.nextLong() >>> 40, 36));
+            }
+            descriptions[i] = text.toString();
+        }
+        parts.add(part("i_item_desc", Types.VARCHAR));
+        addStrings(data, typeBytes, strLens, encodings, dictionaries, descriptions);
+
+        QFResultSet page = new QFResultSet();
+        page.id = 0;
+        page.metadata = new QFResultSetMetaData(parts);
+        page.numRows = rows;
+        page.columnTypeBytes = typeBytes;
+        page.strLenVector = strLens;
+        page.columnEncodings = encodings;
+        page.dictionaries = dictionaries;
+        page.parquet = new ArrayList<ByteBuffer>();
+        page.columnBytes = new ArrayList<Integer>();
+        page.compressedColumnBytes = new ArrayList<Integer>();
+        page.binaryRows = new ArrayList<ByteBuffer>();
+        page.compressedRows = new ArrayList<ByteBuffer>();
+        page.columnCodecs = new ArrayList<Integer>();
+        for (byte[] column : data) {
+            page.columnBytes.add(column.length);
+            byte[] sent;
+            if (codec.equals("zstd")) {
+                sent = Zstd.compress(column, 1);
+                page.columnCodecs.add(QflockCodec.ZSTD);
+            } else if (codec.equals("lz4")) {
+                sent = LZ4Factory.fastestInstance().fastCompressor().compress(column);
+                page.columnCodecs.add(QflockCodec.LZ4);
+            } else {
+                sent = column;
+            }
+            page.compressedColumnBytes.add(sent.length);
+            if (codec.equals("none")) {
+                page.binaryRows.add(ByteBuffer.wrap(sent));
+            } else {
+                page.compressedRows.add(ByteBuffer.wrap(sent));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns a page whose result is a set of parquet files of the given size.
+     */
+    static QFResultSet parquetPage(int files, int fileBytes) {
+        Random random = new Random(42);
+        QFResultSet page = new QFResultSet();
+        page.metadata = new QFResultSetMetaData(new ArrayList<QFResultSetMetaDataPart>());
+        page.parquet = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < files; i++) {
+            byte[] file = new byte[fileBytes];
+            random.nextBytes(file);
+            page.parquet.add(ByteBuffer.wrap(file));
+        }
+        return page;
+    }
+
+    private static QFResultSetMetaDataPart part(String name, int type) {
+        QFResultSetMetaDataPart part = new QFResultSetMetaDataPart();
+        part.columnName = name;
+        part.columnLabel = name;
+        part.columnType = type;
+        return part;
+    }
+
+    private static void addFixed(List<QFResultSetMetaDataPart> parts, List<byte[]> data,
+                                 List<Integer> typeBytes, List<List<Integer>> strLens,
+                                 List<Integer> encodings, List<ByteBuffer> dictionaries,
+                                 String name, int type, byte[] column) {
+        parts.add(part(name, type));
+        data.add(column);
+        typeBytes.add(8);
+        strLens.add(new ArrayList<Integer>());
+        encodings.add(0);
+        dictionaries.add(ByteBuffer.allocate(0));
+    }
+
+    private static void addStrings(List<byte[]> data, List<Integer> typeBytes,
+                                   List<List<Integer>> strLens, List<Integer> encodings,
+                                   List<ByteBuffer> dictionaries, String[] values) {
+        List<Integer> lengths = new ArrayList<Integer>(values.length);
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            lengths.add(value.length());
+            joined.append(value);
+        }
+        data.add(joined.toString().getBytes(StandardCharsets.UTF_8));
+        typeBytes.add(0);
+        strLens.add(lengths);
+        encodings.add(0);
+        dictionaries.add(ByteBuffer.allocate(0));
+    }
+}
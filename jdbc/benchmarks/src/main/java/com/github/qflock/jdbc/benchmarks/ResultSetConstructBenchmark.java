@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc.benchmarks;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.qflock.jdbc.QflockResultSet;
+import com.github.qflock.jdbc.api.QFResultSet;
+
+/**
+ * Time to turn a received page into a QflockResultSet and decode all of
+ * its columns, with and without column compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultSetConstructBenchmark {
+
+    @Param({"none", "zstd", "lz4"})
+    public String codec;
+
+    @Param({"true", "false"})
+    public boolean dictionary;
+
+    @Param({"100000"})
+    public int rows;
+
+    private QFResultSet page;
+    private QFResultSet copy;
+    private String tempDir;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        page = QflockPayloads.page(rows, codec, dictionary);
+        tempDir = Files.createTempDirectory("qflock-bench").toString();
+    }
+
+    // The result set releases its column buffers on close, so each
+    // invocation gets its own copy of the page.
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        copy = page.deepCopy();
+    }
+
+    @Benchmark
+    public QflockResultSet construct() throws Exception {
+        QflockResultSet results = new QflockResultSet(copy, tempDir);
+        results.decompressColumns();
+        results.close();
+        return results;
+    }
+}
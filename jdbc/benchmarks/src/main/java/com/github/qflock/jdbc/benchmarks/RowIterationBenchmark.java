@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc.benchmarks;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.qflock.jdbc.QflockResultSet;
+import com.github.qflock.jdbc.api.QFResultSet;
+
+/**
+ * Row at a time access through getLong, getDouble and getString, the path
+ * taken by the Spark row readers.  The columns are decoded in setup so
+ * only the accessors are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowIterationBenchmark {
+
+    @Param({"true", "false"})
+    public boolean dictionary;
+
+    @Param({"100000"})
+    public int rows;
+
+    private QFResultSet page;
+    private String tempDir;
+    private QflockResultSet results;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        page = QflockPayloads.page(rows, "none", dictionary);
+        tempDir = Files.createTempDirectory("qflock-bench").toString();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws Exception {
+        results = new QflockResultSet(page.deepCopy(), tempDir);
+        results.decompressColumns();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws Exception {
+        results.close();
+    }
+
+    @Benchmark
+    public void numeric(Blackhole bh) throws Exception {
+        while (results.next()) {
+            bh.consume(results.getLong(1));
+            bh.consume(results.getLong(2));
+            bh.consume(results.getDouble(3));
+            bh.consume(results.getDouble(4));
+        }
+    }
+
+    @Benchmark
+    public void strings(Blackhole bh) throws Exception {
+        while (results.next()) {
+            bh.consume(results.getString(5));
+            bh.consume(results.getString(6));
+        }
+    }
+
+    @Benchmark
+    public void allColumns(Blackhole bh) throws Exception {
+        while (results.next()) {
+            bh.consume(results.getLong(1));
+            bh.consume(results.getLong(2));
+            bh.consume(results.getDouble(3));
+            bh.consume(results.getDouble(4));
+            bh.consume(results.getString(5));
+            bh.consume(results.getString(6));
+        }
+    }
+}
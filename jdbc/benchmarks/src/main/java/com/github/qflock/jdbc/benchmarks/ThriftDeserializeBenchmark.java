@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.qflock.jdbc.QflockTransportOptions;
+import com.github.qflock.jdbc.api.QFResultSet;
+
+/**
+ * Decoding a large QFResultSet message from its wire form, for each of
+ * the protocols and transports the driver can be configured with.
+ * The message is read through the driver's own protocols, which read
+ * large binary fields into pooled buffers, and the buffers are handed
+ * back after each message as the result set does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThriftDeserializeBenchmark {
+
+    @Param({"binary", "compact"})
+    public String protocol;
+
+    @Param({"buffered", "framed"})
+    public String transport;
+
+    @Param({"none", "zstd"})
+    public String codec;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    private byte[] message;
+    private TProtocolFactory factory;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        TProtocolFactory writeFactory = protocol.equals("compact")
+                ? new TCompactProtocol.Factory()
+                : new TBinaryProtocol.Factory();
+        byte[] body = new TSerializer(writeFactory)
+                .serialize(QflockPayloads.page(rows, codec, true));
+        if (transport.equals("framed")) {
+            message = ByteBuffer.allocate(4 + body.length).putInt(body.length).put(body).array();
+        } else {
+            message = body;
+        }
+        Properties info = new Properties();
+        info.setProperty(QflockTransportOptions.PROTOCOL, protocol);
+        info.setProperty(QflockTransportOptions.TRANSPORT, transport);
+        factory = new QflockTransportOptions(info).getProtocolFactory();
+    }
+
+    @Benchmark
+    public void deserialize(Blackhole blackhole) throws Exception {
+        // The driver reads the socket through a 64KB buffered stream.
+        TTransport in = new TIOStreamTransport(
+                new BufferedInputStream(new ByteArrayInputStream(message), 64 * 1024));
+        if (transport.equals("framed")) {
+            in = new TFramedTransport(in, Integer.MAX_VALUE);
+        }
+        QFResultSet page = new QFResultSet();
+        page.read(factory.getProtocol(in));
+        blackhole.consume(page);
+        release(page.compressedRows);
+        release(page.binaryRows);
+        release(page.dictionaries);
+    }
+
+    private static void release(List<ByteBuffer> buffers) {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                QflockTransportOptions.releaseBinary(buffer);
+            }
+        }
+    }
+}
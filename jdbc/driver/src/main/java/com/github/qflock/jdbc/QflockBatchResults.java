@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.qflock.jdbc.api.QFBatchResult;
+import com.github.qflock.jdbc.api.QFQueryRange;
+import com.github.qflock.jdbc.api.QFResultSet;
+import com.github.qflock.jdbc.api.QFSQLException;
+import com.github.qflock.jdbc.api.QflockJdbcService.Client;
+
+/**
+ * The results of a batch of queries, returned in the order the server
+ * completes them.  Each call to the server returns all the results which
+ * completed since the previous call, so a batch of N queries needs at most
+ * N round trips and usually far fewer.
+ * Use QflockResultSet.getBatchIndex() to match a result to its query.
+ */
+public class QflockBatchResults {
+
+    private QflockConnection connection;
+    private int fetchSize;
+    private int batchId;
+    private boolean serverDone;
+    private ArrayDeque<QFResultSet> ready = new ArrayDeque<QFResultSet>();
+    // Time the batch was submitted, and the time each ready result arrived.
+    private long startTime;
+    private ArrayDeque<Long> arrivals = new ArrayDeque<Long>();
+    // Rows of each result returned by next(), by batch index.
+    private int[] rowCounts;
+
+    /**
+     * Submits the batch to the server and waits for the first result.
+     */
+    static QflockBatchResults execute(QflockConnection connection,
+                                      List<QFQueryRange> ranges,
+                                      int fetchSize) throws SQLException {
+        if (ranges.isEmpty()) {
+            throw new SQLException("batch is empty");
+        }
+        long startTime = System.nanoTime();
+        Client client = null;
+        try {
+            client = connection.lockClient();
+            QFBatchResult result = client.connection_executeBatch(connection.connection,
+                    new ArrayList<QFQueryRange>(ranges), fetchSize);
+            return new QflockBatchResults(connection, fetchSize, startTime, ranges.size(),
+                                          result);
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            connection.unlockClient(client);
+        }
+    }
+
+    private QflockBatchResults(QflockConnection connection, int fetchSize,
+                               long startTime, int size, QFBatchResult result) {
+        this.connection = connection;
+        this.fetchSize = fetchSize;
+        this.startTime = startTime;
+        this.rowCounts = new int[size];
+        Arrays.fill(this.rowCounts, -1);
+        this.batchId = result.batchId;
+        add(result);
+    }
+
+    private void add(QFBatchResult result) {
+        this.ready.addAll(result.results);
+        long arrival = System.nanoTime();
+        for (int i = 0; i < result.results.size(); i++) {
+            this.arrivals.add(arrival);
+        }
+        this.serverDone = !result.hasMore;
+    }
+
+    public boolean hasNext() {
+        return !this.ready.isEmpty() || !this.serverDone;
+    }
+
+    /**
+     * Returns the next completed result, waiting for the server if none is ready.
+     */
+    public QflockResultSet next() throws SQLException {
+        if (this.ready.isEmpty()) {
+            if (this.serverDone) {
+                throw new SQLException("batch " + batchId + " has no more results");
+            }
+            fetch();
+        }
+        QFResultSet resultset = this.ready.poll();
+        // Each result counts the time from submitting the batch until it arrived.
+        QflockStatementMetrics metrics = QflockStatementMetrics.forConnection(this.connection);
+        metrics.addExecuteNanos(this.arrivals.poll() - this.startTime);
+        QflockResultSetCursor cursor = resultset.hasMore ?
+                new QflockResultSetCursor(this.connection, resultset.id, fetchSize) : null;
+        QflockResultSet result = new QflockResultSet(resultset,
+                this.connection.getClientInfo("tempDir"), cursor, metrics);
+        if (result.getBatchIndex() >= 0 && result.getBatchIndex() < this.rowCounts.length) {
+            this.rowCounts[result.getBatchIndex()] = result.getNumRows();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of rows of each result returned by next() so far
+     *         (of the first page with a fetch size), in the order the queries
+     *         were added, or -1 for results not returned yet.
+     */
+    public int[] getRowCounts() {
+        return this.rowCounts.clone();
+    }
+
+    /**
+     * Waits for all the results, for Statement.executeBatch().
+     * If a query fails the results read so far are closed and a
+     * BatchUpdateException reports which queries completed.
+     *
+     * @return the results in the order the queries were added.
+     */
+    QflockResultSet[] awaitAll() throws SQLException {
+        QflockResultSet[] ordered = new QflockResultSet[this.rowCounts.length];
+        try {
+            while (hasNext()) {
+                QflockResultSet resultSet = next();
+                ordered[resultSet.getBatchIndex()] = resultSet;
+            }
+        } catch (SQLException e) {
+            int[] counts = new int[ordered.length];
+            for (int i = 0; i < ordered.length; i++) {
+                counts[i] = ordered[i] != null ? Statement.SUCCESS_NO_INFO
+                                               : Statement.EXECUTE_FAILED;
+                if (ordered[i] != null) {
+                    ordered[i].close();
+                }
+            }
+            try {
+                close();
+            } catch (SQLException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(),
+                                           counts, e);
+        }
+        return ordered;
+    }
+
+    private void fetch() throws SQLException {
+        Client client = null;
+        try {
+            client = this.connection.lockClient();
+            add(client.connection_fetchBatch(batchId));
+        } catch (QFSQLException e) {
+            this.serverDone = true;
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.connection.unlockClient(client);
+        }
+    }
+
+    /**
+     * Drops the results which were not read yet.
+     */
+    public void close() throws SQLException {
+        if (this.serverDone && this.ready.isEmpty()) {
+            return;
+        }
+        for (QFResultSet resultset : this.ready) {
+            if (resultset.hasMore) {
+                new QflockResultSetCursor(this.connection, resultset.id, fetchSize).close();
+            }
+        }
+        this.ready.clear();
+        this.arrivals.clear();
+        if (this.serverDone) {
+            return;
+        }
+        this.serverDone = true;
+        Client client = null;
+        try {
+            client = this.connection.lockClient();
+            client.connection_closeBatch(batchId);
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.connection.unlockClient(client);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Arena of either direct or heap buffers, kept in power of two size classes.
+ * acquire() returns a buffer with position 0 and limit set to the requested
+ * size and a reference count of 1.  Holders sharing the buffer call
+ * retain(), and each holder calls release() once it is done.  The buffer
+ * goes back to the pool when the last reference is released.
+ * Released buffers beyond maxPooledBytes are left to the garbage collector,
+ * so the memory held stays bounded under sustained load.  The pool only
+ * holds weak references to the buffers handed out, so a buffer dropped
+ * without release() is still collected, and counted as lost.
+ * The cap of a named pool can be set with the system property
+ * qflock.jdbc.bufferPool.NAME.maxBytes, or at runtime through JMX.
+ */
+public class QflockBufferPool implements QflockBufferPoolMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(QflockBufferPool.class);
+
+    private static final int MIN_SIZE_CLASS = 12;
+    private static final int MAX_SIZE_CLASS = 30;
+
+    private final boolean direct;
+    private long maxPooledBytes;
+    private long pooledBytes = 0;
+    // Free buffers of each size class, indexed by the class.
+    private final List<ArrayDeque<ByteBuffer>> free =
+            new ArrayList<ArrayDeque<ByteBuffer>>(MAX_SIZE_CLASS + 1);
+    // Reference counts of the buffers handed out by acquire(), keyed by
+    // buffer identity.  Buffers which were collected are queued in collected.
+    private final HashMap<BufferRef, BufferRef> inUse = new HashMap<BufferRef, BufferRef>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    private long inUseBytes = 0;
+    private long peakInUseBytes = 0;
+    private long allocatedBytes = 0;
+    private long acquires = 0;
+    private long hits = 0;
+    private long discards = 0;
+    private long lost = 0;
+
+    /**
+     * Weak reference to a buffer in use and its reference count.
+     * Equal to another BufferRef of the same buffer.
+     */
+    private static final class BufferRef extends WeakReference<ByteBuffer> {
+        private final int hash;
+        private final int capacity;
+        private int refs = 1;
+
+        BufferRef(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof BufferRef)) {
+                return false;
+            }
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((BufferRef) other).get();
+        }
+    }
+
+    public QflockBufferPool(boolean direct, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i <= MAX_SIZE_CLASS; i++) {
+            free.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Creates a pool whose cap may be overridden by a system property,
+     * and registers it as an MBean of type BufferPool.
+     */
+    public QflockBufferPool(String name, boolean direct, long defaultMaxPooledBytes) {
+        this(direct, Long.getLong("qflock.jdbc.bufferPool." + name + ".maxBytes",
+                                  defaultMaxPooledBytes));
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(QflockMetrics.DOMAIN
+                    + ":type=BufferPool,name=" + name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("failed to register buffer pool {}: {}", name, e.toString());
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            acquires++;
+            if (sizeClass <= MAX_SIZE_CLASS) {
+                buffer = free.get(sizeClass).poll();
+            }
+            if (buffer != null) {
+                pooledBytes -= buffer.capacity();
+                hits++;
+            } else {
+                allocatedBytes += (sizeClass <= MAX_SIZE_CLASS) ? (1 << sizeClass) : size;
+            }
+        }
+        if (buffer == null) {
+            buffer = allocate((sizeClass <= MAX_SIZE_CLASS) ? (1 << sizeClass) : size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        synchronized (this) {
+            expungeCollected();
+            BufferRef ref = new BufferRef(buffer, collected);
+            inUse.put(ref, ref);
+            inUseBytes += buffer.capacity();
+            peakInUseBytes = Math.max(peakInUseBytes, inUseBytes);
+        }
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to a buffer returned by acquire().
+     * @return false if the buffer is not in use from this pool.
+     */
+    public synchronized boolean retain(ByteBuffer buffer) {
+        BufferRef ref = inUse.get(new BufferRef(buffer, null));
+        if (ref == null) {
+            return false;
+        }
+        ref.refs++;
+        return true;
+    }
+
+    /**
+     * Drops a reference to the buffer, which returns to the pool once
+     * no references remain.  Buffers which did not come from this pool,
+     * or were already released, are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            expungeCollected();
+            BufferRef ref = inUse.get(new BufferRef(buffer, null));
+            if (ref == null || --ref.refs > 0) {
+                return;
+            }
+            inUse.remove(ref);
+            ref.clear();
+            inUseBytes -= capacity;
+            int sizeClass = sizeClass(capacity);
+            if (Integer.bitCount(capacity) != 1 || sizeClass > MAX_SIZE_CLASS
+                    || pooledBytes + capacity > maxPooledBytes) {
+                discards++;
+                return;
+            }
+            free.get(sizeClass).push(buffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    /**
+     * Forgets the buffers which were collected without being released.
+     */
+    private void expungeCollected() {
+        Reference<? extends ByteBuffer> collectedRef;
+        while ((collectedRef = collected.poll()) != null) {
+            BufferRef ref = (BufferRef) collectedRef;
+            if (inUse.remove(ref) != null) {
+                inUseBytes -= ref.capacity;
+                lost++;
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public synchronized long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Changes the cap, dropping free buffers beyond it.
+     */
+    @Override
+    public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = MAX_SIZE_CLASS; i >= MIN_SIZE_CLASS && pooledBytes > maxPooledBytes; i--) {
+            while (pooledBytes > maxPooledBytes && !free.get(i).isEmpty()) {
+                pooledBytes -= free.get(i).poll().capacity();
+                discards++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getInUseBytes() {
+        expungeCollected();
+        return inUseBytes;
+    }
+
+    @Override
+    public synchronized long getPeakInUseBytes() {
+        return peakInUseBytes;
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized long getAcquires() {
+        return acquires;
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getDiscards() {
+        return discards;
+    }
+
+    @Override
+    public synchronized long getLost() {
+        expungeCollected();
+        return lost;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+/**
+ * JMX view of the usage of a QflockBufferPool.
+ */
+public interface QflockBufferPoolMBean {
+
+    boolean isDirect();
+
+    /**
+     * @return bytes of free buffers held for reuse.
+     */
+    long getPooledBytes();
+
+    long getMaxPooledBytes();
+
+    void setMaxPooledBytes(long maxPooledBytes);
+
+    /**
+     * @return bytes of buffers handed out and not yet released.
+     */
+    long getInUseBytes();
+
+    long getPeakInUseBytes();
+
+    /**
+     * @return bytes allocated because no free buffer was available.
+     */
+    long getAllocatedBytes();
+
+    long getAcquires();
+
+    /**
+     * @return acquires served from a free buffer.
+     */
+    long getHits();
+
+    /**
+     * @return released buffers left to the garbage collector
+     *         since the pool was full.
+     */
+    long getDiscards();
+
+    /**
+     * @return buffers collected without being released.
+     */
+    long getLost();
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Properties;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Codecs of the result columns, negotiated with the connection properties:
+ * <ul>
+ * <li>compression: none, lz4 or zstd.  The server default is used when
+ *     it is not set.  lz4 decompresses several times faster than zstd and
+ *     suits fast links, zstd compresses better for slow links.
+ *     true and false, as the Spark readers set it, stand for zstd and none.</li>
+ * <li>compressionLevel: zstd level, higher levels trade server cpu for
+ *     fewer bytes.</li>
+ * </ul>
+ * The server reports the codec of each column in QFResultSet.columnCodecs,
+ * since it sends columns which do not compress well as is.
+ */
+public final class QflockCodec {
+
+    public static final String COMPRESSION = "compression";
+    public static final String COMPRESSION_LEVEL = "compressionLevel";
+
+    public static final int NONE = 0;
+    public static final int ZSTD = 1;
+    public static final int LZ4 = 2;
+
+    private static final LZ4FastDecompressor lz4Decompressor =
+            LZ4Factory.fastestInstance().fastDecompressor();
+
+    private QflockCodec() {
+    }
+
+    /**
+     * Checks the compression properties before they are sent to the server.
+     */
+    static void validate(Properties info) throws SQLException {
+        String compression = info.getProperty(COMPRESSION);
+        if (compression != null) {
+            getCodec(compression);
+        }
+        String level = info.getProperty(COMPRESSION_LEVEL);
+        if (level != null) {
+            try {
+                Integer.parseInt(level.trim());
+            } catch (NumberFormatException e) {
+                throw new SQLException("invalid " + COMPRESSION_LEVEL + ": " + level, e);
+            }
+        }
+    }
+
+    /**
+     * @param compression the value of the compression property
+     * @return the codec id it selects.
+     */
+    static int getCodec(String compression) throws SQLException {
+        String name = compression.trim().toLowerCase(Locale.ROOT);
+        if (name.equals("none") || name.equals("false")) {
+            return NONE;
+        } else if (name.equals("zstd") || name.equals("true")) {
+            return ZSTD;
+        } else if (name.equals("lz4")) {
+            return LZ4;
+        }
+        throw new SQLException("unknown compression " + compression);
+    }
+
+    /**
+     * Decompresses an lz4 block of known size into dest at position 0.
+     * Works with both heap and direct buffers.
+     */
+    static void decompressLz4(ByteBuffer src, ByteBuffer dest, int destBytes)
+            throws SQLException {
+        try {
+            int read = lz4Decompressor.decompress(src, src.position(), dest, 0, destBytes);
+            if (read != src.remaining()) {
+                throw new SQLException("lz4 block has " + src.remaining()
+                        + " bytes, decompressed " + read);
+            }
+        } catch (LZ4Exception e) {
+            throw new SQLException("lz4 decompression failed", e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.SQLException;
+
+/**
+ * Column-at-a-time access to the current page of a result, obtained with
+ * ResultSet.unwrap(QflockColumnarResult.class).
+ * The buffers are views over the decoded column data, so no values are
+ * copied or boxed.  They stay valid until the result set moves to the
+ * next page or is closed.
+ * Columns are numbered from 1 as in JDBC, rows are numbered from 0.
+ */
+public interface QflockColumnarResult {
+
+    /**
+     * @return the number of rows in the current page.
+     */
+    int getNumRows();
+
+    int getColumnCount() throws SQLException;
+
+    /**
+     * Decompresses all columns of the current page in parallel.
+     * Otherwise each column is decompressed when it is first accessed.
+     */
+    void decompressColumns() throws SQLException;
+
+    /**
+     * Keeps the column buffers of the current page, including the dictionaries
+     * and expanded strings of dictionary encoded columns, valid after the result
+     * set moves to the next page or is closed, until the returned handle
+     * is closed.  Decompresses all columns first.
+     */
+    Closeable retainColumns() throws SQLException;
+
+    LongBuffer getLongColumn(int columnIndex) throws SQLException;
+
+    DoubleBuffer getDoubleColumn(int columnIndex) throws SQLException;
+
+    IntBuffer getIntColumn(int columnIndex) throws SQLException;
+
+    /**
+     * Returns the byte offset of each string in getStringBytes().
+     * The array has getNumRows() + 1 entries, so string i spans
+     * offsets[i] until offsets[i + 1].
+     * Dictionary encoded columns are expanded on the first call.
+     */
+    int[] getStringOffsets(int columnIndex) throws SQLException;
+
+    /**
+     * Returns the UTF-8 bytes of all strings of the column back to back.
+     * The buffer is backed by an array.
+     */
+    ByteBuffer getStringBytes(int columnIndex) throws SQLException;
+
+    /**
+     * @return true if the string column arrived as codes into a
+     *         dictionary of its distinct values.
+     */
+    boolean isDictionaryEncoded(int columnIndex) throws SQLException;
+
+    /**
+     * Returns the dictionary code of each row of a dictionary encoded column.
+     */
+    int[] getDictionaryCodes(int columnIndex) throws SQLException;
+
+    /**
+     * Returns the byte offset of each dictionary entry in getDictionaryBytes().
+     * Entry i spans offsets[i] until offsets[i + 1].
+     */
+    int[] getDictionaryOffsets(int columnIndex) throws SQLException;
+
+    /**
+     * Returns the UTF-8 bytes of the dictionary entries back to back.
+     * The buffer is backed by an array.
+     */
+    ByteBuffer getDictionaryBytes(int columnIndex) throws SQLException;
+
+    void copyLongs(int columnIndex, int row, long[] dest, int destPos, int length)
+            throws SQLException;
+
+    void copyDoubles(int columnIndex, int row, double[] dest, int destPos, int length)
+            throws SQLException;
+
+    void copyInts(int columnIndex, int row, int[] dest, int destPos, int length)
+            throws SQLException;
+}
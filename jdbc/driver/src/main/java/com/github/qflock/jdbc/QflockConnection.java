@@ -16,6 +16,7 @@
  */
 package com.github.qflock.jdbc;
 
+import java.net.URISyntaxException;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -32,12 +33,24 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,36 +64,176 @@ public class QflockConnection implements Connection {
 
     final Logger logger = LoggerFactory.getLogger(QflockConnection.class);
 
+    // Default for the maxTransports property.
+    public static final int DEFAULT_MAX_TRANSPORTS = 4;
+    // Default for the statementCacheSize property.
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+    // Default for the maxViews property, the views the server has of each
+    // table.  Only this many queries on a table can run on the server at once.
+    public static final int DEFAULT_MAX_VIEWS = 4;
+
     QFConnection connection;
-    //private Client client;
-    private TSocket transport;
+    private TTransport transport;
+    private final QflockTransportOptions transportOptions;
     private boolean isClosed;
-    
-    private Client client_free;
-    private Client client_locked;
-    private ReentrantLock transportLock = new ReentrantLock(true);
+
+    // Each transport carries one request at a time, so statements running
+    // concurrently on this connection each lock a client of their own.
+    // Transports are opened on demand up to maxTransports.
+    // The server keys its state by connection and statement id, so any
+    // transport can serve any statement of this connection.
+    private final ArrayDeque<Client> freeClients = new ArrayDeque<Client>();
+    private final List<TTransport> transports = new ArrayList<TTransport>();
+    private final int maxTransports;
+    // Transports being connected, which count against maxTransports.
+    private int openingTransports;
+    private final ReentrantLock transportLock = new ReentrantLock(true);
+    private final Condition clientFree = transportLock.newCondition();
     private Properties info;
+    private String url;
+
+    // Runs executeQueryAsync calls.  Each call locks its own transport,
+    // so concurrent async queries overlap up to maxTransports.
+    static final ExecutorService asyncExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "qflock-async");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // Set when the connection belongs to a QflockDataSource pool.
+    // close() then returns the connection to the pool and keeps the transport open.
+    private QflockDataSource dataSource;
+    private long idleSince;
+    // Metrics of the queries on this connection, registered with JMX
+    // while the connection is open, but not while it is idle in a pool.
+    private final QflockMetrics metrics = new QflockMetrics();
+    private final String metricsName;
+    private QflockDatabaseMetaData metaData;
+    private static final AtomicInteger nextMetricsId = new AtomicInteger();
+    // Time taken to obtain this connection, counted by the next query.
+    private long connectNanos;
+    // Server prepared statements which were closed by the application, by sql.
+    // prepareStatement() reuses them, so a pooled connection running the same
+    // query again needs no round trip to prepare it.
+    private final Map<String, ArrayDeque<QFPreparedStatement>> statementCache =
+            new HashMap<String, ArrayDeque<QFPreparedStatement>>();
+    private int cachedStatements;
+    private final int statementCacheSize;
         
-    public Client lockClient() {
+    public Client lockClient() throws TException, URISyntaxException {
         transportLock.lock();
-        client_locked = client_free;
-        return client_locked;
+        try {
+            while (freeClients.isEmpty()
+                    && transports.size() + openingTransports >= maxTransports) {
+                clientFree.awaitUninterruptibly();
+            }
+            if (!freeClients.isEmpty()) {
+                return freeClients.pop();
+            }
+            // Reserves the slot, the connect itself runs without the lock
+            // so a slow connect does not hold up other statements.
+            openingTransports++;
+        } finally {
+            transportLock.unlock();
+        }
+        return openTransport();
     }
-    
+
+    /**
+     * Returns a client locked by lockClient().  A client whose transport
+     * failed is closed and dropped rather than handed to the next caller,
+     * since a request may have been cut off halfway.
+     */
     public void unlockClient(Client client) {
-        client_free = client;
-        client_locked = null;
-        transportLock.unlock();
+        if (client == null) {
+            return;
+        }
+        TTransport clientTransport = client.getInputProtocol().getTransport();
+        boolean failed = !clientTransport.isOpen();
+        transportLock.lock();
+        try {
+            if (failed) {
+                transports.remove(clientTransport);
+            } else {
+                freeClients.push(client);
+            }
+            clientFree.signal();
+        } finally {
+            transportLock.unlock();
+        }
+        if (failed) {
+            logger.debug("dropping failed transport to {}", url);
+            clientTransport.close();
+        }
+    }
+
+    private Client openTransport() throws TException, URISyntaxException {
+        logger.debug("opening transport {} of {} to {}",
+                transports.size() + 1, maxTransports, url);
+        Client client = null;
+        try {
+            client = transportOptions.openClient(QflockDriver.getServerUri(url));
+            return client;
+        } finally {
+            transportLock.lock();
+            try {
+                openingTransports--;
+                if (client != null) {
+                    transports.add(client.getInputProtocol().getTransport());
+                } else {
+                    // Lets a waiting statement try to connect instead.
+                    clientFree.signal();
+                }
+            } finally {
+                transportLock.unlock();
+            }
+        }
     }
 
-    public QflockConnection(TSocket transport, Client client,
-                            QFConnection conn, String url, Properties info) {
+    public int getMaxTransports() {
+        return this.maxTransports;
+    }
+
+    public QflockConnection(TTransport transport, Client client,
+                            QFConnection conn, String url, Properties info,
+                            QflockTransportOptions transportOptions) {
         this.transport = transport;
-        this.client_free = client;
+        this.transportOptions = transportOptions;
         this.info = info;
+        this.url = url;
+        this.maxTransports = Math.max(1, Integer.parseInt(info.getProperty("maxTransports",
+                String.valueOf(DEFAULT_MAX_TRANSPORTS))));
+        this.statementCacheSize = Integer.parseInt(info.getProperty("statementCacheSize",
+                String.valueOf(DEFAULT_STATEMENT_CACHE_SIZE)));
+        this.transports.add(transport);
+        this.freeClients.push(client);
         connection = conn;
 
         this.isClosed = false;
+        this.metricsName = "type=Connection,id=" + nextMetricsId.getAndIncrement();
+        this.metrics.register(metricsName);
+    }
+
+    public QflockMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the time it took to open or borrow this connection.
+     */
+    synchronized void setConnectNanos(long nanos) {
+        this.connectNanos = nanos;
+    }
+
+    /**
+     * @return the connect time not yet counted by a query, which is then reset.
+     */
+    synchronized long takeConnectNanos() {
+        long nanos = this.connectNanos;
+        this.connectNanos = 0;
+        return nanos;
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
@@ -146,15 +299,117 @@ public class QflockConnection implements Connection {
     }
 
     public void close() throws SQLException {
-        if (!this.isClosed)
+        if (!this.isClosed) {
+            if (this.dataSource != null) {
+                this.isClosed = true;
+                this.metrics.unregister();
+                this.dataSource.release(this);
+                return;
+            }
+            closePhysical();
+        }
+    }
+
+    /**
+     * Closes the server connection and the transport, even for a pooled
+     * connection which has already been returned to its pool.
+     */
+    void closePhysical() throws SQLException {
+        try {
+            internalClose();
+        } finally {
+            this.isClosed = true;
+            this.metrics.unregister();
+            // The server closes the prepared statements of the connection.
+            synchronized (statementCache) {
+                statementCache.clear();
+                cachedStatements = 0;
+            }
+            transportLock.lock();
             try {
-                internalClose();
+                for (TTransport t : transports) {
+                    t.close();
+                }
             } finally {
-                this.isClosed = true;
-                if (this.transport != null)
-                    this.transport.close();
+                transportLock.unlock();
             }
+        }
+    }
+
+    void setDataSource(QflockDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Marks a pooled connection idle, after it was returned to its pool.
+     */
+    void setIdle() {
+        this.idleSince = System.currentTimeMillis();
+    }
 
+    long getIdleSince() {
+        return this.idleSince;
+    }
+
+    /**
+     * Hands a pooled connection out again.
+     */
+    void reopen() {
+        this.isClosed = false;
+        this.metrics.register(metricsName);
+    }
+
+    /**
+     * Drops the idle transports which failed, so that pool validation
+     * does not hand out a connection whose next request would fail.
+     *
+     * @return true if the connection still has a transport,
+     *         idle or in use by a statement.
+     */
+    boolean isTransportOpen() {
+        List<TTransport> failed = new ArrayList<TTransport>();
+        boolean open;
+        transportLock.lock();
+        try {
+            Iterator<Client> clients = freeClients.iterator();
+            while (clients.hasNext()) {
+                TTransport clientTransport = clients.next().getInputProtocol().getTransport();
+                if (!clientTransport.isOpen()) {
+                    clients.remove();
+                    transports.remove(clientTransport);
+                    failed.add(clientTransport);
+                }
+            }
+            open = !transports.isEmpty();
+        } finally {
+            transportLock.unlock();
+        }
+        for (TTransport t : failed) {
+            logger.debug("dropping failed transport to {}", url);
+            t.close();
+        }
+        return open;
+    }
+
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * @return the number of row groups of a table on the server.
+     */
+    public int getRowGroupCount(String tableName) throws SQLException {
+        Client client = null;
+        try {
+            client = this.lockClient();
+            return client.connection_getRowGroupCount(connection, tableName);
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.unlockClient(client);
+        }
     }
 
     private void internalClose() throws SQLException {
@@ -175,8 +430,11 @@ public class QflockConnection implements Connection {
         return this.isClosed;
     }
 
-    public DatabaseMetaData getMetaData() throws SQLException {
-        return new QflockDatabaseMetaData(this);
+    public synchronized DatabaseMetaData getMetaData() throws SQLException {
+        if (this.metaData == null) {
+            this.metaData = new QflockDatabaseMetaData(this);
+        }
+        return this.metaData;
     }
 
     public void setReadOnly(boolean readOnly) throws SQLException {
@@ -346,10 +604,14 @@ public class QflockConnection implements Connection {
     public PreparedStatement createPreparedStatement(String sql, int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
+        QFPreparedStatement cached = takeCachedStatement(sql);
+        if (cached != null) {
+            return new QflockPreparedStatement(this, cached, sql);
+        }
         Client client = null;
         try {
             client = this.lockClient();
-            QFPreparedStatement statement = client.createPreparedStatement(connection);
+            QFPreparedStatement statement = client.connection_prepareStatement(connection, sql);
             return new QflockPreparedStatement(this, statement, sql);
         } catch (QFSQLException e) {
             throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
@@ -360,6 +622,42 @@ public class QflockConnection implements Connection {
         }
     }
 
+    private QFPreparedStatement takeCachedStatement(String sql) {
+        synchronized (statementCache) {
+            ArrayDeque<QFPreparedStatement> statements = statementCache.get(sql);
+            if (statements == null) {
+                return null;
+            }
+            QFPreparedStatement statement = statements.poll();
+            if (statements.isEmpty()) {
+                statementCache.remove(sql);
+            }
+            cachedStatements--;
+            return statement;
+        }
+    }
+
+    /**
+     * Keeps the server statement of a closed QflockPreparedStatement for reuse.
+     *
+     * @return false if the cache is full, in which case the caller closes it.
+     */
+    boolean cacheStatement(QFPreparedStatement statement, String sql) {
+        synchronized (statementCache) {
+            if (cachedStatements >= statementCacheSize) {
+                return false;
+            }
+            ArrayDeque<QFPreparedStatement> statements = statementCache.get(sql);
+            if (statements == null) {
+                statements = new ArrayDeque<QFPreparedStatement>();
+                statementCache.put(sql, statements);
+            }
+            statements.add(statement);
+            cachedStatements++;
+            return true;
+        }
+    }
+
     public CallableStatement prepareCall(String sql, int resultSetType,
             int resultSetConcurrency, int resultSetHoldability)
             throws SQLException {
@@ -407,6 +705,9 @@ public class QflockConnection implements Connection {
     }
 
     private boolean internalIsValid(int timeout) throws SQLException {
+        if (!isTransportOpen()) {
+            return false;
+        }
         Client client = null;
         try {
             client = this.lockClient();
@@ -425,9 +726,27 @@ public class QflockConnection implements Connection {
         throw new SQLClientInfoException();
     }
 
+    /**
+     * Replaces the connection properties on the server, such as the
+     * rowGroupOffset and rowGroupCount for the next query.
+     * Pooled connections are reused this way without reconnecting.
+     */
     public void setClientInfo(Properties properties)
             throws SQLClientInfoException {
-        throw new SQLClientInfoException();
+        Map<String, String> props = new HashMap<String, String>();
+        for (Entry<Object, Object> keyEtr : properties.entrySet()) {
+            props.put((String) keyEtr.getKey(), (String) keyEtr.getValue());
+        }
+        Client client = null;
+        try {
+            client = this.lockClient();
+            client.connection_setClientInfo(connection, props);
+            this.info = properties;
+        } catch (Exception e) {
+            throw new SQLClientInfoException(e.toString(), null, e);
+        } finally {
+            this.unlockClient(client);
+        }
     }
 
     public String getClientInfo(String name) throws SQLException {
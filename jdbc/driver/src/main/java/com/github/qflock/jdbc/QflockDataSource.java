@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A pool of connections to one qflock jdbc server url.
+ * Opening a connection costs a TCP connect plus the createConnection
+ * round trip, which is significant over a WAN link, so executors share
+ * the pool for a url across tasks via getDataSource().
+ * Connections are handed back to the pool by Connection.close().
+ * A borrower passes its own properties to getConnection(Properties),
+ * which are applied to the reused connection with setClientInfo.
+ */
+public class QflockDataSource implements DataSource {
+
+    final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(QflockDataSource.class);
+
+    public static final int DEFAULT_MAX_POOL_SIZE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+    public static final long DEFAULT_VALIDATION_INTERVAL_MS = 5000;
+    private static final long EVICTION_PERIOD_MS = 5000;
+
+    private static final Map<String, QflockDataSource> dataSources =
+            new HashMap<String, QflockDataSource>();
+
+    private static final ScheduledExecutorService evictor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "qflock-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Returns the pool shared by all callers for this url, creating it
+     * with the given size on first use.
+     *
+     * @param url the jdbc:qflock url of the server
+     * @param maxPoolSize the most connections the pool opens to the url
+     */
+    public static synchronized QflockDataSource getDataSource(String url, int maxPoolSize) {
+        QflockDataSource dataSource = dataSources.get(url);
+        if (dataSource == null) {
+            dataSource = new QflockDataSource(url);
+            dataSource.setMaxPoolSize(maxPoolSize);
+            dataSources.put(url, dataSource);
+        }
+        return dataSource;
+    }
+
+    public static QflockDataSource getDataSource(String url) {
+        return getDataSource(url, DEFAULT_MAX_POOL_SIZE);
+    }
+
+    private final String url;
+    private final QflockDriver driver = new QflockDriver();
+    private final Properties defaultProperties = new Properties();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Most recently used connections are at the tail.
+    private final ArrayDeque<QflockConnection> idle = new ArrayDeque<QflockConnection>();
+    private final ScheduledFuture<?> evictionTask;
+    private int openConnections = 0;
+    private boolean isClosed = false;
+    private volatile int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile long validationIntervalMs = DEFAULT_VALIDATION_INTERVAL_MS;
+    private volatile int loginTimeout = 0;
+    private PrintWriter logWriter;
+
+    public QflockDataSource(String url) {
+        this.url = url;
+        this.evictionTask = evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, EVICTION_PERIOD_MS, EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public String getUrl() {
+        return this.url;
+    }
+
+    public int getMaxPoolSize() {
+        return this.maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("maxPoolSize must be positive: " + maxPoolSize);
+        }
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Connections idle for longer than this are closed.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public long getIdleTimeoutMs() {
+        return this.idleTimeoutMs;
+    }
+
+    /**
+     * Connections idle for longer than this are validated with
+     * connection_isvalid before they are handed out again.
+     */
+    public void setValidationIntervalMs(long validationIntervalMs) {
+        this.validationIntervalMs = validationIntervalMs;
+    }
+
+    public long getValidationIntervalMs() {
+        return this.validationIntervalMs;
+    }
+
+    /**
+     * Properties used by getConnection() when the caller passes none.
+     */
+    public Properties getDefaultProperties() {
+        return this.defaultProperties;
+    }
+
+    public int getNumIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNumOpen() {
+        lock.lock();
+        try {
+            return openConnections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        return getConnection(this.defaultProperties);
+    }
+
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        Properties info = new Properties();
+        info.putAll(this.defaultProperties);
+        if (username != null) {
+            info.setProperty("user", username);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        return getConnection(info);
+    }
+
+    /**
+     * Borrows a connection, reusing an idle one if possible.
+     *
+     * @param info the connection properties, as for DriverManager.getConnection
+     */
+    public Connection getConnection(Properties info) throws SQLException {
+        long startTime = System.nanoTime();
+        while (true) {
+            QflockConnection connection = takeIdle();
+            if (connection == null) {
+                connection = openConnection(info);
+                connection.setConnectNanos(System.nanoTime() - startTime);
+                return connection;
+            }
+            if (System.currentTimeMillis() - connection.getIdleSince() > validationIntervalMs
+                    && !connection.isValid(loginTimeout)) {
+                logger.debug("discarding invalid pooled connection to {}", url);
+                discard(connection);
+                continue;
+            }
+            try {
+                connection.setClientInfo(info);
+            } catch (SQLException e) {
+                discard(connection);
+                throw e;
+            }
+            connection.reopen();
+            connection.setConnectNanos(System.nanoTime() - startTime);
+            return connection;
+        }
+    }
+
+    /**
+     * Returns an idle connection, or null once the caller holds a slot
+     * to open a new one.  Waits while the pool is at its maximum size.
+     */
+    private QflockConnection takeIdle() throws SQLException {
+        lock.lock();
+        try {
+            long timeoutNs = TimeUnit.SECONDS.toNanos(loginTimeout);
+            while (true) {
+                if (isClosed) {
+                    throw new SQLException("data source for " + url + " is closed", "08003");
+                }
+                QflockConnection connection = idle.pollLast();
+                if (connection != null) {
+                    return connection;
+                }
+                if (openConnections < maxPoolSize) {
+                    openConnections++;
+                    return null;
+                }
+                if (loginTimeout == 0) {
+                    available.await();
+                } else {
+                    if (timeoutNs <= 0) {
+                        throw new SQLException("timed out waiting for a connection to " + url,
+                                "08001");
+                    }
+                    timeoutNs = available.awaitNanos(timeoutNs);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e.toString(), "08001", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private QflockConnection openConnection(Properties info) throws SQLException {
+        QflockConnection connection = null;
+        try {
+            connection = (QflockConnection) driver.connect(url, info);
+        } finally {
+            if (connection == null) {
+                releaseSlot();
+            }
+        }
+        connection.setDataSource(this);
+        return connection;
+    }
+
+    private void releaseSlot() {
+        lock.lock();
+        try {
+            openConnections--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by QflockConnection.close() to hand the connection back.
+     */
+    void release(QflockConnection connection) {
+        if (!connection.isTransportOpen()) {
+            discard(connection);
+            return;
+        }
+        lock.lock();
+        try {
+            if (!isClosed) {
+                connection.setIdle();
+                idle.addLast(connection);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(connection);
+    }
+
+    private void discard(QflockConnection connection) {
+        releaseSlot();
+        closeQuietly(connection);
+    }
+
+    private void closeQuietly(QflockConnection connection) {
+        try {
+            connection.closePhysical();
+        } catch (SQLException e) {
+            logger.debug("failed to close pooled connection to {} {}", url, e.toString());
+        }
+    }
+
+    /**
+     * Closes the connections which have been idle for longer than the idle timeout.
+     */
+    void evictIdle() {
+        List<QflockConnection> evicted = new ArrayList<QflockConnection>();
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<QflockConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                QflockConnection connection = it.next();
+                if (now - connection.getIdleSince() > idleTimeoutMs) {
+                    it.remove();
+                    evicted.add(connection);
+                }
+            }
+            openConnections -= evicted.size();
+            if (!evicted.isEmpty()) {
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (QflockConnection connection : evicted) {
+            logger.debug("evicting idle connection to {}", url);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Closes the idle connections and stops pooling.  Connections which
+     * are still borrowed are closed when they are returned.
+     */
+    public void close() {
+        List<QflockConnection> closing;
+        lock.lock();
+        try {
+            isClosed = true;
+            closing = new ArrayList<QflockConnection>(idle);
+            openConnections -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictionTask.cancel(false);
+        synchronized (QflockDataSource.class) {
+            if (dataSources.get(url) == this) {
+                dataSources.remove(url);
+            }
+        }
+        for (QflockConnection connection : closing) {
+            closeQuietly(connection);
+        }
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return this.logWriter;
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return this.loginTimeout;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("Method not supported");
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Method not supported");
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
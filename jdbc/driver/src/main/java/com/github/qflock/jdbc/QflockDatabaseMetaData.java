@@ -21,27 +21,104 @@ import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.RowIdLifetime;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.qflock.jdbc.api.QFConnection;
 import com.github.qflock.jdbc.api.QFResultSet;
 import com.github.qflock.jdbc.api.QFSQLException;
+import com.github.qflock.jdbc.api.QFStaticMetaData;
 import com.github.qflock.jdbc.api.QflockJdbcService.Client;
 
+/**
+ * Metadata of the server, shared by all users of one connection.
+ * Answers are kept in the driver's QflockMetadataCache for
+ * metadataCacheTtlMs milliseconds (default 5 minutes, 0 disables it),
+ * so only the first lookup of a table per server goes over the network.
+ * Call invalidateCache() after changing tables on the server.
+ */
 public class QflockDatabaseMetaData implements DatabaseMetaData {
     
     final Logger logger = LoggerFactory.getLogger(QflockDatabaseMetaData.class);
 
+    public static final String METADATA_CACHE_TTL_MS = "metadataCacheTtlMs";
+
     private QflockConnection qflockConnection;
     private QFConnection connection;
+    private final String url;
+    private final long cacheTtlMs;
 
-    public QflockDatabaseMetaData(QflockConnection connection) {
+    public QflockDatabaseMetaData(QflockConnection connection) throws SQLException {
         this.qflockConnection = connection;
         this.connection = connection.connection;
+        this.url = connection.getUrl();
+        String ttl = connection.getClientInfo(METADATA_CACHE_TTL_MS);
+        try {
+            this.cacheTtlMs = (ttl == null) ? QflockMetadataCache.DEFAULT_TTL_MS
+                                            : Long.parseLong(ttl.trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("invalid " + METADATA_CACHE_TTL_MS + ": " + ttl, e);
+        }
+    }
+
+    private interface MetaDataCall {
+        Object call(Client client) throws TException;
+    }
+
+    /**
+     * Returns the cached answer for the key, or calls the server and caches it.
+     * @param key the method name followed by its arguments
+     */
+    private Object fetch(List<Object> key, MetaDataCall call) throws SQLException {
+        List<Object> cacheKey = new ArrayList<Object>(key.size() + 1);
+        cacheKey.add(url);
+        cacheKey.addAll(key);
+        QflockMetadataCache cache = QflockDriver.getMetadataCache();
+        Object value = cache.get(cacheKey);
+        if (value != null) {
+            return value;
+        }
+        Client client = null;
+        try {
+            client = this.qflockConnection.lockClient();
+            value = call.call(client);
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.qflockConnection.unlockClient(client);
+        }
+        cache.put(cacheKey, value, cacheTtlMs);
+        return value;
+    }
+
+    private ResultSet fetchResultSet(List<Object> key, MetaDataCall call) throws SQLException {
+        QFResultSet resultset = (QFResultSet) fetch(key, call);
+        // QflockResultSet releases the pages it reads, so each gets its own copy.
+        return new QflockResultSet(resultset.deepCopy(),
+                this.qflockConnection.getClientInfo("tempDir"));
+    }
+
+    private QFStaticMetaData getStaticMetaData() throws SQLException {
+        return (QFStaticMetaData) fetch(Arrays.<Object>asList("getstaticmetadata"),
+                new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getstaticmetadata(connection);
+            }
+        });
+    }
+
+    /**
+     * Drops the cached metadata of this connection's server.
+     */
+    public void invalidateCache() {
+        QflockDriver.getMetadataCache().invalidate(url);
     }
 
     @Override
@@ -108,49 +185,29 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public String getCatalogSeparator() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getCatalogSeparator(connection);
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return (String) fetch(Arrays.<Object>asList("getCatalogSeparator"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getCatalogSeparator(connection);
+            }
+        });
     }
 
     @Override
     public String getCatalogTerm() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getCatalogTerm(connection);
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return (String) fetch(Arrays.<Object>asList("getCatalogTerm"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getCatalogTerm(connection);
+            }
+        });
     }
 
     @Override
     public ResultSet getCatalogs() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getCatalogs(connection);
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getCatalogs"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getCatalogs(connection);
+            }
+        });
     }
 
     @Override
@@ -167,19 +224,13 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
     @Override
     public ResultSet getColumns(String catalog, String schemaPattern, String tableNamePattern,
             String columnNamePattern) throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getColumns(connection, catalog, schemaPattern, tableNamePattern, columnNamePattern);
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getColumns", catalog, schemaPattern,
+                tableNamePattern, columnNamePattern), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getColumns(connection, catalog, schemaPattern,
+                        tableNamePattern, columnNamePattern);
+            }
+        });
     }
 
     @Override
@@ -195,77 +246,27 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public int getDatabaseMajorVersion() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getDatabaseMajorVersion();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getDatabaseMajorVersion();
     }
 
     @Override
     public int getDatabaseMinorVersion() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getDatabaseMinorVersion();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getDatabaseMinorVersion();
     }
 
     @Override
     public String getDatabaseProductName() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getDatabaseProductName();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getDatabaseProductName();
     }
 
     @Override
     public String getDatabaseProductVersion() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getDatabaseProductVersion();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getDatabaseProductVersion();
     }
 
     @Override
     public int getDefaultTransactionIsolation() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getDefaultTransactionIsolation();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getDefaultTransactionIsolation();
     }
 
     @Override
@@ -313,17 +314,7 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public String getIdentifierQuoteString() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).getIdentifierQuoteString();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().getIdentifierQuoteString();
     }
 
     @Override
@@ -517,17 +508,11 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public String getSQLKeywords() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getSQLKeywords(connection);
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return (String) fetch(Arrays.<Object>asList("getSQLKeywords"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getSQLKeywords(connection);
+            }
+        });
     }
 
     @Override
@@ -538,17 +523,11 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public String getSchemaTerm() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getSchemaTerm(connection);
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return (String) fetch(Arrays.<Object>asList("getSchemaTerm"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getSchemaTerm(connection);
+            }
+        });
     }
 
     @Override
@@ -558,19 +537,12 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public ResultSet getSchemas(String catalog, String schemaPattern) throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getSchemas(connection, catalog, schemaPattern);
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getSchemas", catalog, schemaPattern),
+                new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getSchemas(connection, catalog, schemaPattern);
+            }
+        });
         
         /*
         transportLock.lock();
@@ -624,38 +596,24 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public ResultSet getTableTypes() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getTableTypes(connection);
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getTableTypes"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getTableTypes(connection);
+            }
+        });
     }
 
     @Override
     public ResultSet getTables(String catalog, String schemaPattern, String tableNamePattern,
             String[] types) throws SQLException 
     {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getTables(connection, catalog, schemaPattern, tableNamePattern, tabToList(types));
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getTables", catalog, schemaPattern,
+                tableNamePattern, tabToList(types)), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getTables(connection, catalog, schemaPattern,
+                        tableNamePattern, tabToList(types));
+            }
+        });
     }
     
     private static List<String> tabToList(String[] types) {
@@ -673,19 +631,11 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public ResultSet getTypeInfo() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            QFResultSet resultset = client.connection_getTypeInfo(connection);
-            return new QflockResultSet(resultset,
-                    this.qflockConnection.getClientInfo("tempDir"));
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return fetchResultSet(Arrays.<Object>asList("getTypeInfo"), new MetaDataCall() {
+            public Object call(Client client) throws TException {
+                return client.connection_getTypeInfo(connection);
+            }
+        });
     }
 
     @Override
@@ -696,7 +646,7 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public String getURL() throws SQLException {
-        throw new SQLException("Method not supported");
+        return url;
     }
 
     @Override
@@ -877,17 +827,7 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public boolean supportsCatalogsInTableDefinitions() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).isSupportsCatalogsInTableDefinitions();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().isSupportsCatalogsInTableDefinitions();
     }
 
     @Override
@@ -1080,32 +1020,12 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public boolean supportsSavepoints() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).isSupportsSavepoints();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().isSupportsSavepoints();
     }
 
     @Override
     public boolean supportsSchemasInDataManipulation() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).isSupportsSchemasInDataManipulation();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().isSupportsSchemasInDataManipulation();
     }
 
     @Override
@@ -1125,17 +1045,7 @@ public class QflockDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public boolean supportsSchemasInTableDefinitions() throws SQLException {
-        Client client = null;
-        try {
-            client = this.qflockConnection.lockClient();
-            return client.connection_getstaticmetadata(connection).isSupportsSchemasInTableDefinitions();
-        } catch (QFSQLException e) {
-            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
-        } catch (Exception e) {
-            throw new SQLException(e.toString(), "08S01", e);
-        } finally {
-            this.qflockConnection.unlockClient(client);
-        }
+        return getStaticMetaData().isSupportsSchemasInTableDefinitions();
     }
 
     @Override
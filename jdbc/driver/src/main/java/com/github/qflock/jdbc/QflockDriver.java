@@ -31,8 +31,7 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
 
 import com.github.qflock.jdbc.api.QFConnection;
 import com.github.qflock.jdbc.api.QflockJdbcService;
@@ -41,7 +40,13 @@ public class QflockDriver implements Driver {
     
     final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(QflockDriver.class);
 
+    // Metrics of the queries on all connections of the driver.
+    static final QflockMetrics metrics = new QflockMetrics();
+    // Database metadata of all connections of the driver.
+    private static final QflockMetadataCache metadataCache = new QflockMetadataCache();
+
     static {
+        metrics.register("type=Driver");
         try {
           java.sql.DriverManager.registerDriver(new QflockDriver());
         } catch (SQLException e) {
@@ -53,25 +58,29 @@ public class QflockDriver implements Driver {
             return null;
 
         logger.info("Call to connect {} {}", url, info);
+        long startTime = System.nanoTime();
         try 
         {
-            URI r = new URI("thrift:" + url.trim().substring(URL_PREFIX.length()));
-            TSocket transport = new TSocket(r.getHost(), r.getPort());
-            transport.open();
+            URI r = getServerUri(url);
+            Properties options = QflockTransportOptions.parseUrl(url, info);
+            QflockCodec.validate(options);
+            QflockTransportOptions transportOptions = new QflockTransportOptions(options);
+            QflockJdbcService.Client client = transportOptions.openClient(r);
+            TTransport transport = client.getInputProtocol().getTransport();
             logger.debug("connect, open complete {}", url);
-            
-            TBinaryProtocol protocol = new TBinaryProtocol(transport);
-            
-            QflockJdbcService.Client client = new QflockJdbcService.Client(protocol);
+            // The server reads the url options too, such as the compression codec.
             Map<String, String> props = new HashMap<String, String>();
-            for (Entry<Object, Object> keyEtr : info.entrySet())
+            for (Entry<Object, Object> keyEtr : options.entrySet())
             {
                 props.put((String) keyEtr.getKey(), (String) keyEtr.getValue());
             }
             logger.debug("createConnection {}", url);
             QFConnection conn = client.createConnection(r.getPath(), props);
             logger.debug("createConnection complete {}", url);
-            return new QflockConnection(transport, client, conn, url, info);
+            QflockConnection connection = new QflockConnection(transport, client, conn, url, options,
+                                                               transportOptions);
+            connection.setConnectNanos(System.nanoTime() - startTime);
+            return connection;
         } catch (TException e) {
             throw new SQLException(e);
         } catch (URISyntaxException e) {
@@ -80,6 +89,18 @@ public class QflockDriver implements Driver {
     }
 
     private static String URL_PREFIX = "jdbc:qflock:";
+
+    /**
+     * @return the server address of the url, without any ;key=value options.
+     */
+    static URI getServerUri(String url) throws URISyntaxException {
+        String server = url.trim().substring(URL_PREFIX.length());
+        int options = server.indexOf(';');
+        if (options >= 0) {
+            server = server.substring(0, options);
+        }
+        return new URI("thrift:" + server);
+    }
     
     public boolean acceptsURL(String url) throws SQLException {
         return Pattern.matches(URL_PREFIX + ".*", url);
@@ -92,6 +113,17 @@ public class QflockDriver implements Driver {
         return props;
     }
 
+    /**
+     * @return the metrics of all queries run through this driver.
+     */
+    public static QflockMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static QflockMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
     public int getMajorVersion() {
         logger.debug("Call to getMajorVersion");
         return 4;
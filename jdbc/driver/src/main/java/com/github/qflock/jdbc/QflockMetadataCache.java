@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Results of QflockDatabaseMetaData calls, shared by all connections of
+ * the driver so that repeated schema lookups during query planning do not
+ * each cost a round trip to the server.
+ * Entries are keyed by the connection url, the method and its arguments,
+ * and expire after the ttl given when they were added.
+ * Use invalidate() after the tables on the server change.
+ */
+public class QflockMetadataCache {
+
+    // Default for the metadataCacheTtlMs property, 0 disables the cache.
+    public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+    private static final int MAX_ENTRIES = 4096;
+
+    private static class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<List<Object>, Entry> entries =
+            new ConcurrentHashMap<List<Object>, Entry>();
+
+    /**
+     * @param key the url followed by the method name and arguments
+     * @return the cached value or null if absent or expired.
+     */
+    Object get(List<Object> key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    void put(List<Object> key, Object value, long ttlMs) {
+        if (ttlMs <= 0 || value == null) {
+            return;
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            removeExpired();
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMs));
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<List<Object>, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now >= it.next().getValue().expiresAt) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached metadata.
+     */
+    public void invalidate() {
+        entries.clear();
+    }
+
+    /**
+     * Drops the cached metadata of one server url.
+     */
+    public void invalidate(String url) {
+        Iterator<List<Object>> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (url.equals(it.next().get(0))) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
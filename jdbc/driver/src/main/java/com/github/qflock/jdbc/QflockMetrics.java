@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Query metrics summed over many statements.  The driver keeps one
+ * instance for all its connections and each connection keeps its own.
+ * Both are registered as MBeans under the com.github.qflock.jdbc domain.
+ */
+public class QflockMetrics implements QflockMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(QflockMetrics.class);
+
+    public static final String DOMAIN = "com.github.qflock.jdbc";
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+    private final AtomicLong executeNanos = new AtomicLong();
+    private final AtomicLong serverNanos = new AtomicLong();
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+    private final AtomicLong materializeNanos = new AtomicLong();
+    private ObjectName name;
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     * Failures are logged, since metrics must never fail a query.
+     *
+     * @param properties the key properties of the name, such as "type=Driver"
+     */
+    public synchronized void register(String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                this.name = objectName;
+            }
+        } catch (Exception e) {
+            logger.warn("failed to register metrics {}: {}", properties, e.toString());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (this.name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+        } catch (Exception e) {
+            logger.warn("failed to unregister metrics {}: {}", this.name, e.toString());
+        }
+        this.name = null;
+    }
+
+    void addQuery() {
+        queries.incrementAndGet();
+    }
+
+    void addPage(long pageRows, long pageCompressedBytes, long pageUncompressedBytes) {
+        pages.incrementAndGet();
+        rows.addAndGet(pageRows);
+        compressedBytes.addAndGet(pageCompressedBytes);
+        uncompressedBytes.addAndGet(pageUncompressedBytes);
+    }
+
+    void addConnectNanos(long nanos) {
+        connectNanos.addAndGet(nanos);
+    }
+
+    void addExecuteNanos(long nanos) {
+        executeNanos.addAndGet(nanos);
+    }
+
+    void addServerNanos(long nanos) {
+        serverNanos.addAndGet(nanos);
+    }
+
+    void addFetchNanos(long nanos) {
+        fetchNanos.addAndGet(nanos);
+    }
+
+    void addDecompressNanos(long nanos) {
+        decompressNanos.addAndGet(nanos);
+    }
+
+    void addMaterializeNanos(long nanos) {
+        materializeNanos.addAndGet(nanos);
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getConnectNanos() {
+        return connectNanos.get();
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos.get();
+    }
+
+    public long getServerNanos() {
+        return serverNanos.get();
+    }
+
+    public long getFetchNanos() {
+        return fetchNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    public long getMaterializeNanos() {
+        return materializeNanos.get();
+    }
+
+    public void reset() {
+        queries.set(0);
+        rows.set(0);
+        pages.set(0);
+        compressedBytes.set(0);
+        uncompressedBytes.set(0);
+        connectNanos.set(0);
+        executeNanos.set(0);
+        serverNanos.set(0);
+        fetchNanos.set(0);
+        decompressNanos.set(0);
+        materializeNanos.set(0);
+    }
+}
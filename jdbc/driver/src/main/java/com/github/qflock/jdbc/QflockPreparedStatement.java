@@ -17,9 +17,12 @@
 package com.github.qflock.jdbc;
 
 import com.github.qflock.jdbc.api.QflockJdbcService.Client;
+import com.github.qflock.jdbc.api.QFQueryRange;
 import com.github.qflock.jdbc.api.QFResultSet;
 import com.github.qflock.jdbc.api.QFSQLException;
 import com.github.qflock.jdbc.api.QFPreparedStatement;
+import com.github.qflock.jdbc.api.QFValue;
+import com.github.qflock.jdbc.api.RawVal;
 import com.github.qflock.jdbc.api.preparedStatement_getWarnings_return;
 
 import java.io.InputStream;
@@ -27,14 +30,33 @@ import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 public class QflockPreparedStatement implements PreparedStatement {
 
     private QflockConnection connection;
     private QFPreparedStatement statement;
     private String sql;
-    private Integer fetchSize;
+    // Rows per page requested from the server, 0 returns the whole result at once.
+    private int fetchSize = 0;
+    // Queries added with addBatch, sent together by executeQueryBatch.
+    private List<QFQueryRange> batch = new ArrayList<QFQueryRange>();
+    private QflockResultSet[] batchResults;
+    private int[] batchRowCounts;
+    // Metrics of the last query executed.
+    private volatile QflockStatementMetrics metrics;
+    // Parameters bound to the ? markers of the statement, by index from 1.
+    private final Map<Integer, QFValue> parameters = new TreeMap<Integer, QFValue>();
+    // Row group range bound for the next executions, -1 keeps the connection's.
+    private int rowGroupOffset = -1;
+    private int rowGroupCount = -1;
+    private boolean isClosed = false;
 
     public QflockPreparedStatement(QflockConnection connection, QFPreparedStatement stat,
                                    String sql) {
@@ -43,23 +65,98 @@ public class QflockPreparedStatement implements PreparedStatement {
         this.sql = sql;
     }
 
+    /**
+     * Also unwraps to the QflockStatementMetrics of the last query executed.
+     */
     public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        QflockStatementMetrics lastMetrics = this.metrics;
+        if (lastMetrics != null && iface.isInstance(lastMetrics)) {
+            return iface.cast(lastMetrics);
+        }
         throw new SQLException("Method not supported: unwrap");
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        throw new SQLException("Method not supported: isWrapperFor");
-        //return iface == java.sql.Statement.class || iface == CrystalStatement.class;
-    }
+        QflockStatementMetrics lastMetrics = this.metrics;
+        return iface.isInstance(this) || (lastMetrics != null && iface.isInstance(lastMetrics));
+    }
+    /**
+     * Runs the statement prepared on the server with the bound parameters and
+     * row group range.  Only the parameters are sent, and the server reuses
+     * its analyzed plan from earlier executions of the same bound query.
+     */
     public ResultSet executeQuery() throws SQLException {
-        return executeQuery(this.sql);
+        return executeBound(getParameters(), this.rowGroupOffset, this.rowGroupCount);
+    }
+
+    /**
+     * Binds the row groups read by the next executions, in place of the
+     * rowGroupOffset and rowGroupCount properties of the connection.
+     * A negative value keeps the value of the connection.
+     */
+    public void setRowGroupRange(int offset, int count) {
+        this.rowGroupOffset = offset;
+        this.rowGroupCount = count;
+    }
+
+    List<QFValue> getParameters() throws SQLException {
+        List<QFValue> values = new ArrayList<QFValue>(this.parameters.size());
+        for (Map.Entry<Integer, QFValue> parameter : this.parameters.entrySet()) {
+            if (parameter.getKey() != values.size() + 1) {
+                throw new SQLException("parameter " + (values.size() + 1) + " is not set",
+                        "07001");
+            }
+            values.add(parameter.getValue());
+        }
+        return values;
+    }
+
+    private QflockResultSet executeBound(List<QFValue> values, int offset, int count)
+            throws SQLException {
+        QflockStatementMetrics queryMetrics = QflockStatementMetrics.forConnection(this.connection);
+        this.metrics = queryMetrics;
+        long startTime = System.nanoTime();
+        Client client = null;
+        try {
+            client = this.connection.lockClient();
+            QFResultSet resultset = client.preparedStatement_executeBound(statement, values,
+                    offset, count, fetchSize);
+            queryMetrics.addExecuteNanos(System.nanoTime() - startTime);
+            QflockResultSetCursor cursor = resultset.hasMore ?
+                    new QflockResultSetCursor(this.connection, resultset.id, fetchSize) : null;
+            return new QflockResultSet(resultset, this.connection.getClientInfo("tempDir"),
+                                       cursor, queryMetrics);
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.connection.unlockClient(client);
+        }
+    }
+
+    private void setParameter(int parameterIndex, QFValue value) throws SQLException {
+        if (parameterIndex < 1) {
+            throw new SQLException("invalid parameter index " + parameterIndex, "07009");
+        }
+        this.parameters.put(parameterIndex, value);
     }
     public ResultSet executeQuery(String sql) throws SQLException {
+        QflockStatementMetrics queryMetrics = QflockStatementMetrics.forConnection(this.connection);
+        this.metrics = queryMetrics;
+        long startTime = System.nanoTime();
         Client client = null;
         try {
             client = this.connection.lockClient();
-            QFResultSet resultset = client.preparedStatement_executeQuery(statement, sql);
-            return new QflockResultSet(resultset, this.connection.getClientInfo("tempDir"));
+            QFResultSet resultset = client.preparedStatement_executeQuery(statement, sql, fetchSize);
+            queryMetrics.addExecuteNanos(System.nanoTime() - startTime);
+            QflockResultSetCursor cursor = resultset.hasMore ?
+                    new QflockResultSetCursor(this.connection, resultset.id, fetchSize) : null;
+            return new QflockResultSet(resultset, this.connection.getClientInfo("tempDir"),
+                                       cursor, queryMetrics);
         } catch (QFSQLException e) {
             throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
         } catch (Exception e) {
@@ -68,6 +165,53 @@ public class QflockPreparedStatement implements PreparedStatement {
             this.connection.unlockClient(client);
         }
     }
+
+    /**
+     * Runs executeQuery() without waiting for the server, with the
+     * parameters and row group range bound at the time of the call.
+     */
+    public CompletableFuture<QflockResultSet> executeQueryAsync() {
+        final CompletableFuture<QflockResultSet> future = new CompletableFuture<QflockResultSet>();
+        final List<QFValue> values;
+        try {
+            values = getParameters();
+        } catch (SQLException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final int offset = this.rowGroupOffset;
+        final int count = this.rowGroupCount;
+        QflockConnection.asyncExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete(executeBound(values, offset, count));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Submits the query and returns without waiting for the server.
+     * The query runs on its own transport of the connection, so the caller
+     * can process earlier results while the server executes it.
+     */
+    public CompletableFuture<QflockResultSet> executeQueryAsync(final String sql) {
+        final CompletableFuture<QflockResultSet> future = new CompletableFuture<QflockResultSet>();
+        QflockConnection.asyncExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete((QflockResultSet) executeQuery(sql));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
     public int executeUpdate(String sql) throws SQLException {
         throw new SQLException("Method not supported: executeUpdate");
     }
@@ -75,7 +219,18 @@ public class QflockPreparedStatement implements PreparedStatement {
         return executeUpdate(this.sql);
     }
 
+    /**
+     * The server statement is kept by the connection for reuse
+     * when the same sql is prepared again, while its cache has room.
+     */
     public void close() throws SQLException {
+        if (this.isClosed) {
+            return;
+        }
+        this.isClosed = true;
+        if (this.connection.cacheStatement(statement, this.sql)) {
+            return;
+        }
         Client client = null;
         try {
             client = this.connection.lockClient();
@@ -260,6 +415,9 @@ public class QflockPreparedStatement implements PreparedStatement {
     }
 
     public void setFetchSize(int rows) throws SQLException {
+        if (rows < 0) {
+            throw new SQLException("fetch size must be >= 0: " + rows);
+        }
         fetchSize = rows;
     }
 
@@ -286,15 +444,63 @@ public class QflockPreparedStatement implements PreparedStatement {
     }
 
     public void addBatch(String sql) throws SQLException {
-        throw new SQLException("Method not supported: addBatch");
+        addBatch(sql, -1, -1);
+    }
+
+    /**
+     * Adds a query over rowGroupCount row groups starting at rowGroupOffset.
+     * A negative value keeps the rowGroupOffset or rowGroupCount property
+     * of the connection.
+     */
+    public void addBatch(String sql, int rowGroupOffset, int rowGroupCount) {
+        this.batch.add(new QFQueryRange(sql, rowGroupOffset, rowGroupCount));
     }
 
     public void clearBatch() throws SQLException {
-        throw new SQLException("Method not supported: clearBatch");
+        this.batch.clear();
     }
 
+    /**
+     * Sends all the queries of the batch to the server in one call.
+     * The results are returned as the server completes them.
+     */
+    public QflockBatchResults executeQueryBatch() throws SQLException {
+        try {
+            return QflockBatchResults.execute(this.connection, this.batch, fetchSize);
+        } finally {
+            this.batch.clear();
+        }
+    }
+
+    /**
+     * Runs the batch and waits for all of its results, which are then
+     * available from getBatchResults() in the order the queries were added.
+     * The queries are not updates, so each gets SUCCESS_NO_INFO rather than
+     * an update count.  Their row counts are available from getBatchRowCounts().
+     *
+     * @return SUCCESS_NO_INFO for each query.
+     * @throws BatchUpdateException if a query failed.
+     */
     public int[] executeBatch() throws SQLException {
-        throw new SQLException("Method not supported: executeBatch");
+        int size = this.batch.size();
+        QflockBatchResults results = executeQueryBatch();
+        this.batchResults = results.awaitAll();
+        this.batchRowCounts = results.getRowCounts();
+        int[] counts = new int[size];
+        Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+        return counts;
+    }
+
+    public QflockResultSet[] getBatchResults() {
+        return this.batchResults;
+    }
+
+    /**
+     * @return the number of rows of each result of the last executeBatch()
+     *         (of the first page with a fetch size).
+     */
+    public int[] getBatchRowCounts() {
+        return this.batchRowCounts;
     }
 
     public Connection getConnection() throws SQLException {
@@ -362,115 +568,271 @@ public class QflockPreparedStatement implements PreparedStatement {
         throw new SQLException("Method not supported: isCloseOnCompletion");
     }
 
-    public void setNull(int var1, int var2) throws SQLException {}
+    public void setNull(int var1, int var2) throws SQLException {
+        setParameter(var1, new QFValue(true, null));
+    }
 
-    public void setBoolean(int var1, boolean var2) throws SQLException {}
+    public void setBoolean(int var1, boolean var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.bool_val(var2)));
+    }
 
-    public void setByte(int var1, byte var2) throws SQLException {}
+    public void setByte(int var1, byte var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.smallint_val(var2)));
+    }
 
-    public void setShort(int var1, short var2) throws SQLException {}
+    public void setShort(int var1, short var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.smallint_val(var2)));
+    }
 
-    public void setInt(int var1, int var2) throws SQLException {}
+    public void setInt(int var1, int var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.integer_val(var2)));
+    }
 
-    public void setLong(int var1, long var2) throws SQLException {}
+    public void setLong(int var1, long var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.bigint_val(var2)));
+    }
 
-    public void setFloat(int var1, float var2) throws SQLException {}
+    public void setFloat(int var1, float var2) throws SQLException {
+        // Widen through the shortest decimal form, so that 0.1f is sent as 0.1
+        // rather than as 0.10000000149011612.
+        double value = Double.parseDouble(Float.toString(var2));
+        setParameter(var1, new QFValue(false, RawVal.double_val(value)));
+    }
 
-    public void setDouble(int var1, double var2) throws SQLException {}
+    public void setDouble(int var1, double var2) throws SQLException {
+        setParameter(var1, new QFValue(false, RawVal.double_val(var2)));
+    }
 
-    public void setBigDecimal(int var1, BigDecimal var2) throws SQLException {}
+    public void setBigDecimal(int var1, BigDecimal var2) throws SQLException {
+        // There is no decimal value on the wire, and a double would round it.
+        throw new SQLFeatureNotSupportedException("Method not supported: setBigDecimal");
+    }
 
-    public void setString(int var1, String var2) throws SQLException {}
+    public void setString(int var1, String var2) throws SQLException {
+        if (var2 == null) {
+            setNull(var1, Types.VARCHAR);
+        } else {
+            setParameter(var1, new QFValue(false, RawVal.string_val(var2)));
+        }
+    }
 
-    public void setBytes(int var1, byte[] var2) throws SQLException {}
+    public void setBytes(int var1, byte[] var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBytes");
+    }
 
-    public void setDate(int var1, Date var2) throws SQLException {}
+    /**
+     * Dates and timestamps are sent as their JDBC escape format strings,
+     * which Spark casts when comparing them with date and timestamp columns.
+     */
+    public void setDate(int var1, Date var2) throws SQLException {
+        setString(var1, var2 == null ? null : var2.toString());
+    }
 
-    public void setTime(int var1, Time var2) throws SQLException {}
+    public void setTime(int var1, Time var2) throws SQLException {
+        // Spark has no time of day type to compare it with.
+        throw new SQLFeatureNotSupportedException("Method not supported: setTime");
+    }
 
-    public void setTimestamp(int var1, Timestamp var2) throws SQLException {}
+    public void setTimestamp(int var1, Timestamp var2) throws SQLException {
+        setString(var1, var2 == null ? null : var2.toString());
+    }
 
-    public void setAsciiStream(int var1, InputStream var2, int var3) throws SQLException {}
+    public void setAsciiStream(int var1, InputStream var2, int var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setAsciiStream");
+    }
 
-    public void setUnicodeStream(int var1, InputStream var2, int var3) throws SQLException {}
+    public void setUnicodeStream(int var1, InputStream var2, int var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setUnicodeStream");
+    }
 
-    public void setBinaryStream(int var1, InputStream var2, int var3) throws SQLException {}
+    public void setBinaryStream(int var1, InputStream var2, int var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBinaryStream");
+    }
 
-    public void clearParameters() throws SQLException {}
+    public void clearParameters() throws SQLException {
+        this.parameters.clear();
+    }
 
-    public void setObject(int var1, Object var2, int var3) throws SQLException {}
+    /**
+     * The value is sent with the type of its class, the server
+     * leaves the conversion to the target type to Spark.
+     */
+    public void setObject(int var1, Object var2, int var3) throws SQLException {
+        if (var2 == null) {
+            setNull(var1, var3);
+        } else {
+            setObject(var1, var2);
+        }
+    }
 
-    public void setObject(int var1, Object var2) throws SQLException {}
+    public void setObject(int var1, Object var2) throws SQLException {
+        if (var2 == null) {
+            setNull(var1, Types.NULL);
+        } else if (var2 instanceof String) {
+            setString(var1, (String) var2);
+        } else if (var2 instanceof Long) {
+            setLong(var1, (Long) var2);
+        } else if (var2 instanceof Integer) {
+            setInt(var1, (Integer) var2);
+        } else if (var2 instanceof Short) {
+            setShort(var1, (Short) var2);
+        } else if (var2 instanceof Byte) {
+            setByte(var1, (Byte) var2);
+        } else if (var2 instanceof Double) {
+            setDouble(var1, (Double) var2);
+        } else if (var2 instanceof Float) {
+            setFloat(var1, (Float) var2);
+        } else if (var2 instanceof Boolean) {
+            setBoolean(var1, (Boolean) var2);
+        } else if (var2 instanceof Date) {
+            setDate(var1, (Date) var2);
+        } else if (var2 instanceof Timestamp) {
+            setTimestamp(var1, (Timestamp) var2);
+        } else {
+            throw new SQLException("Parameter type not supported: " + var2.getClass().getName());
+        }
+    }
 
     public boolean execute() throws SQLException {
         throw new SQLException("Method not supported: execute()");
     }
 
-    public void addBatch() throws SQLException {}
+    public void addBatch() throws SQLException {
+        addBatch(this.sql, -1, -1);
+    }
+
+    public void addBatch(int rowGroupOffset, int rowGroupCount) {
+        addBatch(this.sql, rowGroupOffset, rowGroupCount);
+    }
 
-    public void setCharacterStream(int var1, Reader var2, int var3) throws SQLException {}
+    public void setCharacterStream(int var1, Reader var2, int var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setCharacterStream");
+    }
 
-    public void setRef(int var1, Ref var2) throws SQLException {}
+    public void setRef(int var1, Ref var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setRef");
+    }
 
-    public void setBlob(int var1, Blob var2) throws SQLException {}
+    public void setBlob(int var1, Blob var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBlob");
+    }
 
-    public void setClob(int var1, Clob var2) throws SQLException {}
+    public void setClob(int var1, Clob var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setClob");
+    }
 
-    public void setArray(int var1, Array var2) throws SQLException {}
+    public void setArray(int var1, Array var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setArray");
+    }
 
     public ResultSetMetaData getMetaData() throws SQLException {
         throw new SQLException("Method not supported: getMetaData()");
     }
 
-    public void setDate(int var1, Date var2, Calendar var3) throws SQLException {}
+    public void setDate(int var1, Date var2, Calendar var3) throws SQLException {
+        if (var3 != null) {
+            throw new SQLFeatureNotSupportedException("Method not supported: setDate(Calendar)");
+        }
+        setDate(var1, var2);
+    }
 
-    public void setTime(int var1, Time var2, Calendar var3) throws SQLException {}
+    public void setTime(int var1, Time var2, Calendar var3) throws SQLException {
+        setTime(var1, var2);
+    }
 
-    public void setTimestamp(int var1, Timestamp var2, Calendar var3) throws SQLException {}
+    public void setTimestamp(int var1, Timestamp var2, Calendar var3) throws SQLException {
+        if (var3 != null) {
+            throw new SQLFeatureNotSupportedException(
+                    "Method not supported: setTimestamp(Calendar)");
+        }
+        setTimestamp(var1, var2);
+    }
 
-    public void setNull(int var1, int var2, String var3) throws SQLException {}
+    public void setNull(int var1, int var2, String var3) throws SQLException {
+        setNull(var1, var2);
+    }
 
-    public void setURL(int var1, URL var2) throws SQLException {}
+    public void setURL(int var1, URL var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setURL");
+    }
 
     public ParameterMetaData getParameterMetaData() throws SQLException {
         throw new SQLException("Method not supported: getParameterMetaData()");
     }
 
-    public void setRowId(int var1, RowId var2) throws SQLException {}
+    public void setRowId(int var1, RowId var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setRowId");
+    }
 
-    public void setNString(int var1, String var2) throws SQLException {}
+    public void setNString(int var1, String var2) throws SQLException {
+        setString(var1, var2);
+    }
 
-    public void setNCharacterStream(int var1, Reader var2, long var3) throws SQLException {}
+    public void setNCharacterStream(int var1, Reader var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setNCharacterStream");
+    }
 
-    public void setNClob(int var1, NClob var2) throws SQLException {}
+    public void setNClob(int var1, NClob var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setNClob");
+    }
 
-    public void setClob(int var1, Reader var2, long var3) throws SQLException {}
+    public void setClob(int var1, Reader var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setClob");
+    }
 
-    public void setBlob(int var1, InputStream var2, long var3) throws SQLException {}
+    public void setBlob(int var1, InputStream var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBlob");
+    }
 
-    public void setNClob(int var1, Reader var2, long var3) throws SQLException {}
+    public void setNClob(int var1, Reader var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setNClob");
+    }
 
-    public void setSQLXML(int var1, SQLXML var2) throws SQLException {}
+    public void setSQLXML(int var1, SQLXML var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setSQLXML");
+    }
 
-    public void setObject(int var1, Object var2, int var3, int var4) throws SQLException {}
+    public void setObject(int var1, Object var2, int var3, int var4) throws SQLException {
+        setObject(var1, var2, var3);
+    }
 
-    public void setAsciiStream(int var1, InputStream var2, long var3) throws SQLException {}
+    public void setAsciiStream(int var1, InputStream var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setAsciiStream");
+    }
 
-    public void setBinaryStream(int var1, InputStream var2, long var3) throws SQLException {}
+    public void setBinaryStream(int var1, InputStream var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBinaryStream");
+    }
 
-    public void setCharacterStream(int var1, Reader var2, long var3) throws SQLException {}
+    public void setCharacterStream(int var1, Reader var2, long var3) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setCharacterStream");
+    }
 
-    public void setAsciiStream(int var1, InputStream var2) throws SQLException {}
+    public void setAsciiStream(int var1, InputStream var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setAsciiStream");
+    }
 
-    public void setBinaryStream(int var1, InputStream var2) throws SQLException {}
+    public void setBinaryStream(int var1, InputStream var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBinaryStream");
+    }
 
-    public void setCharacterStream(int var1, Reader var2) throws SQLException {}
+    public void setCharacterStream(int var1, Reader var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setCharacterStream");
+    }
 
-    public void setNCharacterStream(int var1, Reader var2) throws SQLException {}
+    public void setNCharacterStream(int var1, Reader var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setNCharacterStream");
+    }
 
-    public void setClob(int var1, Reader var2) throws SQLException {}
+    public void setClob(int var1, Reader var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setClob");
+    }
 
-    public void setBlob(int var1, InputStream var2) throws SQLException {}
+    public void setBlob(int var1, InputStream var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setBlob");
+    }
 
-    public void setNClob(int var1, Reader var2) throws SQLException {}
+    public void setNClob(int var1, Reader var2) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Method not supported: setNClob");
+    }
 }
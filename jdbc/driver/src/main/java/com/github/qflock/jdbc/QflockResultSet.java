@@ -20,6 +20,9 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.charset.StandardCharsets;
 import java.sql.Array;
 import java.sql.Blob;
@@ -37,6 +40,7 @@ import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
@@ -44,14 +48,26 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.luben.zstd.Zstd;
 import com.github.qflock.jdbc.api.QFResultSet;
 
-public class QflockResultSet implements ResultSet {
+public class QflockResultSet implements ResultSet, QflockColumnarResult {
     
     final Logger logger = LoggerFactory.getLogger(QflockResultSet.class);
     
@@ -63,7 +79,9 @@ public class QflockResultSet implements ResultSet {
     private QflockResultSetMetaData metadata;
     
     private QflockStatement statement;
-    private ArrayList<ArrayList<Integer>> strOffsetVector = new ArrayList<ArrayList<Integer>>();
+    // Per column, the byte offset of each string plus the end offset.
+    // For dictionary columns these are the offsets of the dictionary entries.
+    private ArrayList<int[]> strOffsetVector = new ArrayList<int[]>();
     private int rowIndex;
     
     private final int type = ResultSet.TYPE_SCROLL_INSENSITIVE;
@@ -72,23 +90,85 @@ public class QflockResultSet implements ResultSet {
 
     private boolean isClosed;
     private Integer partitionsBytes = 0;
+    // Only set when the server is holding more pages of this result.
+    private QflockResultSetCursor cursor;
+    // Number of rows in the pages before the current page.
+    private int pageStartRow;
+    // Results of the following row group ranges of a parallel query, read in order.
+    private ArrayDeque<CompletableFuture<QflockResultSet>> parts;
+    // Column data of the current page, null until a compressed column is decompressed.
+    private ByteBuffer[] columns = new ByteBuffer[0];
+    // Buffers of the current page which go back to the pools on the next page or close.
+    private final List<ByteBuffer> pooledBuffers = new ArrayList<ByteBuffer>();
+    // Set for the columns of the current page sent as codes into a dictionary.
+    private boolean[] dictionaryEncoded = new boolean[0];
+    // Per dictionary column, the code of each row and the decoded dictionary,
+    // built on first access.
+    private int[][] dictionaryCodes;
+    private String[][] dictionaryStrings;
+    // Per dictionary column, the strings of all rows as getStringOffsets()
+    // and getStringBytes() return them, only built for those calls.
+    private int[][] expandedOffsets;
+    private ByteBuffer[] expandedBytes;
+
+    // Values of QFResultSet.columnEncodings.
+    private static final int ENCODING_DICTIONARY = 1;
+
+    // Set when the result is an Arrow IPC stream.
+    private ArrowStreamReader arrowReader;
+    private BufferAllocator arrowAllocator;
+    private static final BufferAllocator arrowRootAllocator = new RootAllocator();
+
+    private final QflockStatementMetrics metrics;
+
+    private static final QflockBufferPool directBufferPool =
+            new QflockBufferPool("direct", true, 256L * 1024 * 1024);
+    private static final QflockBufferPool heapBufferPool =
+            new QflockBufferPool("heap", false, 256L * 1024 * 1024);
+    private static final ExecutorService decompressExecutor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "qflock-decompress");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
     public QflockResultSet(QFResultSet resultset,
                            String tempDir) throws SQLException {
+        this(resultset, tempDir, null);
+    }
+    public QflockResultSet(QFResultSet resultset,
+                           String tempDir,
+                           QflockResultSetCursor cursor) throws SQLException {
+        this(resultset, tempDir, cursor, new QflockStatementMetrics());
+    }
+    public QflockResultSet(QFResultSet resultset,
+                           String tempDir,
+                           QflockResultSetCursor cursor,
+                           QflockStatementMetrics metrics) throws SQLException {
         this.resultset = resultset;
         this.tempDir = tempDir;
         this.metadata = new QflockResultSetMetaData(resultset.metadata);
         this.rowIndex = 0;
+        this.pageStartRow = 0;
+        this.metrics = metrics;
+        this.metrics.addPage(resultset);
 
+        long startTime = System.nanoTime();
         Integer partitions = resultset.parquet.size();
         if (partitions > 0) {
             writeResultsToPartitions();
+        } else if (resultset.arrowStream != null) {
+            openArrowStream();
         } else {
             getColumnResults();
         }
-        this.warnings.offer(new SQLWarning("Test!"));
-        this.warnings.offer(new SQLWarning("Test!"));
-        this.warnings.offer(new SQLWarning("Test!"));
-        this.warnings.offer(new SQLWarning("Test!"));
+        this.metrics.addMaterializeNanos(System.nanoTime() - startTime);
+        if (resultset.hasMore && cursor != null) {
+            this.cursor = cursor;
+            this.cursor.prefetch();
+        }
     }
     private void writeResultsToPartitions() throws SQLException {
         Integer partitions = resultset.parquet.size();
@@ -126,6 +206,165 @@ public class QflockResultSet implements ResultSet {
         }
         logger.trace("end write partitions:" + partitions);
     }
+    private void openArrowStream() {
+        ByteBuffer stream = this.resultset.arrowStream;
+        InputStream in;
+        if (stream.hasArray()) {
+            in = new ByteArrayInputStream(stream.array(),
+                    stream.arrayOffset() + stream.position(), stream.remaining());
+        } else {
+            byte[] bytes = new byte[stream.remaining()];
+            stream.duplicate().get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        this.arrowAllocator = arrowRootAllocator.newChildAllocator(
+                "QflockResultSet-" + this.resultset.id, 0, Long.MAX_VALUE);
+        this.arrowReader = new ArrowStreamReader(in, this.arrowAllocator);
+    }
+    /**
+     * @return true if the server returned this result as an Arrow IPC stream,
+     *         which is read with getArrowRoot() and loadNextArrowBatch().
+     */
+    public boolean isArrow() {
+        return this.arrowReader != null;
+    }
+    /**
+     * Returns the root which each call to loadNextArrowBatch() loads
+     * the next record batch into.  The vectors are owned by this result
+     * set and released when it is closed.
+     */
+    public VectorSchemaRoot getArrowRoot() throws SQLException {
+        if (this.arrowReader == null) {
+            throw new SQLException("result is not in arrow format");
+        }
+        try {
+            return this.arrowReader.getVectorSchemaRoot();
+        } catch (IOException e) {
+            throw new SQLException("Cannot read arrow schema: " + e, e);
+        }
+    }
+    /**
+     * @return true if a record batch was loaded into getArrowRoot(),
+     *         false at the end of the stream.
+     */
+    public boolean loadNextArrowBatch() throws SQLException {
+        if (this.arrowReader == null) {
+            throw new SQLException("result is not in arrow format");
+        }
+        long startTime = System.nanoTime();
+        try {
+            return this.arrowReader.loadNextBatch();
+        } catch (IOException e) {
+            throw new SQLException("Cannot read arrow batch: " + e, e);
+        } finally {
+            this.metrics.addMaterializeNanos(System.nanoTime() - startTime);
+        }
+    }
+    private void closeArrowStream() {
+        try {
+            this.arrowReader.close();
+        } catch (IOException e) {
+            logger.warn("failed to close arrow stream " + e);
+        }
+        this.arrowAllocator.close();
+        this.arrowReader = null;
+        this.arrowAllocator = null;
+    }
+    /**
+     * Moves to the next page of a result set that was opened with a fetch size.
+     * Rows of the new page are addressed from row 1, as for the first page,
+     * and getNumRows() returns the rows of the new page.
+     *
+     * @return true if a page was loaded, false if there are no more pages.
+     */
+    public boolean nextPage() throws SQLException {
+        if (this.cursor == null) {
+            return nextPart();
+        }
+        long startTime = System.nanoTime();
+        QFResultSet page = this.cursor.next();
+        long fetchedTime = System.nanoTime();
+        this.metrics.addFetchNanos(fetchedTime - startTime);
+        this.metrics.addPage(page);
+        this.pageStartRow += this.resultset.numRows;
+        releaseColumns();
+        this.resultset = page;
+        this.rowIndex = 0;
+        getColumnResults();
+        this.metrics.addMaterializeNanos(System.nanoTime() - fetchedTime);
+        if (page.hasMore) {
+            this.cursor.prefetch();
+        } else {
+            this.cursor = null;
+        }
+        return page.numRows > 0;
+    }
+    /**
+     * @return true if the server still holds pages beyond the current one.
+     */
+    public boolean hasMorePages() {
+        return this.cursor != null || (this.parts != null && !this.parts.isEmpty());
+    }
+
+    /**
+     * Appends the results of further row group ranges of the same query,
+     * which are read after the pages of this result.
+     */
+    void addParts(List<CompletableFuture<QflockResultSet>> moreParts) {
+        if (this.parts == null) {
+            this.parts = new ArrayDeque<CompletableFuture<QflockResultSet>>();
+        }
+        this.parts.addAll(moreParts);
+    }
+
+    /**
+     * Continues with the first page of the next part, taking over its cursor.
+     */
+    private boolean nextPart() throws SQLException {
+        if (this.parts == null || this.parts.isEmpty()) {
+            return false;
+        }
+        long startTime = System.nanoTime();
+        QflockResultSet part = await(this.parts.poll());
+        long fetchedTime = System.nanoTime();
+        this.metrics.addFetchNanos(fetchedTime - startTime);
+        this.pageStartRow += this.resultset.numRows;
+        releaseColumns();
+        this.resultset = part.resultset;
+        this.cursor = part.cursor;
+        part.resultset = null;
+        part.cursor = null;
+        part.columns = null;
+        part.close();
+        this.rowIndex = 0;
+        getColumnResults();
+        this.metrics.addMaterializeNanos(System.nanoTime() - fetchedTime);
+        return this.resultset.numRows > 0;
+    }
+
+    /**
+     * Waits for a result submitted with executeQueryAsync.
+     */
+    static QflockResultSet await(Future<QflockResultSet> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause().toString(), "08S01", e.getCause());
+        }
+    }
+    /**
+     * @return the position of the query in its batch, for results
+     *         returned by QflockBatchResults.
+     */
+    public int getBatchIndex() {
+        return this.resultset.batchIndex;
+    }
     public Integer getResultFileCount() {
         return this.resultset.parquet.size();
     }
@@ -136,6 +375,9 @@ public class QflockResultSet implements ResultSet {
         if (this.resultset.parquet.size() > 0) {
             return partitionsBytes;
         }
+        if (this.resultset.arrowStream != null) {
+            return this.resultset.arrowStream.remaining();
+        }
         Integer totalColBytes = 0;
         Iterator<Integer> colBytesIterator = this.resultset.getColumnBytesIterator();
         Iterator<Integer> compColBytesIterator = this.resultset.getCompressedColumnBytesIterator();
@@ -149,78 +391,458 @@ public class QflockResultSet implements ResultSet {
                 totalColBytes += colBytes;
             }
         }
+        if (this.resultset.dictionaries != null) {
+            for (ByteBuffer dictionary : this.resultset.dictionaries) {
+                totalColBytes += dictionary.remaining();
+            }
+        }
         Integer columns = this.resultset.columnBytes.size();
         // Add on size of column bytes, column bytes, column type bytes (all ints)
         totalColBytes += columns * 4 * 3;
         // We (for now) exclude the size of the metadata
         return totalColBytes;
     }
+    /**
+     * Indexes the columns of the current page.  Compressed columns are only
+     * decompressed once they are first accessed, or by decompressColumns().
+     */
     private void getColumnResults() throws SQLException {
-        Iterator<Integer> colBytesIterator = this.resultset.getColumnBytesIterator();
-        Iterator<Integer> compColBytesIterator = this.resultset.getCompressedColumnBytesIterator();
-        Iterator<ByteBuffer> compRowsIterator = this.resultset.getCompressedRowsIterator();
         Iterator<List<Integer>> strLenListIterator = this.resultset.getStrLenVectorIterator();
-        Integer columnIndex = 0;
-        strOffsetVector = new ArrayList<ArrayList<Integer>>(resultset.columnBytes.size());
-        while (compRowsIterator.hasNext()) {
-            int colBytes = colBytesIterator.next();
-            int compColBytes = compColBytesIterator.next();
-            ByteBuffer compRow = compRowsIterator.next();
-
-//            logger.info("Col " + columnIndex + "create index start");
+        int numColumns = this.resultset.getColumnBytesSize();
+        strOffsetVector = new ArrayList<int[]>(numColumns);
+        while (strLenListIterator.hasNext()) {
             // Generate list of Indexes to be used when accessing strings.
             List<Integer> currentStrLen = strLenListIterator.next();
             Iterator<Integer> strLenIterator = currentStrLen.iterator();
-            ArrayList<Integer> strLenArray = new ArrayList<Integer>(currentStrLen.size());
-            strOffsetVector.add(strLenArray);
-            Integer index = 0;
+            int[] strOffsets = new int[currentStrLen.size() + 1];
+            strOffsetVector.add(strOffsets);
+            int index = 0;
+            int row = 0;
             while (strLenIterator.hasNext()) {
-                int strLen = strLenIterator.next();
-                strLenArray.add(index);
-                index += strLen;
+                strOffsets[row++] = index;
+                index += strLenIterator.next();
             }
-//            logger.info("Col " + columnIndex + "create index end");
-            if (colBytes != compColBytes) {
-                // decompress requires a direct buffer for both source and destination.
-                ByteBuffer decompressedBuffer = ByteBuffer.allocateDirect(colBytes);
-                ByteBuffer compressedBuffer = ByteBuffer.allocateDirect(compColBytes);
-                compressedBuffer.put(compRow);
-                compressedBuffer.position(0);
-                int decompressedSize = Zstd.decompress(decompressedBuffer, compressedBuffer);
-                if (decompressedSize != colBytes) {
-                    logger.info(String.format("colBytes: %d decompressedSize: %d",
-                            colBytes, decompressedSize));
-                    throw new SQLException("decompressed bytes do not match");
+            strOffsets[row] = index;
+        }
+        this.dictionaryEncoded = new boolean[numColumns];
+        if (this.resultset.columnEncodings != null) {
+            for (int i = 0; i < this.resultset.columnEncodings.size(); i++) {
+                this.dictionaryEncoded[i] =
+                        this.resultset.columnEncodings.get(i) == ENCODING_DICTIONARY;
+            }
+        }
+        this.dictionaryCodes = new int[numColumns][];
+        this.dictionaryStrings = new String[numColumns][];
+        this.expandedOffsets = new int[numColumns][];
+        this.expandedBytes = new ByteBuffer[numColumns];
+        this.columns = new ByteBuffer[numColumns];
+        if (this.resultset.getCompressedRowsSize() == 0) {
+            // Uncompressed results arrive in binaryRows.
+            for (int i = 0; i < this.resultset.getBinaryRowsSize(); i++) {
+                this.columns[i] = this.resultset.binaryRows.get(i);
+            }
+            return;
+        }
+        for (int i = 0; i < numColumns; i++) {
+            if (getColumnCodec(i) == QflockCodec.NONE) {
+                this.columns[i] = this.resultset.compressedRows.get(i);
+            }
+        }
+    }
+
+    /**
+     * @param column the column, starting from 0
+     * @return the QflockCodec id of the column in compressedRows.
+     */
+    private int getColumnCodec(int column) {
+        if (this.resultset.columnCodecs != null && !this.resultset.columnCodecs.isEmpty()) {
+            return this.resultset.columnCodecs.get(column);
+        }
+        // Servers without codec negotiation compress every column with zstd,
+        // and send those which did not shrink as is.
+        if (this.resultset.columnBytes.get(column).equals(
+                this.resultset.compressedColumnBytes.get(column))) {
+            return QflockCodec.NONE;
+        }
+        return QflockCodec.ZSTD;
+    }
+
+    /**
+     * @param columnIndex the column, starting from 1
+     * @return the decompressed data of the column.
+     */
+    private ByteBuffer getColumn(int columnIndex) throws SQLException {
+        ByteBuffer column = this.columns[columnIndex - 1];
+        if (column == null) {
+            column = decompressColumn(columnIndex - 1);
+            this.columns[columnIndex - 1] = column;
+        }
+        return column;
+    }
+
+    /**
+     * Decompresses a column into a pooled buffer.  Strings are decompressed
+     * into a heap buffer since they are read through its array().
+     * Fixed width columns go to a direct buffer.
+     */
+    private ByteBuffer decompressColumn(int column) throws SQLException {
+        long startTime = System.nanoTime();
+        int colBytes = this.resultset.columnBytes.get(column);
+        ByteBuffer compRow = this.resultset.compressedRows.get(column);
+        ByteBuffer decompressedBuffer;
+        long decompressedSize;
+        int codec = getColumnCodec(column);
+        if (codec == QflockCodec.LZ4) {
+            decompressedBuffer = (this.metadata.getColumnType(column + 1) == Types.VARCHAR)
+                    ? heapBufferPool.acquire(colBytes) : directBufferPool.acquire(colBytes);
+            addPooledBuffer(decompressedBuffer);
+            QflockCodec.decompressLz4(compRow, decompressedBuffer, colBytes);
+            this.metrics.addDecompressNanos(System.nanoTime() - startTime);
+            return decompressedBuffer;
+        } else if (codec != QflockCodec.ZSTD) {
+            throw new SQLException("unknown codec " + codec + " for column " + (column + 1));
+        }
+        if (this.metadata.getColumnType(column + 1) == Types.VARCHAR) {
+            decompressedBuffer = heapBufferPool.acquire(colBytes);
+            byte[] src;
+            int srcOffset;
+            if (compRow.hasArray()) {
+                src = compRow.array();
+                srcOffset = compRow.arrayOffset() + compRow.position();
+            } else {
+                src = new byte[compRow.remaining()];
+                compRow.duplicate().get(src);
+                srcOffset = 0;
+            }
+            decompressedSize = Zstd.decompressByteArray(decompressedBuffer.array(),
+                    decompressedBuffer.arrayOffset(), colBytes,
+                    src, srcOffset, compRow.remaining());
+            addPooledBuffer(decompressedBuffer);
+        } else {
+            // decompress requires a direct buffer for both source and destination.
+            decompressedBuffer = directBufferPool.acquire(colBytes);
+            addPooledBuffer(decompressedBuffer);
+            ByteBuffer compressedBuffer = directBufferPool.acquire(compRow.remaining());
+            try {
+                compressedBuffer.put(compRow.duplicate());
+                decompressedSize = Zstd.decompressDirectByteBuffer(decompressedBuffer, 0, colBytes,
+                        compressedBuffer, 0, compressedBuffer.limit());
+            } finally {
+                directBufferPool.release(compressedBuffer);
+            }
+        }
+        if (Zstd.isError(decompressedSize) || decompressedSize != colBytes) {
+            logger.info(String.format("colBytes: %d decompressedSize: %d",
+                    colBytes, decompressedSize));
+            throw new SQLException("decompressed bytes do not match");
+        }
+        this.metrics.addDecompressNanos(System.nanoTime() - startTime);
+        return decompressedBuffer;
+    }
+
+    private void addPooledBuffer(ByteBuffer buffer) {
+        synchronized (this.pooledBuffers) {
+            this.pooledBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * Hands the buffers of the current page back to the pools.
+     */
+    private void releaseColumns() {
+        synchronized (this.pooledBuffers) {
+            for (ByteBuffer buffer : this.pooledBuffers) {
+                (buffer.isDirect() ? directBufferPool : heapBufferPool).release(buffer);
+            }
+            this.pooledBuffers.clear();
+        }
+        if (this.resultset != null) {
+            releaseBinaries(this.resultset.compressedRows);
+            releaseBinaries(this.resultset.binaryRows);
+            releaseBinaries(this.resultset.dictionaries);
+            // The partitions were copied to files when the result was opened,
+            // and the Arrow reader is closed before its stream is released.
+            releaseBinaries(this.resultset.parquet);
+            QflockTransportOptions.releaseBinary(this.resultset.arrowStream);
+            this.resultset.arrowStream = null;
+        }
+        this.columns = null;
+    }
+
+    private static void releaseBinaries(List<ByteBuffer> buffers) {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                QflockTransportOptions.releaseBinary(buffer);
+            }
+            buffers.clear();
+        }
+    }
+
+    @Override
+    public Closeable retainColumns() throws SQLException {
+        decompressColumns();
+        final List<ByteBuffer> retained = new ArrayList<ByteBuffer>();
+        for (ByteBuffer column : this.columns) {
+            retainBuffer(column, retained);
+        }
+        // Dictionary columns are read through their dictionary and, once
+        // expanded, their expanded bytes, which are pooled as well.
+        for (int i = 0; i < this.dictionaryEncoded.length; i++) {
+            if (this.dictionaryEncoded[i]) {
+                retainBuffer(this.resultset.dictionaries.get(i), retained);
+                retainBuffer(this.expandedBytes[i], retained);
+            }
+        }
+        return new Closeable() {
+            private boolean closed = false;
+
+            public synchronized void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                // Each buffer belongs to exactly one of the pools,
+                // the others ignore it.
+                for (ByteBuffer buffer : retained) {
+                    (buffer.isDirect() ? directBufferPool : heapBufferPool).release(buffer);
+                    QflockTransportOptions.releaseBinary(buffer);
+                }
+            }
+        };
+    }
+
+    private static void retainBuffer(ByteBuffer buffer, List<ByteBuffer> retained) {
+        if (buffer != null && ((buffer.isDirect() ? directBufferPool : heapBufferPool)
+                .retain(buffer) || QflockTransportOptions.retainBinary(buffer))) {
+            retained.add(buffer);
+        }
+    }
+
+    @Override
+    public void decompressColumns() throws SQLException {
+        List<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < this.columns.length; i++) {
+            if (this.columns[i] == null) {
+                pending.add(i);
+            }
+        }
+        if (pending.size() <= 1) {
+            for (int column : pending) {
+                getColumn(column + 1);
+            }
+            return;
+        }
+        List<Future<ByteBuffer>> futures = new ArrayList<Future<ByteBuffer>>(pending.size());
+        for (final int column : pending) {
+            futures.add(decompressExecutor.submit(new Callable<ByteBuffer>() {
+                public ByteBuffer call() throws SQLException {
+                    return decompressColumn(column);
+                }
+            }));
+        }
+        SQLException failure = null;
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                this.columns[pending.get(i)] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof SQLException)
+                            ? (SQLException) e.getCause()
+                            : new SQLException(e.getCause().toString(), e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e.toString(), e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private ByteBuffer getColumnBuffer(int columnIndex) throws SQLException {
+        if (columnIndex < 1 || columnIndex > this.columns.length) {
+            throw new SQLException("Column index out of range: " + columnIndex);
+        }
+        return getColumn(columnIndex).duplicate();
+    }
+
+    @Override
+    public int getColumnCount() throws SQLException {
+        return this.metadata.getColumnCount();
+    }
+
+    @Override
+    public LongBuffer getLongColumn(int columnIndex) throws SQLException {
+        return getColumnBuffer(columnIndex).asLongBuffer();
+    }
+
+    @Override
+    public DoubleBuffer getDoubleColumn(int columnIndex) throws SQLException {
+        return getColumnBuffer(columnIndex).asDoubleBuffer();
+    }
+
+    @Override
+    public IntBuffer getIntColumn(int columnIndex) throws SQLException {
+        return getColumnBuffer(columnIndex).asIntBuffer();
+    }
+
+    @Override
+    public int[] getStringOffsets(int columnIndex) throws SQLException {
+        if (columnIndex < 1 || columnIndex > this.strOffsetVector.size()) {
+            throw new SQLException("Column index out of range: " + columnIndex);
+        }
+        if (this.dictionaryEncoded[columnIndex - 1]) {
+            expandDictionary(columnIndex);
+            return this.expandedOffsets[columnIndex - 1];
+        }
+        return this.strOffsetVector.get(columnIndex - 1);
+    }
+
+    @Override
+    public ByteBuffer getStringBytes(int columnIndex) throws SQLException {
+        if (columnIndex >= 1 && columnIndex <= this.dictionaryEncoded.length
+                && this.dictionaryEncoded[columnIndex - 1]) {
+            expandDictionary(columnIndex);
+            return this.expandedBytes[columnIndex - 1].duplicate();
+        }
+        return getColumnBuffer(columnIndex);
+    }
+
+    @Override
+    public boolean isDictionaryEncoded(int columnIndex) throws SQLException {
+        if (columnIndex < 1 || columnIndex > this.dictionaryEncoded.length) {
+            throw new SQLException("Column index out of range: " + columnIndex);
+        }
+        return this.dictionaryEncoded[columnIndex - 1];
+    }
+
+    @Override
+    public int[] getDictionaryCodes(int columnIndex) throws SQLException {
+        if (!isDictionaryEncoded(columnIndex)) {
+            throw new SQLException("Column " + columnIndex + " is not dictionary encoded");
+        }
+        int[] codes = this.dictionaryCodes[columnIndex - 1];
+        if (codes == null) {
+            ByteBuffer column = getColumnBuffer(columnIndex);
+            int width = this.resultset.columnTypeBytes.get(columnIndex - 1);
+            codes = new int[column.remaining() / width];
+            int position = column.position();
+            if (width == 1) {
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = column.get(position + i) & 0xff;
                 }
-                int type = this.metadata.getColumnType(columnIndex + 1);
-                if (type == Types.VARCHAR) {
-                    // Strings require access to the array() operator, so we can copy
-                    // a range for each individual string.
-                    // Direct buffer does not allow it, so allocate a new buffer
-                    // that is not a direct buffer.
-                    decompressedBuffer.position(0);
-                    ByteBuffer nonDirectBuffer = ByteBuffer.allocate(colBytes);
-                    nonDirectBuffer.put(decompressedBuffer);
-                    nonDirectBuffer.position(0);
-                    this.resultset.binaryRows.add(nonDirectBuffer);
-                } else {
-                    this.resultset.binaryRows.add(decompressedBuffer);
+            } else if (width == 2) {
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = column.getShort(position + 2 * i) & 0xffff;
                 }
-                columnIndex += 1;
             } else {
-                this.resultset.binaryRows.add(compRow);
+                column.asIntBuffer().get(codes);
+            }
+            this.dictionaryCodes[columnIndex - 1] = codes;
+        }
+        return codes;
+    }
+
+    @Override
+    public int[] getDictionaryOffsets(int columnIndex) throws SQLException {
+        if (!isDictionaryEncoded(columnIndex)) {
+            throw new SQLException("Column " + columnIndex + " is not dictionary encoded");
+        }
+        return this.strOffsetVector.get(columnIndex - 1);
+    }
+
+    @Override
+    public ByteBuffer getDictionaryBytes(int columnIndex) throws SQLException {
+        if (!isDictionaryEncoded(columnIndex)) {
+            throw new SQLException("Column " + columnIndex + " is not dictionary encoded");
+        }
+        return this.resultset.dictionaries.get(columnIndex - 1).duplicate();
+    }
+
+    /**
+     * @return the distinct strings of a dictionary column, decoded once per page.
+     */
+    private String[] getDictionaryStrings(int columnIndex) throws SQLException {
+        String[] strings = this.dictionaryStrings[columnIndex - 1];
+        if (strings == null) {
+            int[] offsets = getDictionaryOffsets(columnIndex);
+            ByteBuffer bytes = getDictionaryBytes(columnIndex);
+            byte[] array = bytes.array();
+            int base = bytes.arrayOffset() + bytes.position();
+            strings = new String[offsets.length - 1];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = new String(array, base + offsets[i],
+                        offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
             }
+            this.dictionaryStrings[columnIndex - 1] = strings;
+        }
+        return strings;
+    }
+
+    /**
+     * Builds the plain offsets and bytes of a dictionary column.
+     */
+    private void expandDictionary(int columnIndex) throws SQLException {
+        if (this.expandedBytes[columnIndex - 1] != null) {
+            return;
+        }
+        int[] codes = getDictionaryCodes(columnIndex);
+        int[] dictOffsets = getDictionaryOffsets(columnIndex);
+        ByteBuffer dictBytes = getDictionaryBytes(columnIndex);
+        int[] offsets = new int[codes.length + 1];
+        for (int i = 0; i < codes.length; i++) {
+            offsets[i + 1] = offsets[i] + dictOffsets[codes[i] + 1] - dictOffsets[codes[i]];
+        }
+        ByteBuffer bytes = heapBufferPool.acquire(offsets[codes.length]);
+        addPooledBuffer(bytes);
+        byte[] src = dictBytes.array();
+        int base = dictBytes.arrayOffset() + dictBytes.position();
+        for (int i = 0; i < codes.length; i++) {
+            System.arraycopy(src, base + dictOffsets[codes[i]], bytes.array(),
+                    bytes.arrayOffset() + offsets[i], offsets[i + 1] - offsets[i]);
         }
+        this.expandedOffsets[columnIndex - 1] = offsets;
+        this.expandedBytes[columnIndex - 1] = bytes;
+    }
+
+    @Override
+    public void copyLongs(int columnIndex, int row, long[] dest, int destPos, int length)
+            throws SQLException {
+        LongBuffer column = getLongColumn(columnIndex);
+        column.position(row);
+        column.get(dest, destPos, length);
+    }
+
+    @Override
+    public void copyDoubles(int columnIndex, int row, double[] dest, int destPos, int length)
+            throws SQLException {
+        DoubleBuffer column = getDoubleColumn(columnIndex);
+        column.position(row);
+        column.get(dest, destPos, length);
+    }
+
+    @Override
+    public void copyInts(int columnIndex, int row, int[] dest, int destPos, int length)
+            throws SQLException {
+        IntBuffer column = getIntColumn(columnIndex);
+        column.position(row);
+        column.get(dest, destPos, length);
     }
 
     @Override
     public boolean isWrapperFor(Class<?> arg0) {
-        // TODO Auto-generated method stub
-        return false;
+        return arg0.isInstance(this) || arg0.isInstance(this.metrics);
     }
 
     @Override
     public <T> T unwrap(Class<T> arg0) throws SQLException {
+        if (arg0.isInstance(this)) {
+            return arg0.cast(this);
+        }
+        if (arg0.isInstance(this.metrics)) {
+            return arg0.cast(this.metrics);
+        }
         throw new SQLException("Method not supported");
     }
 
@@ -268,6 +890,33 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public void close() throws SQLException {
+        if (this.cursor != null) {
+            this.cursor.close();
+            this.cursor = null;
+        }
+        if (this.parts != null) {
+            // Parts still running are closed once they complete.
+            for (CompletableFuture<QflockResultSet> part : this.parts) {
+                part.whenComplete(new BiConsumer<QflockResultSet, Throwable>() {
+                    public void accept(QflockResultSet result, Throwable error) {
+                        if (result != null) {
+                            try {
+                                result.close();
+                            } catch (SQLException e) {
+                                logger.warn("failed to close result: " + e);
+                            }
+                        }
+                    }
+                });
+            }
+            this.parts = null;
+        }
+        if (this.arrowReader != null) {
+            closeArrowStream();
+        }
+        if (this.resultset != null) {
+            releaseColumns();
+        }
         this.resultset = null;
         this.isClosed = true;
         this.statement = null;
@@ -441,7 +1090,7 @@ public class QflockResultSet implements ResultSet {
     @Override
     public double getDouble(int columnIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getDouble((rowIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -451,7 +1100,7 @@ public class QflockResultSet implements ResultSet {
     }
     public double getDouble(int columnIndex, int rIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getDouble((rIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -472,13 +1121,13 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public int getFetchSize() throws SQLException {
-        throw new SQLException("Method not supported");
+        return (this.cursor != null) ? this.cursor.getFetchSize() : 0;
     }
 
     @Override
     public float getFloat(int columnIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getFloat((rowIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -488,7 +1137,7 @@ public class QflockResultSet implements ResultSet {
     }
     public float getFloat(int columnIndex, int rIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getFloat((rIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -510,7 +1159,7 @@ public class QflockResultSet implements ResultSet {
     @Override
     public int getInt(int columnIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getInt((rowIndex - 1) * 4);
         } catch (Exception e) {
             throw new SQLException(
@@ -520,7 +1169,7 @@ public class QflockResultSet implements ResultSet {
     }
     public int getInt(int columnIndex, int rIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getInt((rIndex - 1) * 4);
         } catch (Exception e) {
             throw new SQLException(
@@ -537,7 +1186,7 @@ public class QflockResultSet implements ResultSet {
     @Override
     public long getLong(int columnIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getLong((rowIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -547,7 +1196,7 @@ public class QflockResultSet implements ResultSet {
     }
     public long getLong(int columnIndex, int rIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getLong((rIndex - 1) * 8);
         } catch (Exception e) {
             throw new SQLException(
@@ -596,6 +1245,10 @@ public class QflockResultSet implements ResultSet {
         return getString(findColumn(columnLabel));
     }
 
+    /**
+     * @return the number of rows in the current page, which is all the rows
+     *         unless the query was issued with a fetch size.
+     */
     public int getNumRows() {
         return this.resultset.getNumRows();
     }
@@ -666,7 +1319,7 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public int getRow() {
-        return this.rowIndex;
+        return this.pageStartRow + this.rowIndex;
     }
 
     @Override
@@ -692,7 +1345,7 @@ public class QflockResultSet implements ResultSet {
     @Override
     public short getShort(int columnIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getShort((rowIndex - 1) * 2);
         } catch (Exception e) {
             throw new SQLException(
@@ -702,7 +1355,7 @@ public class QflockResultSet implements ResultSet {
     }
     public short getShort(int columnIndex, int rIndex) throws SQLException {
         try {
-            return this.resultset.getBinaryRows().get(columnIndex - 1)
+            return getColumn(columnIndex)
                     .getShort((rIndex - 1) * 2);
         } catch (Exception e) {
             throw new SQLException(
@@ -723,27 +1376,22 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public String getString(int columnIndex) throws SQLException {
-        try {
-            // Integer stringLen = this.resultset.columnTypeBytes.get(columnIndex - 1);
-            Integer stringLen = this.resultset.strLenVector.get(columnIndex - 1).get(rowIndex - 1);
-            Integer offset = this.strOffsetVector.get(columnIndex - 1).get(rowIndex - 1);
-            byte [] buffer = this.resultset.getBinaryRows().get(columnIndex - 1)
-                    .array();
-            return new String(buffer, offset, stringLen, StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new SQLException(
-                    "Cannot convert column " + columnIndex + " to string: " + e,
-                    e);
-        }
+        return getString(columnIndex, rowIndex);
     }
     public String getString(int columnIndex, int rIndex) throws SQLException {
         try {
+            if (this.dictionaryEncoded[columnIndex - 1]) {
+                // Rows with the same value share one String.
+                return getDictionaryStrings(columnIndex)[
+                        getDictionaryCodes(columnIndex)[rIndex - 1]];
+            }
 //            Integer stringLen = this.resultset.columnTypeBytes.get(columnIndex - 1);
-            Integer stringLen = this.resultset.strLenVector.get(columnIndex - 1).get(rIndex - 1);
-            Integer offset = this.strOffsetVector.get(columnIndex - 1).get(rIndex - 1);
-            byte [] buffer = this.resultset.getBinaryRows().get(columnIndex - 1)
-                    .array();
-            return new String(buffer, offset, stringLen, StandardCharsets.UTF_8);
+            int[] offsets = this.strOffsetVector.get(columnIndex - 1);
+            int offset = offsets[rIndex - 1];
+            int stringLen = offsets[rIndex] - offset;
+            ByteBuffer column = getColumn(columnIndex);
+            return new String(column.array(), column.arrayOffset() + column.position() + offset,
+                              stringLen, StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new SQLException(
                     "Cannot convert column " + columnIndex + " to string: " + e,
@@ -835,7 +1483,8 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public boolean isAfterLast() {
-        return (getRow()>this.resultset.getNumRows());
+        // Pages and parts still to come follow the current page.
+        return (this.rowIndex > this.resultset.getNumRows() && !hasMorePages());
     }
 
     @Override
@@ -855,7 +1504,7 @@ public class QflockResultSet implements ResultSet {
 
     @Override
     public boolean isLast() {
-        return (getRow()==this.resultset.getNumRows());
+        return (this.rowIndex == this.resultset.getNumRows() && !hasMorePages());
     }
 
     @Override
@@ -877,8 +1526,14 @@ public class QflockResultSet implements ResultSet {
     }
 
     @Override
-    public boolean next() {
+    public boolean next() throws SQLException {
         this.rowIndex += 1;
+        while (this.rowIndex > this.resultset.numRows && hasMorePages()) {
+            // Current page is consumed, continue with the next one,
+            // skipping empty pages and parts.
+            nextPage();
+            this.rowIndex = 1;
+        }
         // was .getRows().size()
         return this.rowIndex <= this.resultset.numRows;
     }
@@ -926,9 +1581,13 @@ public class QflockResultSet implements ResultSet {
     }
 
     @Override
-    public void setFetchSize(int arg0) {
-        // TODO Auto-generated method stub
-
+    public void setFetchSize(int rows) throws SQLException {
+        if (rows < 0) {
+            throw new SQLException("fetch size must be >= 0: " + rows);
+        }
+        if (this.cursor != null && rows > 0) {
+            this.cursor.setFetchSize(rows);
+        }
     }
 
     @Override
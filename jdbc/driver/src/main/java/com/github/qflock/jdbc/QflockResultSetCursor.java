@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.qflock.jdbc.api.QFResultSet;
+import com.github.qflock.jdbc.api.QFSQLException;
+import com.github.qflock.jdbc.api.QflockJdbcService.Client;
+
+/**
+ * Fetches the pages of a result set which the server keeps open because
+ * the query was issued with a fetch size.
+ * The next page is requested in the background as soon as the current page
+ * is handed out, so at most one page is in flight while the caller
+ * consumes the current one.
+ */
+public class QflockResultSetCursor {
+
+    final Logger logger = LoggerFactory.getLogger(QflockResultSetCursor.class);
+
+    private static final ExecutorService prefetchExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "qflock-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private QflockConnection connection;
+    private int resultSetId;
+    private int fetchSize;
+    private Future<QFResultSet> nextPage;
+    // Set once the server has sent the last page and released the result set.
+    private volatile boolean serverDone;
+
+    public QflockResultSetCursor(QflockConnection connection, int resultSetId,
+                                 int fetchSize) {
+        this.connection = connection;
+        this.resultSetId = resultSetId;
+        this.fetchSize = fetchSize;
+        this.serverDone = false;
+    }
+
+    public int getFetchSize() {
+        return this.fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Starts fetching the next page if it is not already in flight.
+     */
+    public synchronized void prefetch() {
+        if (this.nextPage == null && !this.serverDone) {
+            final int rows = this.fetchSize;
+            this.nextPage = prefetchExecutor.submit(new Callable<QFResultSet>() {
+                public QFResultSet call() throws SQLException {
+                    return fetch(rows);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the next page, waiting for it if it is still in flight.
+     */
+    public QFResultSet next() throws SQLException {
+        Future<QFResultSet> page;
+        synchronized (this) {
+            prefetch();
+            page = this.nextPage;
+            this.nextPage = null;
+        }
+        if (page == null) {
+            throw new SQLException("result set " + resultSetId + " has no more pages");
+        }
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause().toString(), "08S01", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e.toString(), "08S01", e);
+        }
+    }
+
+    private QFResultSet fetch(int rows) throws SQLException {
+        Client client = null;
+        try {
+            client = this.connection.lockClient();
+            QFResultSet page = client.statement_fetchNext(resultSetId, rows);
+            if (!page.hasMore) {
+                this.serverDone = true;
+            }
+            return page;
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.connection.unlockClient(client);
+        }
+    }
+
+    /**
+     * Releases the result set on the server if it was not fully read.
+     * A fetch which is still in flight is allowed to complete first,
+     * since interrupting it would leave the transport mid-message.
+     */
+    public void close() throws SQLException {
+        Future<QFResultSet> page;
+        synchronized (this) {
+            page = this.nextPage;
+            this.nextPage = null;
+        }
+        if (page != null) {
+            try {
+                page.get();
+            } catch (Exception e) {
+                logger.debug("ignoring prefetch failure on close {}", e.toString());
+            }
+        }
+        if (this.serverDone) {
+            return;
+        }
+        Client client = null;
+        try {
+            client = this.connection.lockClient();
+            client.statement_closeResultSet(resultSetId);
+            this.serverDone = true;
+        } catch (QFSQLException e) {
+            throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
+        } catch (Exception e) {
+            throw new SQLException(e.toString(), "08S01", e);
+        } finally {
+            this.connection.unlockClient(client);
+        }
+    }
+}
@@ -16,43 +16,96 @@
  */
 package com.github.qflock.jdbc;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.qflock.jdbc.api.QFQueryRange;
 import com.github.qflock.jdbc.api.QFResultSet;
 import com.github.qflock.jdbc.api.QFSQLException;
 import com.github.qflock.jdbc.api.QFStatement;
 import com.github.qflock.jdbc.api.QflockJdbcService.Client;
 import com.github.qflock.jdbc.api.statement_getWarnings_return;
 
+/**
+ * Setting the connection property parallelism to N makes executeQuery
+ * split the row groups of the tableName table into N ranges, which run
+ * concurrently on the transports of the connection.  The rows of the
+ * ranges are returned in order as one result set.  There are never more
+ * ranges than row groups, nor than the maxViews property, since the server
+ * runs only that many queries on a table at once.
+ */
 public class QflockStatement implements Statement {
 
+    public static final String PARALLELISM = "parallelism";
+
+    private static final Logger logger = LoggerFactory.getLogger(QflockStatement.class);
+
     private QflockConnection connection;
     private QFStatement statement;
+    // Rows per page requested from the server, 0 returns the whole result at once.
+    private int fetchSize = 0;
+    // Queries added with addBatch, sent together by executeQueryBatch.
+    private List<QFQueryRange> batch = new ArrayList<QFQueryRange>();
+    private QflockResultSet[] batchResults;
+    private int[] batchRowCounts;
+    // Metrics of the last query executed.
+    private volatile QflockStatementMetrics metrics;
 
     public QflockStatement(QflockConnection connection, QFStatement stat) {
         this.connection = connection;
         this.statement = stat;
     }
 
+    /**
+     * Also unwraps to the QflockStatementMetrics of the last query executed.
+     */
     public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        QflockStatementMetrics lastMetrics = this.metrics;
+        if (lastMetrics != null && iface.isInstance(lastMetrics)) {
+            return iface.cast(lastMetrics);
+        }
         throw new SQLException("Method not supported: unwrap");
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        throw new SQLException("Method not supported: isWrapperFor");
-        //return iface == java.sql.Statement.class || iface == CrystalStatement.class;
+        QflockStatementMetrics lastMetrics = this.metrics;
+        return iface.isInstance(this) || (lastMetrics != null && iface.isInstance(lastMetrics));
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
+        int parallelism = getParallelism();
+        // Parquet and arrow results are read whole, so only row results are split.
+        String resultApi = this.connection.getClientInfo("resultApi");
+        if (parallelism > 1 && (resultApi == null || resultApi.equals("default"))) {
+            return executeParallel(sql, parallelism);
+        }
+        QflockStatementMetrics queryMetrics = QflockStatementMetrics.forConnection(this.connection);
+        this.metrics = queryMetrics;
+        long startTime = System.nanoTime();
         Client client = null;
         try {
             client = this.connection.lockClient();
-            QFResultSet resultset = client.statement_executeQuery(statement, sql);
-            return new QflockResultSet(resultset, this.connection.getClientInfo("tempDir"));
+            QFResultSet resultset = client.statement_executeQuery(statement, sql, fetchSize);
+            queryMetrics.addExecuteNanos(System.nanoTime() - startTime);
+            QflockResultSetCursor cursor = resultset.hasMore ?
+                    new QflockResultSetCursor(this.connection, resultset.id, fetchSize) : null;
+            return new QflockResultSet(resultset, this.connection.getClientInfo("tempDir"),
+                                       cursor, queryMetrics);
         } catch (QFSQLException e) {
             throw new SQLException(e.reason, e.sqlState, e.vendorCode, e);
         } catch (Exception e) {
@@ -62,6 +115,114 @@ public class QflockStatement implements Statement {
         }
     }
 
+    private int getIntProperty(String name, int defaultValue) throws SQLException {
+        String value = this.connection.getClientInfo(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("invalid " + name + ": " + value, e);
+        }
+    }
+
+    private int getParallelism() throws SQLException {
+        return getIntProperty(PARALLELISM, 1);
+    }
+
+    /**
+     * Runs the query over ranges of the table's row groups at the same time.
+     * The result set reads the ranges in order, waiting for each one
+     * only once the rows before it are consumed.
+     */
+    private QflockResultSet executeParallel(String sql, int parallelism) throws SQLException {
+        String tableName = this.connection.getClientInfo("tableName");
+        if (tableName == null) {
+            throw new SQLException(PARALLELISM + " requires the tableName property");
+        }
+        int rowGroups = this.connection.getRowGroupCount(tableName);
+        int maxViews = getIntProperty("maxViews", QflockConnection.DEFAULT_MAX_VIEWS);
+        int ranges = Math.min(Math.min(parallelism, rowGroups), maxViews);
+        final QflockPreparedStatement select =
+                (QflockPreparedStatement) this.connection.prepareStatement(sql);
+        select.setFetchSize(fetchSize);
+        List<CompletableFuture<QflockResultSet>> parts =
+                new ArrayList<CompletableFuture<QflockResultSet>>(Math.max(ranges, 1));
+        if (ranges <= 1) {
+            parts.add(select.executeQueryAsync());
+        } else {
+            // The first rowGroups % ranges ranges get one extra row group.
+            int offset = 0;
+            for (int i = 0; i < ranges; i++) {
+                int count = rowGroups / ranges + (i < rowGroups % ranges ? 1 : 0);
+                select.setRowGroupRange(offset, count);
+                parts.add(select.executeQueryAsync());
+                offset += count;
+            }
+        }
+        // The server statement goes back to the cache once all ranges have run.
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).whenComplete(
+                new BiConsumer<Void, Throwable>() {
+                    public void accept(Void result, Throwable error) {
+                        try {
+                            select.close();
+                        } catch (SQLException e) {
+                            logger.warn("failed to close statement: " + e);
+                        }
+                    }
+                });
+        QflockResultSet first;
+        try {
+            first = QflockResultSet.await(parts.get(0));
+        } catch (SQLException e) {
+            closeParts(parts);
+            throw e;
+        }
+        first.addParts(parts.subList(1, parts.size()));
+        this.metrics = first.unwrap(QflockStatementMetrics.class);
+        return first;
+    }
+
+    /**
+     * Closes the result set of each part once it arrives, so that the ranges
+     * still running release their server cursors and buffers.
+     */
+    private static void closeParts(List<CompletableFuture<QflockResultSet>> parts) {
+        for (CompletableFuture<QflockResultSet> part : parts) {
+            part.whenComplete(new BiConsumer<QflockResultSet, Throwable>() {
+                public void accept(QflockResultSet resultSet, Throwable error) {
+                    if (resultSet != null) {
+                        try {
+                            resultSet.close();
+                        } catch (SQLException e) {
+                            logger.warn("failed to close result set: " + e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits the query and returns without waiting for the server.
+     * The query runs on its own transport of the connection, so the caller
+     * can process earlier results while the server executes it.
+     */
+    public CompletableFuture<QflockResultSet> executeQueryAsync(final String sql) {
+        final CompletableFuture<QflockResultSet> future = new CompletableFuture<QflockResultSet>();
+        QflockConnection.asyncExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete((QflockResultSet) executeQuery(sql));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
     public int executeUpdate(String sql) throws SQLException {
         throw new SQLException("Method not supported: executeUpdate");
     }
@@ -251,11 +412,14 @@ public class QflockStatement implements Statement {
     }
 
     public void setFetchSize(int rows) throws SQLException {
-        throw new SQLException("Method not supported: setFetchSize");
+        if (rows < 0) {
+            throw new SQLException("fetch size must be >= 0: " + rows);
+        }
+        this.fetchSize = rows;
     }
 
     public int getFetchSize() throws SQLException {
-        throw new SQLException("Method not supported: getFetchSize");
+        return this.fetchSize;
     }
 
     public int getResultSetConcurrency() throws SQLException {
@@ -277,15 +441,63 @@ public class QflockStatement implements Statement {
     }
 
     public void addBatch(String sql) throws SQLException {
-        throw new SQLException("Method not supported: addBatch");
+        addBatch(sql, -1, -1);
+    }
+
+    /**
+     * Adds a query over rowGroupCount row groups starting at rowGroupOffset.
+     * A negative value keeps the rowGroupOffset or rowGroupCount property
+     * of the connection.
+     */
+    public void addBatch(String sql, int rowGroupOffset, int rowGroupCount) {
+        this.batch.add(new QFQueryRange(sql, rowGroupOffset, rowGroupCount));
     }
 
     public void clearBatch() throws SQLException {
-        throw new SQLException("Method not supported: clearBatch");
+        this.batch.clear();
     }
 
+    /**
+     * Sends all the queries of the batch to the server in one call.
+     * The results are returned as the server completes them.
+     */
+    public QflockBatchResults executeQueryBatch() throws SQLException {
+        try {
+            return QflockBatchResults.execute(this.connection, this.batch, fetchSize);
+        } finally {
+            this.batch.clear();
+        }
+    }
+
+    /**
+     * Runs the batch and waits for all of its results, which are then
+     * available from getBatchResults() in the order the queries were added.
+     * The queries are not updates, so each gets SUCCESS_NO_INFO rather than
+     * an update count.  Their row counts are available from getBatchRowCounts().
+     *
+     * @return SUCCESS_NO_INFO for each query.
+     * @throws BatchUpdateException if a query failed.
+     */
     public int[] executeBatch() throws SQLException {
-        throw new SQLException("Method not supported: executeBatch");
+        int size = this.batch.size();
+        QflockBatchResults results = executeQueryBatch();
+        this.batchResults = results.awaitAll();
+        this.batchRowCounts = results.getRowCounts();
+        int[] counts = new int[size];
+        Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+        return counts;
+    }
+
+    public QflockResultSet[] getBatchResults() {
+        return this.batchResults;
+    }
+
+    /**
+     * @return the number of rows of each result of the last executeBatch()
+     *         (of the first page with a fetch size).
+     */
+    public int[] getBatchRowCounts() {
+        return this.batchRowCounts;
     }
 
     public Connection getConnection() throws SQLException {
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.qflock.jdbc.api.QFResultSet;
+
+/**
+ * Timings and sizes of one query, obtained with
+ * ResultSet.unwrap(QflockStatementMetrics.class), or from the statement
+ * for its last query.
+ * Times are in nanoseconds:
+ * <ul>
+ * <li>connect: obtaining the connection, including any wait for the pool.
+ *     Only the first query after the connection was obtained counts it.</li>
+ * <li>execute: the executeQuery call until the first page arrived.</li>
+ * <li>server: the part of execute and fetch spent by the server running
+ *     the query and encoding the pages.  The rest of execute is transfer.</li>
+ * <li>fetch: time spent waiting for pages after the first.</li>
+ * <li>decompress: decompressing columns, summed over all threads.</li>
+ * <li>materialize: indexing the pages and decoding Arrow batches.</li>
+ * </ul>
+ * Every value is also added to the metrics of the connection and the driver.
+ */
+public class QflockStatementMetrics {
+
+    private final QflockMetrics[] aggregates;
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+    private final AtomicLong executeNanos = new AtomicLong();
+    private final AtomicLong serverNanos = new AtomicLong();
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+    private final AtomicLong materializeNanos = new AtomicLong();
+    private long[] compressedColumnBytes = new long[0];
+    private long[] uncompressedColumnBytes = new long[0];
+
+    /**
+     * @param aggregates the metrics which every value is also added to
+     */
+    public QflockStatementMetrics(QflockMetrics... aggregates) {
+        this.aggregates = aggregates;
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addQuery();
+        }
+    }
+
+    /**
+     * Creates the metrics of a query about to run on the connection.
+     */
+    static QflockStatementMetrics forConnection(QflockConnection connection) {
+        QflockStatementMetrics metrics = new QflockStatementMetrics(
+                connection.getMetrics(), QflockDriver.metrics);
+        metrics.addConnectNanos(connection.takeConnectNanos());
+        return metrics;
+    }
+
+    /**
+     * Adds the rows and bytes of a page received from the server.
+     */
+    void addPage(QFResultSet page) {
+        long compressed = 0;
+        long uncompressed = 0;
+        synchronized (this) {
+            int columns = page.getColumnBytesSize();
+            if (columns > compressedColumnBytes.length) {
+                compressedColumnBytes = Arrays.copyOf(compressedColumnBytes, columns);
+                uncompressedColumnBytes = Arrays.copyOf(uncompressedColumnBytes, columns);
+            }
+            for (int i = 0; i < columns; i++) {
+                int colBytes = page.columnBytes.get(i);
+                // Without compression, compressedColumnBytes holds the raw size.
+                int compBytes = page.getCompressedColumnBytesSize() > i ?
+                        page.compressedColumnBytes.get(i) : colBytes;
+                compressedColumnBytes[i] += compBytes;
+                uncompressedColumnBytes[i] += colBytes;
+                compressed += compBytes;
+                uncompressed += colBytes;
+            }
+        }
+        if (page.arrowStream != null) {
+            compressed += page.arrowStream.remaining();
+            uncompressed += page.arrowStream.remaining();
+        }
+        if (page.parquet != null) {
+            for (ByteBuffer file : page.parquet) {
+                compressed += file.remaining();
+                uncompressed += file.remaining();
+            }
+        }
+        compressedBytes.addAndGet(compressed);
+        uncompressedBytes.addAndGet(uncompressed);
+        rows.addAndGet(page.numRows);
+        pages.incrementAndGet();
+        if (page.isSetServerTimeNs()) {
+            addServerNanos(page.serverTimeNs);
+        }
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addPage(page.numRows, compressed, uncompressed);
+        }
+    }
+
+    void addConnectNanos(long nanos) {
+        connectNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addConnectNanos(nanos);
+        }
+    }
+
+    void addExecuteNanos(long nanos) {
+        executeNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addExecuteNanos(nanos);
+        }
+    }
+
+    private void addServerNanos(long nanos) {
+        serverNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addServerNanos(nanos);
+        }
+    }
+
+    void addFetchNanos(long nanos) {
+        fetchNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addFetchNanos(nanos);
+        }
+    }
+
+    void addDecompressNanos(long nanos) {
+        decompressNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addDecompressNanos(nanos);
+        }
+    }
+
+    void addMaterializeNanos(long nanos) {
+        materializeNanos.addAndGet(nanos);
+        for (QflockMetrics metrics : aggregates) {
+            metrics.addMaterializeNanos(nanos);
+        }
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    public long getConnectNanos() {
+        return connectNanos.get();
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos.get();
+    }
+
+    public long getServerNanos() {
+        return serverNanos.get();
+    }
+
+    public long getFetchNanos() {
+        return fetchNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    public long getMaterializeNanos() {
+        return materializeNanos.get();
+    }
+
+    /**
+     * @return the bytes received from the server for each column, from 0.
+     */
+    public synchronized long[] getCompressedColumnBytes() {
+        return compressedColumnBytes.clone();
+    }
+
+    /**
+     * @return the decompressed bytes of each column, from 0.
+     */
+    public synchronized long[] getUncompressedColumnBytes() {
+        return uncompressedColumnBytes.clone();
+    }
+
+    /**
+     * @return all bytes received from the server, including Arrow streams
+     *         and parquet files which have no per column sizes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "rows:" + getRows() + " pages:" + getPages() +
+                " compressedBytes:" + getCompressedBytes() +
+                " uncompressedBytes:" + getUncompressedBytes() +
+                " connectNs:" + getConnectNanos() + " executeNs:" + getExecuteNanos() +
+                " serverNs:" + getServerNanos() + " fetchNs:" + getFetchNanos() +
+                " decompressNs:" + getDecompressNanos() +
+                " materializeNs:" + getMaterializeNanos();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.apache.thrift.TConfiguration;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.layered.TFramedTransport;
+
+import com.github.qflock.jdbc.api.QflockJdbcService;
+
+/**
+ * Transport and protocol settings of a connection, taken from the
+ * connection properties or from ;key=value pairs at the end of the url.
+ * <ul>
+ * <li>transport: buffered (default) or framed.  Must match the server.</li>
+ * <li>protocol: binary (default) or compact.  Must match the server.</li>
+ * <li>socketBufferSize: TCP send and receive buffer in bytes, 0 leaves the
+ *     OS default.  Large buffers are needed to fill a WAN link with a
+ *     high bandwidth-delay product.</li>
+ * <li>ioBufferSize: size of the stream buffers over the socket.</li>
+ * <li>tcpNoDelay: disables Nagle, true by default.</li>
+ * <li>maxMessageSize: largest message accepted from the server.</li>
+ * </ul>
+ */
+public class QflockTransportOptions {
+
+    public static final String TRANSPORT = "transport";
+    public static final String PROTOCOL = "protocol";
+    public static final String SOCKET_BUFFER_SIZE = "socketBufferSize";
+    public static final String IO_BUFFER_SIZE = "ioBufferSize";
+    public static final String TCP_NO_DELAY = "tcpNoDelay";
+    public static final String MAX_MESSAGE_SIZE = "maxMessageSize";
+    public static final String CONNECT_TIMEOUT = "connectTimeout";
+
+    // binary fields at least this large are read into pooled buffers.
+    private static final int POOLED_BINARY_SIZE = 64 * 1024;
+    private static final QflockBufferPool binaryBufferPool =
+            new QflockBufferPool("binary", false, 256L * 1024 * 1024);
+
+    private final boolean framed;
+    private final boolean compact;
+    private final int socketBufferSize;
+    private final int ioBufferSize;
+    private final boolean tcpNoDelay;
+    private final int maxMessageSize;
+    private final int connectTimeout;
+
+    public QflockTransportOptions(Properties info) throws SQLException {
+        String transport = info.getProperty(TRANSPORT, "buffered");
+        String protocol = info.getProperty(PROTOCOL, "binary");
+        if (!transport.equals("buffered") && !transport.equals("framed")) {
+            throw new SQLException("unknown transport " + transport);
+        }
+        if (!protocol.equals("binary") && !protocol.equals("compact")) {
+            throw new SQLException("unknown protocol " + protocol);
+        }
+        this.framed = transport.equals("framed");
+        this.compact = protocol.equals("compact");
+        this.socketBufferSize = getInt(info, SOCKET_BUFFER_SIZE, 0);
+        this.ioBufferSize = getInt(info, IO_BUFFER_SIZE, 64 * 1024);
+        this.tcpNoDelay = Boolean.parseBoolean(info.getProperty(TCP_NO_DELAY, "true"));
+        this.maxMessageSize = getInt(info, MAX_MESSAGE_SIZE, Integer.MAX_VALUE);
+        this.connectTimeout = getInt(info, CONNECT_TIMEOUT, 0);
+    }
+
+    private static int getInt(Properties info, String key, int defaultValue)
+            throws SQLException {
+        String value = info.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("invalid " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the properties with any ;key=value pairs of the url added.
+     * Properties passed by the caller take precedence over the url.
+     */
+    public static Properties parseUrl(String url, Properties info) {
+        Properties merged = new Properties();
+        String[] parts = url.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq > 0) {
+                merged.setProperty(parts[i].substring(0, eq).trim(),
+                        parts[i].substring(eq + 1).trim());
+            }
+        }
+        if (info != null) {
+            merged.putAll(info);
+        }
+        return merged;
+    }
+
+    /**
+     * Opens a new transport to the server and returns a client on it.
+     */
+    public QflockJdbcService.Client openClient(URI r) throws TException {
+        TConfiguration config = new TConfiguration(maxMessageSize, maxMessageSize,
+                TConfiguration.DEFAULT_RECURSION_DEPTH);
+        Socket socket = new Socket();
+        TTransport transport;
+        try {
+            // Buffer sizes above 64KB must be set before connecting
+            // so that TCP window scaling is negotiated.
+            if (socketBufferSize > 0) {
+                socket.setReceiveBufferSize(socketBufferSize);
+                socket.setSendBufferSize(socketBufferSize);
+            }
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(r.getHost(), r.getPort()), connectTimeout);
+            transport = new FailureTrackingTransport(config,
+                    new BufferedInputStream(socket.getInputStream(), ioBufferSize),
+                    new BufferedOutputStream(socket.getOutputStream(), ioBufferSize));
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw new TTransportException(TTransportException.NOT_OPEN, e);
+        }
+        if (framed) {
+            transport = new TFramedTransport(transport, maxMessageSize);
+        }
+        return new QflockJdbcService.Client(getProtocolFactory().getProtocol(transport));
+    }
+
+    /**
+     * Returns a factory of the protocol the clients use, which reads large
+     * binary fields into pooled buffers.  Callers hand those back with
+     * releaseBinary once they are done.
+     */
+    public TProtocolFactory getProtocolFactory() {
+        return new TProtocolFactory() {
+            public TProtocol getProtocol(TTransport transport) {
+                return compact
+                        ? new PooledCompactProtocol(transport)
+                        : new PooledBinaryProtocol(transport);
+            }
+        };
+    }
+
+    /**
+     * Hands a buffer returned by readBinary back to the pool.
+     * Slices of a frame and small buffers are not pooled and are ignored.
+     */
+    public static void releaseBinary(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() >= POOLED_BINARY_SIZE) {
+            binaryBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Adds a reference to a buffer returned by readBinary.
+     * @return false if the buffer is not pooled.
+     */
+    static boolean retainBinary(ByteBuffer buffer) {
+        return buffer != null && binaryBufferPool.retain(buffer);
+    }
+
+    private static ByteBuffer readBinary(TTransport transport, int size) throws TException {
+        if (size < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE,
+                    "Negative length: " + size);
+        }
+        transport.checkReadBytesAvailable(size);
+        if (transport.getBytesRemainingInBuffer() >= size) {
+            // The framed transport reads each frame into a new array,
+            // so the field can point into it without a copy.
+            ByteBuffer bb = ByteBuffer.wrap(transport.getBuffer(),
+                    transport.getBufferPosition(), size).slice();
+            transport.consumeBuffer(size);
+            return bb;
+        }
+        if (size < POOLED_BINARY_SIZE) {
+            byte[] buf = new byte[size];
+            transport.readAll(buf, 0, size);
+            return ByteBuffer.wrap(buf);
+        }
+        ByteBuffer buffer = binaryBufferPool.acquire(size);
+        transport.readAll(buffer.array(), buffer.arrayOffset(), size);
+        return buffer;
+    }
+
+    /**
+     * Reports itself closed once a read or write failed, since the
+     * stream may then be left in the middle of a message.
+     * QflockConnection drops clients whose transport is not open.
+     */
+    private static class FailureTrackingTransport extends TIOStreamTransport {
+        private volatile boolean failed;
+
+        FailureTrackingTransport(TConfiguration config, InputStream in, OutputStream out)
+                throws TTransportException {
+            super(config, in, out);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !failed && super.isOpen();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            try {
+                return super.read(buf, off, len);
+            } catch (TTransportException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws TTransportException {
+            try {
+                super.write(buf, off, len);
+            } catch (TTransportException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws TTransportException {
+            try {
+                super.flush();
+            } catch (TTransportException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    private static class PooledBinaryProtocol extends TBinaryProtocol {
+        PooledBinaryProtocol(TTransport transport) {
+            super(transport);
+        }
+
+        @Override
+        public ByteBuffer readBinary() throws TException {
+            return QflockTransportOptions.readBinary(getTransport(), readI32());
+        }
+    }
+
+    private static class PooledCompactProtocol extends TCompactProtocol {
+        private final byte[] varintByte = new byte[1];
+
+        PooledCompactProtocol(TTransport transport) {
+            super(transport);
+        }
+
+        @Override
+        public ByteBuffer readBinary() throws TException {
+            return QflockTransportOptions.readBinary(getTransport(), readVarint32());
+        }
+
+        private int readVarint32() throws TException {
+            int result = 0;
+            int shift = 0;
+            while (true) {
+                getTransport().readAll(varintByte, 0, 1);
+                byte b = varintByte[0];
+                result |= (b & 0x7f) << shift;
+                if ((b & 0x80) != 0x80) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
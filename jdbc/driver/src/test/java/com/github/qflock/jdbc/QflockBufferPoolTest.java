@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFResultSet;
+
+public class QflockBufferPoolTest {
+
+    private static long inUseBytes(String pool) throws Exception {
+        ObjectName name = new ObjectName(QflockMetrics.DOMAIN + ":type=BufferPool,name=" + pool);
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "InUseBytes");
+    }
+
+    private static QflockResultSet newResultSet() throws SQLException {
+        long[] longs = new long[4096];
+        String[] strings = new String[4096];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = i % 7;
+            strings[i] = "value-" + (i % 5);
+        }
+        QFResultSet result = QflockTestResults.newResult(longs.length);
+        QflockTestResults.addLongs(result, "l", longs, QflockCodec.ZSTD);
+        QflockTestResults.addStrings(result, "s", strings, QflockCodec.LZ4);
+        return new QflockResultSet(result, "/tmp");
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        QflockBufferPool pool = new QflockBufferPool(false, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(10000);
+        assertEquals(10000, buffer.remaining());
+        pool.release(buffer);
+        assertEquals(0, pool.getInUseBytes());
+        assertSame(buffer, pool.acquire(9000));
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void closeReturnsColumnBuffers() throws Exception {
+        QflockResultSet resultSet = newResultSet();
+        resultSet.decompressColumns();
+        assertEquals(3, resultSet.getLong(1, 4));
+        assertEquals("value-3", resultSet.getString(2, 4));
+        assertEquals(4096 * 8, inUseBytes("direct"));
+        resultSet.close();
+        assertEquals(0, inUseBytes("direct"));
+        assertEquals(0, inUseBytes("heap"));
+    }
+
+    @Test
+    public void retainedColumnsOutliveClose() throws Exception {
+        QflockResultSet resultSet = newResultSet();
+        Closeable retained = resultSet.retainColumns();
+        resultSet.close();
+        assertEquals(4096 * 8, inUseBytes("direct"));
+        retained.close();
+        assertEquals(0, inUseBytes("direct"));
+        assertEquals(0, inUseBytes("heap"));
+    }
+
+    @Test
+    public void capsPooledBytes() {
+        QflockBufferPool pool = new QflockBufferPool(false, 4096);
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(4096);
+        assertEquals(8192, pool.getInUseBytes());
+        pool.release(first);
+        pool.release(second);
+        // Releasing twice is ignored.
+        pool.release(second);
+        assertEquals(0, pool.getInUseBytes());
+        assertEquals(4096, pool.getPooledBytes());
+        assertEquals(1, pool.getDiscards());
+        pool.setMaxPooledBytes(0);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void decompressesColumnsOnFirstAccess() throws Exception {
+        QflockResultSet resultSet = newResultSet();
+        assertEquals(0, inUseBytes("direct"));
+        assertEquals(0, inUseBytes("heap"));
+        assertEquals("value-1", resultSet.getString(2, 2));
+        assertEquals(0, inUseBytes("direct"));
+        assertEquals(4094 % 7, resultSet.getLongColumn(1).get(4094));
+        assertEquals(4096 * 8, inUseBytes("direct"));
+        resultSet.close();
+    }
+
+    @Test
+    public void decompressesAllColumnsInParallel() throws Exception {
+        long[] longs = new long[4096];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = i * 3;
+        }
+        QFResultSet result = QflockTestResults.newResult(longs.length);
+        for (int codec : new int[] {QflockCodec.NONE, QflockCodec.ZSTD, QflockCodec.LZ4}) {
+            QflockTestResults.addLongs(result, "l" + codec, longs, codec);
+        }
+        QflockResultSet resultSet = new QflockResultSet(result, "/tmp");
+        resultSet.decompressColumns();
+        for (int column = 1; column <= 3; column++) {
+            long[] read = new long[longs.length];
+            resultSet.copyLongs(column, 0, read, 0, read.length);
+            assertArrayEquals(longs, read);
+        }
+        resultSet.close();
+        assertEquals(0, inUseBytes("direct"));
+    }
+}
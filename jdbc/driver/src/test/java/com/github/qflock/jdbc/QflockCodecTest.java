@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFResultSet;
+
+public class QflockCodecTest {
+
+    /**
+     * The properties QflockJdbcVectorReader connects with.
+     */
+    private static Properties readerProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("compression", "true");
+        properties.setProperty("rowGroupOffset", "0");
+        properties.setProperty("rowGroupCount", "4");
+        properties.setProperty("resultApi", "default");
+        properties.setProperty("queryStats", "");
+        properties.setProperty("tableName", "store_sales");
+        properties.setProperty("queryName", "q1");
+        properties.setProperty("appId", "app-1");
+        return properties;
+    }
+
+    @Test
+    public void acceptsReaderProperties() throws SQLException {
+        Properties options = QflockTransportOptions.parseUrl(
+                "jdbc:qflock://localhost:1433/tpcds", readerProperties());
+        QflockCodec.validate(options);
+        new QflockTransportOptions(options);
+        assertEquals(QflockCodec.ZSTD, QflockCodec.getCodec(options.getProperty("compression")));
+    }
+
+    @Test
+    public void mapsCompressionNames() throws SQLException {
+        assertEquals(QflockCodec.ZSTD, QflockCodec.getCodec("true"));
+        assertEquals(QflockCodec.NONE, QflockCodec.getCodec("false"));
+        assertEquals(QflockCodec.NONE, QflockCodec.getCodec("None"));
+        assertEquals(QflockCodec.LZ4, QflockCodec.getCodec("lz4"));
+        assertEquals(QflockCodec.ZSTD, QflockCodec.getCodec("ZSTD"));
+    }
+
+    @Test(expected = SQLException.class)
+    public void rejectsUnknownCompression() throws SQLException {
+        Properties properties = readerProperties();
+        properties.setProperty("compression", "gzip");
+        QflockCodec.validate(properties);
+    }
+
+    @Test
+    public void decodesEachCodec() throws SQLException {
+        long[] longs = new long[1000];
+        String[] strings = new String[1000];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = i * 3L;
+            strings[i] = "s" + (i % 10);
+        }
+        QFResultSet result = QflockTestResults.newResult(longs.length);
+        QflockTestResults.addLongs(result, "none", longs, QflockCodec.NONE);
+        QflockTestResults.addLongs(result, "zstd", longs, QflockCodec.ZSTD);
+        QflockTestResults.addLongs(result, "lz4", longs, QflockCodec.LZ4);
+        QflockTestResults.addStrings(result, "zstd_s", strings, QflockCodec.ZSTD);
+        QflockTestResults.addStrings(result, "lz4_s", strings, QflockCodec.LZ4);
+        QflockResultSet resultSet = new QflockResultSet(result, "/tmp");
+        resultSet.decompressColumns();
+        for (int column = 1; column <= 3; column++) {
+            long[] decoded = new long[longs.length];
+            resultSet.copyLongs(column, 0, decoded, 0, decoded.length);
+            assertArrayEquals(longs, decoded);
+        }
+        assertEquals("s7", resultSet.getString(4, 998));
+        assertEquals("s7", resultSet.getString(5, 998));
+        resultSet.close();
+    }
+
+    @Test
+    public void decodesZstdWithoutColumnCodecs() throws SQLException {
+        long[] longs = new long[1000];
+        QFResultSet result = QflockTestResults.newResult(longs.length);
+        QflockTestResults.addLongs(result, "zstd", longs, QflockCodec.ZSTD);
+        // Servers without codec negotiation do not send columnCodecs.
+        result.columnCodecs.clear();
+        QflockResultSet resultSet = new QflockResultSet(result, "/tmp");
+        assertEquals(0, resultSet.getLong(1, 1000));
+        resultSet.close();
+    }
+}
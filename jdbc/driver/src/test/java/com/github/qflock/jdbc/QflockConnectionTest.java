@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFConnection;
+import com.github.qflock.jdbc.api.QflockJdbcService.Client;
+
+public class QflockConnectionTest {
+
+    @Test
+    public void validationDropsFailedTransports() throws Exception {
+        // Transports only connect, no requests are sent to the server.
+        ServerSocket server = new ServerSocket(0);
+        try {
+            String url = "jdbc:qflock://localhost:" + server.getLocalPort() + "/tpcds";
+            QflockTransportOptions options = new QflockTransportOptions(new Properties());
+            Client first = options.openClient(QflockDriver.getServerUri(url));
+            QflockConnection connection = new QflockConnection(
+                    first.getInputProtocol().getTransport(), first, new QFConnection(),
+                    url, new Properties(), options);
+            Client second = connection.lockClient();
+            Client third = connection.lockClient();
+            connection.unlockClient(third);
+            connection.unlockClient(second);
+
+            second.getInputProtocol().getTransport().close();
+            assertTrue(connection.isTransportOpen());
+            assertSame(third, connection.lockClient());
+            connection.unlockClient(third);
+
+            third.getInputProtocol().getTransport().close();
+            assertFalse(connection.isTransportOpen());
+            assertFalse(connection.isValid(1));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class QflockDataSourceTest {
+
+    /**
+     * @return the url of a port nothing listens on.
+     */
+    private static String unreachableUrl() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return "jdbc:qflock://localhost:" + port + "/tpcds";
+    }
+
+    @Test
+    public void sharesOnePoolPerUrl() throws Exception {
+        String url = unreachableUrl();
+        QflockDataSource dataSource = QflockDataSource.getDataSource(url, 2);
+        assertSame(dataSource, QflockDataSource.getDataSource(url, 4));
+        assertEquals(2, dataSource.getMaxPoolSize());
+        dataSource.close();
+        QflockDataSource reopened = QflockDataSource.getDataSource(url);
+        assertNotSame(dataSource, reopened);
+        assertEquals(QflockDataSource.DEFAULT_MAX_POOL_SIZE, reopened.getMaxPoolSize());
+        reopened.close();
+    }
+
+    @Test
+    public void failedConnectReleasesItsSlot() throws Exception {
+        QflockDataSource dataSource = new QflockDataSource(unreachableUrl());
+        dataSource.setMaxPoolSize(1);
+        dataSource.setLoginTimeout(1);
+        // With the slot of the first attempt still held, the second
+        // would time out waiting for it instead of trying to connect.
+        for (int i = 0; i < 2; i++) {
+            try {
+                dataSource.getConnection();
+                fail("connected to an unreachable url");
+            } catch (SQLException e) {
+                assertFalse(e.getMessage(), e.getMessage().contains("timed out"));
+            }
+        }
+        assertEquals(0, dataSource.getNumOpen());
+        assertEquals(0, dataSource.getNumIdle());
+        dataSource.close();
+    }
+
+    @Test
+    public void closedPoolRefusesConnections() throws Exception {
+        QflockDataSource dataSource = new QflockDataSource(unreachableUrl());
+        dataSource.close();
+        try {
+            dataSource.getConnection();
+            fail("connected through a closed pool");
+        } catch (SQLException e) {
+            assertEquals("08003", e.getSQLState());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPool() {
+        QflockDataSource dataSource = new QflockDataSource("jdbc:qflock://localhost:1/tpcds");
+        try {
+            dataSource.setMaxPoolSize(0);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
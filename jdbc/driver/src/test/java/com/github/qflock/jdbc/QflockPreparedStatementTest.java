@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFValue;
+
+public class QflockPreparedStatementTest {
+
+    private static QflockPreparedStatement newStatement() {
+        return new QflockPreparedStatement(null, null, "SELECT * FROM t WHERE a = ?");
+    }
+
+    @Test
+    public void bindsDatesAsStrings() throws SQLException {
+        QflockPreparedStatement statement = newStatement();
+        statement.setDate(1, Date.valueOf("2000-01-02"));
+        statement.setObject(2, Timestamp.valueOf("2000-01-02 03:04:05"));
+        statement.setTimestamp(3, null, null);
+        List<QFValue> values = statement.getParameters();
+        assertEquals("2000-01-02", values.get(0).getVal().getString_val());
+        assertEquals("2000-01-02 03:04:05.0", values.get(1).getVal().getString_val());
+        assertTrue(values.get(2).isIsnull());
+    }
+
+    @Test
+    public void bindsObjectsWithTargetType() throws SQLException {
+        QflockPreparedStatement statement = newStatement();
+        statement.setObject(1, 42L, Types.BIGINT);
+        statement.setObject(2, "x", Types.VARCHAR, 0);
+        statement.setObject(3, null, Types.INTEGER);
+        statement.setNull(4, Types.VARCHAR, "STRING");
+        List<QFValue> values = statement.getParameters();
+        assertEquals(42L, values.get(0).getVal().getBigint_val());
+        assertEquals("x", values.get(1).getVal().getString_val());
+        assertTrue(values.get(2).isIsnull());
+        assertTrue(values.get(3).isIsnull());
+    }
+
+    @Test(expected = SQLFeatureNotSupportedException.class)
+    public void rejectsDecimals() throws SQLException {
+        newStatement().setBigDecimal(1, BigDecimal.ONE);
+    }
+
+    @Test(expected = SQLFeatureNotSupportedException.class)
+    public void rejectsBytes() throws SQLException {
+        newStatement().setBytes(1, new byte[1]);
+    }
+}
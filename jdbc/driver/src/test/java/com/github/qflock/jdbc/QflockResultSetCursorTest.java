@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFConnection;
+import com.github.qflock.jdbc.api.QFResultSet;
+import com.github.qflock.jdbc.api.QflockJdbcService.Client;
+
+public class QflockResultSetCursorTest {
+
+    /**
+     * Serves the pages of one result set in place of the server.
+     */
+    private static class PagingClient extends Client {
+        private final ArrayDeque<QFResultSet> pages = new ArrayDeque<QFResultSet>();
+        private final List<Integer> fetchSizes = new ArrayList<Integer>();
+        private int closes = 0;
+
+        PagingClient(TMemoryBuffer transport) {
+            super(new TBinaryProtocol(transport));
+        }
+
+        @Override
+        public synchronized QFResultSet statement_fetchNext(int resultSetId, int fetchSize) {
+            fetchSizes.add(fetchSize);
+            return pages.poll();
+        }
+
+        @Override
+        public synchronized void statement_closeResultSet(int resultSetId) {
+            closes++;
+        }
+    }
+
+    private static QFResultSet page(boolean hasMore, long... values) {
+        QFResultSet result = QflockTestResults.newResult(values.length);
+        QflockTestResults.addLongs(result, "l", values, QflockCodec.ZSTD);
+        result.setHasMore(hasMore);
+        return result;
+    }
+
+    private static QflockConnection newConnection(PagingClient client) {
+        String url = "jdbc:qflock://localhost:1/tpcds";
+        return new QflockConnection(client.getInputProtocol().getTransport(), client,
+                new QFConnection(), url, new Properties(), null);
+    }
+
+    @Test
+    public void readsAllPages() throws Exception {
+        PagingClient client = new PagingClient(new TMemoryBuffer(0));
+        client.pages.add(page(true, 3, 4));
+        client.pages.add(page(true));
+        client.pages.add(page(false, 5));
+        QflockResultSetCursor cursor = new QflockResultSetCursor(newConnection(client), 1, 2);
+        QflockResultSet resultSet = new QflockResultSet(page(true, 1, 2), "/tmp", cursor);
+        List<Long> values = new ArrayList<Long>();
+        while (resultSet.next()) {
+            values.add(resultSet.getLong(1));
+            assertEquals(values.size() == 5, resultSet.isLast());
+        }
+        assertTrue(resultSet.isAfterLast());
+        assertEquals(5, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), values.get(i));
+        }
+        assertEquals(3, client.fetchSizes.size());
+        assertEquals(Integer.valueOf(2), client.fetchSizes.get(0));
+        resultSet.close();
+        // The server released the result set with its last page.
+        assertEquals(0, client.closes);
+    }
+
+    @Test
+    public void closeReleasesUnreadPages() throws Exception {
+        PagingClient client = new PagingClient(new TMemoryBuffer(0));
+        client.pages.add(page(true, 3, 4));
+        QflockResultSetCursor cursor = new QflockResultSetCursor(newConnection(client), 1, 2);
+        QflockResultSet resultSet = new QflockResultSet(page(true, 1, 2), "/tmp", cursor);
+        assertTrue(resultSet.next());
+        assertFalse(resultSet.isLast());
+        resultSet.close();
+        assertEquals(1, client.closes);
+    }
+
+    @Test(expected = SQLException.class)
+    public void failsPastTheLastPage() throws Exception {
+        PagingClient client = new PagingClient(new TMemoryBuffer(0));
+        client.pages.add(page(false));
+        QflockResultSetCursor cursor = new QflockResultSetCursor(newConnection(client), 1, 2);
+        cursor.next();
+        cursor.next();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.github.qflock.jdbc.api.QFResultSet;
+
+public class QflockResultSetTest {
+
+    private static QflockResultSet longs(long... values) throws SQLException {
+        QFResultSet result = QflockTestResults.newResult(values.length);
+        QflockTestResults.addLongs(result, "l", values, QflockCodec.NONE);
+        return new QflockResultSet(result, "/tmp");
+    }
+
+    @Test
+    public void readsAllParts() throws SQLException {
+        QflockResultSet resultSet = longs(1, 2);
+        List<CompletableFuture<QflockResultSet>> parts =
+                new ArrayList<CompletableFuture<QflockResultSet>>();
+        parts.add(CompletableFuture.completedFuture(longs()));
+        parts.add(CompletableFuture.completedFuture(longs(3)));
+        resultSet.addParts(parts);
+        assertNull(resultSet.getWarnings());
+        List<Long> values = new ArrayList<Long>();
+        while (resultSet.next()) {
+            assertFalse(resultSet.isAfterLast());
+            values.add(resultSet.getLong(1));
+            // The end of the first part is not the end of the result.
+            assertEquals(values.size() == 3, resultSet.isLast());
+        }
+        assertTrue(resultSet.isAfterLast());
+        assertEquals(3, values.size());
+        assertEquals(Long.valueOf(3), values.get(2));
+        resultSet.close();
+    }
+
+    @Test
+    public void readsDictionaryColumns() throws SQLException {
+        String[] dictionary = {"bb", "a", "ccc"};
+        int[] codes = {2, 0, 1, 2};
+        String[] plain = {"w", "xx", "", "yyy"};
+        QFResultSet result = QflockTestResults.newResult(codes.length);
+        QflockTestResults.addDictionary(result, "d", dictionary, codes, QflockCodec.ZSTD);
+        QflockTestResults.addStrings(result, "s", plain, QflockCodec.ZSTD);
+        QflockResultSet resultSet = new QflockResultSet(result, "/tmp");
+        assertTrue(resultSet.isDictionaryEncoded(1));
+        assertFalse(resultSet.isDictionaryEncoded(2));
+        assertArrayEquals(codes, resultSet.getDictionaryCodes(1));
+        assertArrayEquals(new int[] {0, 2, 3, 6}, resultSet.getDictionaryOffsets(1));
+        for (int i = 0; i < codes.length; i++) {
+            assertTrue(resultSet.next());
+            assertEquals(dictionary[codes[i]], resultSet.getString(1));
+            assertEquals(plain[i], resultSet.getString(2));
+        }
+        assertFalse(resultSet.next());
+
+        // The column reads as plain strings when its offsets are asked for.
+        int[] offsets = resultSet.getStringOffsets(1);
+        ByteBuffer bytes = resultSet.getStringBytes(1);
+        assertArrayEquals(new int[] {0, 3, 5, 6, 9}, offsets);
+        for (int i = 0; i < codes.length; i++) {
+            byte[] value = new byte[offsets[i + 1] - offsets[i]];
+            bytes.position(offsets[i]);
+            bytes.get(value);
+            assertEquals(dictionary[codes[i]], new String(value, StandardCharsets.UTF_8));
+        }
+        resultSet.close();
+    }
+}
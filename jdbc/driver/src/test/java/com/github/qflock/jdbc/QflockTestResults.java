@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import com.github.luben.zstd.Zstd;
+import com.github.qflock.jdbc.api.QFResultSet;
+import com.github.qflock.jdbc.api.QFResultSetMetaData;
+import com.github.qflock.jdbc.api.QFResultSetMetaDataPart;
+
+/**
+ * Builds results in the format the server sends them, one column at a time.
+ */
+final class QflockTestResults {
+
+    private QflockTestResults() {
+    }
+
+    static QFResultSet newResult(int numRows) {
+        QFResultSet result = new QFResultSet();
+        result.setNumRows(numRows);
+        result.setMetadata(new QFResultSetMetaData(new ArrayList<QFResultSetMetaDataPart>()));
+        result.setBinaryRows(new ArrayList<ByteBuffer>());
+        result.setColumnTypeBytes(new ArrayList<Integer>());
+        result.setColumnBytes(new ArrayList<Integer>());
+        result.setCompressedRows(new ArrayList<ByteBuffer>());
+        result.setCompressedColumnBytes(new ArrayList<Integer>());
+        result.setStrLenVector(new ArrayList<List<Integer>>());
+        result.setParquet(new ArrayList<ByteBuffer>());
+        result.setColumnCodecs(new ArrayList<Integer>());
+        result.setColumnEncodings(new ArrayList<Integer>());
+        result.setDictionaries(new ArrayList<ByteBuffer>());
+        return result;
+    }
+
+    static void addLongs(QFResultSet result, String name, long[] values, int codec) {
+        ByteBuffer data = ByteBuffer.allocate(values.length * 8);
+        data.asLongBuffer().put(values);
+        addColumn(result, name, Types.BIGINT, data.array(), 8, new ArrayList<Integer>(), codec);
+    }
+
+    static void addStrings(QFResultSet result, String name, String[] values, int codec) {
+        List<Integer> lengths = new ArrayList<Integer>();
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            lengths.add(value.getBytes(StandardCharsets.UTF_8).length);
+            joined.append(value);
+        }
+        addColumn(result, name, Types.VARCHAR,
+                joined.toString().getBytes(StandardCharsets.UTF_8), 0, lengths, codec);
+    }
+
+    /**
+     * Adds a string column sent as one byte codes into a dictionary.
+     */
+    static void addDictionary(QFResultSet result, String name, String[] dictionary,
+                              int[] codes, int codec) {
+        List<Integer> lengths = new ArrayList<Integer>();
+        StringBuilder joined = new StringBuilder();
+        for (String value : dictionary) {
+            lengths.add(value.getBytes(StandardCharsets.UTF_8).length);
+            joined.append(value);
+        }
+        byte[] data = new byte[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            data[i] = (byte) codes[i];
+        }
+        addColumn(result, name, Types.VARCHAR, data, 1, lengths, codec);
+        int column = result.columnEncodings.size() - 1;
+        result.columnEncodings.set(column, 1);
+        result.dictionaries.set(column,
+                ByteBuffer.wrap(joined.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void addColumn(QFResultSet result, String name, int type, byte[] data,
+                                  int typeBytes, List<Integer> lengths, int codec) {
+        QFResultSetMetaDataPart part = new QFResultSetMetaDataPart();
+        part.setColumnName(name);
+        part.setColumnLabel(name);
+        part.setColumnType(type);
+        result.metadata.parts.add(part);
+        result.strLenVector.add(lengths);
+        result.columnTypeBytes.add(typeBytes);
+        result.columnBytes.add(data.length);
+        result.columnEncodings.add(0);
+        result.dictionaries.add(ByteBuffer.allocate(0));
+        byte[] sent = data;
+        if (codec == QflockCodec.ZSTD) {
+            sent = Zstd.compress(data);
+        } else if (codec == QflockCodec.LZ4) {
+            sent = LZ4Factory.fastestInstance().fastCompressor().compress(data);
+        }
+        result.compressedRows.add(ByteBuffer.wrap(sent));
+        result.compressedColumnBytes.add(sent.length);
+        result.columnCodecs.add(codec);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.jdbc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.junit.Test;
+
+public class QflockTransportOptionsTest {
+
+    private static Properties properties(String... pairs) {
+        Properties info = new Properties();
+        for (int i = 0; i < pairs.length; i += 2) {
+            info.setProperty(pairs[i], pairs[i + 1]);
+        }
+        return info;
+    }
+
+    private static long binaryInUseBytes() throws Exception {
+        ObjectName name = new ObjectName(QflockMetrics.DOMAIN + ":type=BufferPool,name=binary");
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "InUseBytes");
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Writes a binary field with the protocol of the options.
+     */
+    private static byte[] writeBinary(boolean compact, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TIOStreamTransport transport = new TIOStreamTransport(out);
+        TProtocol protocol = compact
+                ? new TCompactProtocol(transport)
+                : new TBinaryProtocol(transport);
+        protocol.writeBinary(ByteBuffer.wrap(data));
+        transport.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void propertiesTakePrecedenceOverUrl() {
+        Properties merged = QflockTransportOptions.parseUrl(
+                "jdbc:qflock://host:1234/db;transport=framed; protocol = compact ;bad",
+                properties("protocol", "binary"));
+        assertEquals("framed", merged.getProperty("transport"));
+        assertEquals("binary", merged.getProperty("protocol"));
+        assertEquals(2, merged.size());
+        assertTrue(QflockTransportOptions.parseUrl("jdbc:qflock://host:1234/db", null).isEmpty());
+    }
+
+    @Test
+    public void rejectsInvalidOptions() {
+        String[][] invalid = {
+            {"transport", "http"},
+            {"protocol", "json"},
+            {"socketBufferSize", "big"},
+            {"maxMessageSize", ""},
+        };
+        for (String[] option : invalid) {
+            try {
+                new QflockTransportOptions(properties(option));
+                fail("accepted " + option[0] + "=" + option[1]);
+            } catch (SQLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(option[0]));
+            }
+        }
+    }
+
+    @Test
+    public void readsLargeBinaryIntoPooledBuffers() throws Exception {
+        for (String protocolName : new String[] {"binary", "compact"}) {
+            QflockTransportOptions options =
+                    new QflockTransportOptions(properties("protocol", protocolName));
+            boolean compact = protocolName.equals("compact");
+            byte[] large = data(100 * 1024);
+            byte[] small = data(100);
+            TProtocol protocol = options.getProtocolFactory().getProtocol(
+                    new TIOStreamTransport(new ByteArrayInputStream(
+                            concat(writeBinary(compact, large), writeBinary(compact, small)))));
+
+            ByteBuffer pooled = protocol.readBinary();
+            assertArrayEquals(large, remaining(pooled));
+            assertTrue(QflockTransportOptions.retainBinary(pooled));
+            QflockTransportOptions.releaseBinary(pooled);
+            assertTrue(binaryInUseBytes() > 0);
+            QflockTransportOptions.releaseBinary(pooled);
+            assertEquals(0, binaryInUseBytes());
+
+            ByteBuffer unpooled = protocol.readBinary();
+            assertArrayEquals(small, remaining(unpooled));
+            assertFalse(QflockTransportOptions.retainBinary(unpooled));
+        }
+    }
+
+    @Test
+    public void readsBinaryOfAFrameWithoutCopy() throws Exception {
+        QflockTransportOptions options =
+                new QflockTransportOptions(properties("transport", "framed"));
+        byte[] large = data(100 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TFramedTransport framed = new TFramedTransport(new TIOStreamTransport(out));
+        new TBinaryProtocol(framed).writeBinary(ByteBuffer.wrap(large));
+        framed.flush();
+        TProtocol protocol = options.getProtocolFactory().getProtocol(
+                new TFramedTransport(new TIOStreamTransport(
+                        new ByteArrayInputStream(out.toByteArray()))));
+        ByteBuffer slice = protocol.readBinary();
+        assertArrayEquals(large, remaining(slice));
+        // A slice of the frame is not pooled.
+        assertFalse(QflockTransportOptions.retainBinary(slice));
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}
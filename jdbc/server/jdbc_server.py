@@ -16,6 +16,7 @@
 # limitations under the License.
 #
 import json
+import socket
 import subprocess
 import os
 import sys
@@ -27,12 +28,34 @@ import yaml
 from thrift.transport import TSocket
 from thrift.transport import TTransport
 from thrift.protocol import TBinaryProtocol
+from thrift.protocol import TCompactProtocol
 from thrift.server import TServer
 
 from com.github.qflock.jdbc.api import QflockJdbcService
 from thrift_handler import QflockThriftJdbcHandler
 
 
+class QflockServerSocket(TSocket.TServerSocket):
+    """Server socket which sets the TCP buffer sizes and disables Nagle.
+       Connections accepted from the listening socket inherit its buffer sizes,
+       which is needed for the TCP window to scale beyond 64KB."""
+    def __init__(self, socket_buffer_size=0, **kwargs):
+        super().__init__(**kwargs)
+        self._socket_buffer_size = socket_buffer_size
+
+    def listen(self):
+        super().listen()
+        if self._socket_buffer_size > 0:
+            self.handle.setsockopt(socket.SOL_SOCKET, socket.SO_RCVBUF, self._socket_buffer_size)
+            self.handle.setsockopt(socket.SOL_SOCKET, socket.SO_SNDBUF, self._socket_buffer_size)
+
+    def accept(self):
+        client = super().accept()
+        if client is not None and client.handle is not None:
+            client.handle.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        return client
+
+
 class QflockJdbcServer:
     """Runs a server with a JDBC API."""
     def __init__(self):
@@ -107,17 +130,29 @@ class QflockJdbcServer:
                                           metastore_ip=self._config['spark']['hive-metastore'],
                                           metastore_port=self._config['spark']['hive-metastore-port'],
                                           debug_pyspark=self._args.debug_pyspark,
-                                          compression=self._config['compression'])
+                                          compression=self._config['compression'],
+                                          compression_level=int(self._config.get('compression-level', 3)))
         processor = QflockJdbcService.Processor(handler)
-        transport = TSocket.TServerSocket(host=jdbc_ip, port=jdbc_port)
-        tfactory = TTransport.TBufferedTransportFactory()
-        pfactory = TBinaryProtocol.TBinaryProtocolFactory()
+        transport = QflockServerSocket(socket_buffer_size=int(self._config.get('socket-buffer-size', 0)),
+                                       host=jdbc_ip, port=jdbc_port)
+        # The transport and protocol must match the ones selected by the clients.
+        transport_type = self._config.get('transport', 'buffered')
+        protocol_type = self._config.get('protocol', 'binary')
+        if transport_type == 'framed':
+            tfactory = TTransport.TFramedTransportFactory()
+        else:
+            tfactory = TTransport.TBufferedTransportFactory()
+        if protocol_type == 'compact':
+            pfactory = TCompactProtocol.TCompactProtocolFactory()
+        else:
+            pfactory = TBinaryProtocol.TBinaryProtocolAcceleratedFactory()
 
         # jdbc_server = TServer.TSimpleServer(processor, transport, tfactory, pfactory)
         jdbc_server = TServer.TThreadedServer(processor, transport, tfactory, pfactory)
         logger = logging.getLogger("qflock")
         logger.info(f'Starting the Qflock JDBC server...{jdbc_ip}:{jdbc_port} '
-                    f'spark log-level:{self._config["log-level"]} compression:{self._config["compression"]}')
+                    f'spark log-level:{self._config["log-level"]} compression:{self._config["compression"]} '
+                    f'transport:{transport_type} protocol:{protocol_type}')
         try:
             jdbc_server.serve()
         except BaseException as ex:
@@ -16,7 +16,11 @@
 # limitations under the License.
 #
 import os
+import itertools
 import threading
+import queue
+from collections import OrderedDict
+from concurrent.futures import ThreadPoolExecutor
 import inspect
 import logging
 import time
@@ -24,12 +28,20 @@ import shutil
 import glob
 import traceback
 import pyspark
+from pyspark.sql import DataFrame
 from pyspark.sql.types import StringType, DoubleType, IntegerType, LongType, ShortType
+from pyspark.sql.pandas.types import to_arrow_schema
 import numpy as np
+import pandas as pd
 
 import pyarrow
+import pyarrow.ipc
 import pyarrow.parquet as pq
 import zstandard as zstd
+try:
+    import lz4.block
+except ImportError:
+    lz4 = None
 
 from com.github.qflock.jdbc.api import QflockJdbcService
 from com.github.qflock.jdbc.api import ttypes
@@ -39,18 +51,49 @@ from py4j.java_gateway import java_import
 
 
 class QflockThriftJdbcHandler:
+    # Codec ids of QFResultSet.columnCodecs, these match QflockCodec in the driver.
+    CODEC_NONE = 0
+    CODEC_ZSTD = 1
+    CODEC_LZ4 = 2
+    # true and false, as the Spark readers set it, stand for zstd and none.
+    CODECS = {"none": CODEC_NONE, "zstd": CODEC_ZSTD, "lz4": CODEC_LZ4,
+              "false": CODEC_NONE, "true": CODEC_ZSTD}
+    # Columns smaller than this are sent as is, since compressing them saves little.
+    MIN_COMPRESS_BYTES = 256
+    # Encodings of QFResultSet.columnEncodings, these match QflockResultSet in the driver.
+    ENCODING_PLAIN = 0
+    ENCODING_DICTIONARY = 1
+    # Seconds between checks of whether a batch was closed, while waiting
+    # for one of its results or for a view to run one of its ranges.
+    BATCH_POLL_SECONDS = 1.0
+    VIEW_WAIT_SECONDS = 1.0
+
     def __init__(self, spark_log_level="INFO",
                  metastore_ip="", metastore_port="", debug_pyspark=False,
-                 max_views=4, compression=True):
+                 max_views=4, compression=True, max_batch_queries=4, max_plan_templates=256,
+                 compression_level=3):
         self._spark_temp_dir = "/tmp/spark-temp"
         self._max_views = max_views
         self._compression = compression
+        self._compression_level = compression_level
         self._lock = threading.Lock()
         self._connections = {}
         self._pstatements = {}
+        # Result sets opened with a fetch size, keyed by result set id.
+        self._cursors = {}
         self._connection_id = 0
         self._pstatement_id = 0
         self._query_id = 0
+        # Query batches submitted with connection_executeBatch, keyed by batch id.
+        self._batches = {}
+        # Notified whenever a view's request is freed, for batch queries waiting on a view.
+        self._view_freed = threading.Condition(self._lock)
+        self._batch_id = 0
+        self._batch_executor = ThreadPoolExecutor(max_workers=max_batch_queries,
+                                                  thread_name_prefix="qflock-batch")
+        # Analyzed plans of bound prepared statements, keyed by query text, in LRU order.
+        self._plan_templates = OrderedDict()
+        self._max_plan_templates = max_plan_templates
         if debug_pyspark:
             self._create_debug_spark()
         else:
@@ -60,11 +103,14 @@ class QflockThriftJdbcHandler:
         self._get_tables()
         self._cached_views = {}
         self._table_paths = {}
+        # Row groups of each table, which clients split into ranges to query in parallel.
+        self._table_row_groups = {}
         self._ds_table_desc = {}
         self._gw = self._spark.sparkContext._gateway
         java_import(self._gw.jvm, "com.github.qflock.datasource.QflockTableDescriptor")
         self._create_views()
-        logging.info(f"initialized compression: {compression}")
+        logging.info(f"initialized compression: {compression} level: {compression_level} " +
+                     f"lz4: {lz4 is not None}")
 
     def _create_debug_spark(self):
         self._spark = pyspark.sql.SparkSession \
@@ -161,6 +207,7 @@ class QflockThriftJdbcHandler:
         # aka, the number of Spark workers.
         view_count = self._max_views
         logging.info(f"found file: {file_path} row_groups:{reader.num_row_groups} views:{view_count}")
+        self._table_row_groups[table.tableName] = reader.num_row_groups
         for request_id in range(0, view_count):
             self._create_view(table, request_id, schema, file_path)
 
@@ -182,7 +229,54 @@ class QflockThriftJdbcHandler:
         self._query_id += 1
         return query_id
 
-    def exec_query(self, sql, connection):
+    def _get_dataframe(self, query, use_plan_cache):
+        """Returns a dataframe for the query.
+           With use_plan_cache, the analyzed plan of an earlier run of the same query text
+           is reused, so only optimization and planning run again.  Planning is where our
+           datasource reads the row group range of the view's request, so a cached plan
+           still scans the range of this request.
+        """
+        if not use_plan_cache:
+            return self._spark.sql(query)
+        self._lock.acquire()
+        plan = self._plan_templates.get(query)
+        if plan is not None:
+            self._plan_templates.move_to_end(query)
+        self._lock.release()
+        if plan is None:
+            df = self._spark.sql(query)
+            self._lock.acquire()
+            self._plan_templates[query] = df._jdf.queryExecution().analyzed()
+            if len(self._plan_templates) > self._max_plan_templates:
+                self._plan_templates.popitem(last=False)
+            self._lock.release()
+            return df
+        jdf = self._gw.jvm.org.apache.spark.sql.Dataset.ofRows(self._spark._jsparkSession, plan)
+        return DataFrame(jdf, getattr(self._spark, "_wrapped", self._spark))
+
+    def _fill_request(self, table_name, rg_offset, rg_count, keep_waiting=None):
+        """Takes a request, and so a view, of the table for the row group range.
+           When all views are in use and keep_waiting is given, waits for a view
+           to be freed for as long as keep_waiting() returns True.
+        """
+        while True:
+            try:
+                return self._ds_table_desc[table_name].fillRequestInfo(int(rg_offset), int(rg_count))
+            except Exception as ex:
+                if keep_waiting is None or 'out of requests' not in str(ex) or not keep_waiting():
+                    raise
+            # The timeout covers a view freed between the failed fill and the wait.
+            self._view_freed.acquire()
+            self._view_freed.wait(timeout=self.VIEW_WAIT_SECONDS)
+            self._view_freed.release()
+
+    def _free_request(self, table_name, request_id):
+        self._ds_table_desc[table_name].freeRequest(request_id)
+        self._view_freed.acquire()
+        self._view_freed.notify_all()
+        self._view_freed.release()
+
+    def exec_query(self, sql, connection, fetch_size=0, use_plan_cache=False, keep_waiting=None):
         self._lock.acquire()
         query_id = self.get_query_id()
         self._lock.release()
@@ -194,28 +288,47 @@ class QflockThriftJdbcHandler:
         # This will allow us to pass parameters of rg_offset and count
         # down to the datasource, while still querying using an SQL string.
         # Choose the view which represents this request_id
-        request_id = self._ds_table_desc[table_name].fillRequestInfo(int(rg_offset), int(rg_count))
+        request_id = self._fill_request(table_name, rg_offset, rg_count, keep_waiting)
         result = None
+        cursor_owns_request = False
+        start_time = time.perf_counter_ns()
         try:
-            result = self.exec_query_with_req_id(sql, connection, query_id,
-                                                 request_id, table_name)
+            result, cursor_owns_request = \
+                self.exec_query_with_req_id(sql, connection, query_id,
+                                            request_id, table_name, fetch_size,
+                                            use_plan_cache)
         except Exception as ex:
             logging.warning("exception hit in query")
             traceback.print_exception(type(ex), ex, ex.__traceback__)
         finally:
-            self._ds_table_desc[table_name].freeRequest(request_id)
+            # An open cursor still reads through the view, so it
+            # frees the request once the last page is fetched.
+            if not cursor_owns_request:
+                self._free_request(table_name, request_id)
         if result is None:
             logging.warning("no result returned")
+        else:
+            # Lets the client tell server time from transfer time.
+            result.serverTimeNs = time.perf_counter_ns() - start_time
         return result
 
-    def exec_query_with_req_id(self, sql, connection, query_id, request_id, table_name):
+    def exec_query_with_req_id(self, sql, connection, query_id, request_id, table_name,
+                               fetch_size=0, use_plan_cache=False):
+        """Runs the query on the view of request_id.
+           Returns the result, and True if an open cursor took over the request,
+           in which case the cursor frees it rather than the caller.
+        """
         binary_rows = []
         col_type_bytes = []
         col_bytes = []
         comp_rows = []
         col_comp_bytes = []
         str_len_vect = []
+        col_codecs = []
+        col_encodings = []
+        dictionaries = []
         parquet = []
+        arrow_stream = None
         rg_offset = connection['properties']['rowGroupOffset']
         rg_count = connection['properties']['rowGroupCount']
         orig_query = sql.replace('\"', "")
@@ -229,8 +342,11 @@ class QflockThriftJdbcHandler:
                      f"req_id:{request_id} table:{table_name} " +
                      f"off/cnt: {rg_offset}/{rg_count} " +
                      f"query:{query} ")
-        df = self._spark.sql(query)
+        df = self._get_dataframe(query, use_plan_cache)
         df_schema = df.schema
+        if api == "default" and fetch_size > 0:
+            return self._open_cursor(query_id, df, connection, table_name,
+                                     request_id, fetch_size), True
         if api == "parquet":
             path = f'/spark_rd/output_{table_name}_{request_id}.parquet'
             #logging.info(f"save to disk start {path}")
@@ -255,6 +371,13 @@ class QflockThriftJdbcHandler:
                          f"appId:{app_id} rows:{num_rows} " +
                          f"off/cnt:{rg_offset}/{rg_count} " +
                          f"query:{orig_query}")
+        elif api == "arrow":
+            arrow_stream, num_rows = self.get_arrow_stream(df)
+            comp_bytes = len(arrow_stream)
+            logging.info(f"query:{query_name} done " +
+                         f"appId:{app_id} rows:{num_rows} bytes:{comp_bytes} " +
+                         f"off/cnt:{rg_offset}/{rg_count} " +
+                         f"query:{orig_query}")
         else:
             df_pandas = df.toPandas()
             num_rows = len(df_pandas.index)
@@ -267,7 +390,10 @@ class QflockThriftJdbcHandler:
             if num_rows > 0:
                 self.format_data(binary_rows, col_bytes, col_comp_bytes, col_type_bytes,
                                  comp_rows, df, df_pandas,
-                                 df_schema, str_len_vect)
+                                 df_schema, str_len_vect, col_codecs,
+                                 col_encodings, dictionaries,
+                                 self._get_codec(connection),
+                                 self._use_dictionary(connection))
             comp_bytes = sum(col_comp_bytes)
         # logging.info(f"query-done " +
         #              f"comp bytes: {comp_bytes} " +
@@ -281,11 +407,171 @@ class QflockThriftJdbcHandler:
                                   numRows=num_rows, binaryRows=binary_rows, columnTypeBytes=col_type_bytes,
                                   columnBytes=col_bytes, compressedColumnBytes=col_comp_bytes,
                                   compressedRows=comp_rows, strLenVector=str_len_vect,
-                                  parquet=parquet)
+                                  parquet=parquet, arrowStream=arrow_stream,
+                                  columnCodecs=col_codecs, columnEncodings=col_encodings,
+                                  dictionaries=dictionaries), False
+
+    @staticmethod
+    def get_arrow_stream(df):
+        """Collects the dataframe as Arrow record batches and
+           serializes them as one Arrow IPC stream.
+        """
+        batches = df._collect_as_arrow()
+        if len(batches) > 0:
+            schema = batches[0].schema
+        else:
+            schema = to_arrow_schema(df.schema)
+        sink = pyarrow.BufferOutputStream()
+        with pyarrow.ipc.new_stream(sink, schema) as writer:
+            for batch in batches:
+                writer.write_batch(batch)
+        num_rows = sum(batch.num_rows for batch in batches)
+        return sink.getvalue().to_pybytes(), num_rows
+
+    def _open_cursor(self, result_set_id, df, connection, table_name, request_id, fetch_size):
+        # toLocalIterator() runs one spark partition at a time, so only
+        # a partition plus the page being built is held in memory.
+        cursor = {'iterator': df.toLocalIterator(prefetchPartitions=True),
+                  'pending': [], 'df': df, 'connection_id': connection['id'],
+                  'table_name': table_name, 'request_id': request_id}
+        self._lock.acquire()
+        self._cursors[result_set_id] = cursor
+        self._lock.release()
+        logging.debug(f"opened cursor {result_set_id} fetch_size:{fetch_size}")
+        try:
+            return self._fetch_page(result_set_id, fetch_size)
+        except Exception:
+            # The cursor never opened, so the caller still owns and frees the request.
+            self._lock.acquire()
+            self._cursors.pop(result_set_id, None)
+            self._lock.release()
+            raise
+
+    def _close_cursor(self, result_set_id):
+        self._lock.acquire()
+        cursor = self._cursors.pop(result_set_id, None)
+        self._lock.release()
+        if cursor is not None:
+            self._free_request(cursor['table_name'], cursor['request_id'])
+            logging.debug(f"closed cursor {result_set_id}")
+
+    def _fetch_page(self, result_set_id, fetch_size):
+        self._lock.acquire()
+        cursor = self._cursors.get(result_set_id)
+        self._lock.release()
+        if cursor is None:
+            raise ttypes.QFSQLException(reason=f"result set {result_set_id} is not open",
+                                        sqlState="24000", vendorCode=0)
+        binary_rows = []
+        col_type_bytes = []
+        col_bytes = []
+        comp_rows = []
+        col_comp_bytes = []
+        str_len_vect = []
+        col_codecs = []
+        col_encodings = []
+        dictionaries = []
+        df = cursor['df']
+        df_schema = df.schema
+        # Read one row past the page so we know if another page follows.
+        pending = cursor['pending']
+        rows = pending + list(itertools.islice(cursor['iterator'],
+                                               fetch_size + 1 - len(pending)))
+        cursor['pending'] = rows[fetch_size:]
+        rows = rows[:fetch_size]
+        has_more = len(cursor['pending']) > 0
+        num_rows = len(rows)
+        if num_rows > 0:
+            df_pandas = pd.DataFrame.from_records(rows, columns=df.columns)
+            self._lock.acquire()
+            connection = self._connections.get(cursor['connection_id'])
+            self._lock.release()
+            self.format_data(binary_rows, col_bytes, col_comp_bytes, col_type_bytes,
+                             comp_rows, df, df_pandas,
+                             df_schema, str_len_vect, col_codecs,
+                             col_encodings, dictionaries,
+                             self._get_codec(connection),
+                             self._use_dictionary(connection))
+        if not has_more:
+            self._close_cursor(result_set_id)
+        return ttypes.QFResultSet(id=result_set_id, metadata=self.get_metadata(df_schema),
+                                  numRows=num_rows, binaryRows=binary_rows, columnTypeBytes=col_type_bytes,
+                                  columnBytes=col_bytes, compressedColumnBytes=col_comp_bytes,
+                                  compressedRows=comp_rows, strLenVector=str_len_vect,
+                                  parquet=[], hasMore=has_more, columnCodecs=col_codecs,
+                                  columnEncodings=col_encodings, dictionaries=dictionaries)
+
+    def _get_codec(self, connection):
+        """Returns the codec id and level requested by the connection's
+           compression and compressionLevel properties, or the server default.
+        """
+        properties = connection['properties'] if connection is not None else {}
+        name = properties.get('compression')
+        if name is None:
+            codec = self.CODEC_ZSTD if self._compression is True else self.CODEC_NONE
+        elif name.strip().lower() in self.CODECS:
+            codec = self.CODECS[name.strip().lower()]
+        else:
+            raise ttypes.QFSQLException(reason=f"unknown compression {name}",
+                                        sqlState="HY024", vendorCode=0)
+        if codec == self.CODEC_LZ4 and lz4 is None:
+            logging.warning("lz4 is not installed, using zstd")
+            codec = self.CODEC_ZSTD
+        level = int(properties.get('compressionLevel', self._compression_level))
+        return codec, level
+
+    @staticmethod
+    def _use_dictionary(connection):
+        """Dictionary encoding is on unless the connection sets
+           the dictionaryEncoding property to false.
+        """
+        properties = connection['properties'] if connection is not None else {}
+        return properties.get('dictionaryEncoding', 'true').lower() != 'false'
+
+    @staticmethod
+    def _dictionary_encode(data):
+        """Encodes a string column as the distinct strings plus one code per row,
+           when that is smaller than the strings themselves.
+           Codes take 1, 2 or 4 bytes depending on the number of distinct strings.
+           Returns the codes, the code width, the dictionary bytes and the
+           byte length of each dictionary entry, or None to send the strings.
+        """
+        codes, uniques = pd.factorize(data)
+        if len(uniques) == 0 or (codes < 0).any():
+            return None
+        encoded = [value.encode() for value in uniques]
+        lengths = np.array([len(value) for value in encoded], dtype=np.int32)
+        if len(uniques) <= 0x100:
+            width, dtype = 1, '>u1'
+        elif len(uniques) <= 0x10000:
+            width, dtype = 2, '>u2'
+        else:
+            width, dtype = 4, '>i4'
+        plain_bytes = int(lengths[codes].sum())
+        if int(lengths.sum()) + len(codes) * width >= plain_bytes:
+            return None
+        return codes.astype(dtype).tobytes(), width, b''.join(encoded), lengths.tolist()
+
+    def _compress_column(self, data, codec, level):
+        """Compresses one column with the codec.  Small columns and columns
+           which do not get smaller are sent as is.
+           Returns the codec id used and the data.
+        """
+        if len(data) < self.MIN_COMPRESS_BYTES:
+            return self.CODEC_NONE, data
+        if codec == self.CODEC_LZ4:
+            comp_data = lz4.block.compress(data, store_size=False)
+        else:
+            comp_data = zstd.ZstdCompressor(level=level).compress(data)
+        if len(comp_data) >= len(data):
+            return self.CODEC_NONE, data
+        return codec, comp_data
 
     def format_data(self, binary_rows, col_bytes, col_comp_bytes,
                     col_type_bytes, comp_rows, df, df_pandas, df_schema,
-                    str_len_vect):
+                    str_len_vect, col_codecs, col_encodings, dictionaries,
+                    codec, use_dictionary):
+        codec, level = codec
         calc_len = np.vectorize(len)
         columns = df.columns
         # start_time = time.time()
@@ -296,7 +582,16 @@ class QflockThriftJdbcHandler:
             # logging.info("done to_numpy()")
             col_name = df_schema.fields[col_idx].name
             data_type = df_schema.fields[col_idx].dataType
-            if isinstance(data_type, StringType):
+            dictionary = None
+            if isinstance(data_type, StringType) and use_dictionary:
+                dictionary = self._dictionary_encode(data)
+            if dictionary is not None:
+                new_data, width, dictionary_bytes, lengths = dictionary
+                str_len_vect.append(lengths)
+                col_type_bytes.append(width)
+                col_encodings.append(self.ENCODING_DICTIONARY)
+                dictionaries.append(dictionary_bytes)
+            elif isinstance(data_type, StringType):
                 # logging.info("start arr_len()")
                 #arr_len = [int(len(i)) for i in data]
                 arr_len = calc_len(data)
@@ -306,46 +601,31 @@ class QflockThriftJdbcHandler:
                 # new_data = np.char.encode(new_data1, encoding='utf-8')
                 new_data = (''.join(data)).encode()
                 # logging.info("done encode()")
-                #item_size = new_data.dtype.itemsize
-                #num_bytes = len(new_data) * item_size
-                num_bytes = len(new_data)
                 str_len_vect.append(arr_len)
-                col_bytes.append(num_bytes)
-                if self._compression is True:
-                    # logging.info(f"compressing col:{col_name} bytes: {num_bytes}")
-                    new_data = zstd.ZstdCompressor().compress(new_data)
-                    col_comp_bytes.append(len(new_data))
-                    # logging.info(f"compressing bytes: {num_bytes}:{len(new_data)} Done")
-                    raw_bytes = new_data
-                    comp_rows.append(raw_bytes)
-                else:
-                    raw_bytes = new_data.tobytes()
-                    col_comp_bytes.append(len(raw_bytes))
-                    binary_rows.append(raw_bytes)
                 # Not using col type bytes array, using string len array.
                 col_type_bytes.append(0)
+                col_encodings.append(self.ENCODING_PLAIN)
+                dictionaries.append(b'')
             else:
                 str_len_vect.append([])
                 # logging.info("start tobytes")
                 new_data = data.byteswap().newbyteorder().tobytes()
                 # logging.info("done tobytes")
-                # new_data = data.tobytes()
-                num_bytes = len(new_data)
-                col_bytes.append(num_bytes)
-                if self._compression is True:
-                    # logging.info(f"compressing col:{col_name} bytes: {num_bytes}")
-                    new_data = zstd.ZstdCompressor().compress(new_data)
-                    col_comp_bytes.append(len(new_data))
-                    comp_rows.append(new_data)
-                    # logging.info(f"compressing bytes: {num_bytes}:{len(new_data)} Done")
-                else:
-                    col_comp_bytes.append(len(new_data))
-                    binary_rows.append(new_data)
                 col_type_bytes.append(QflockThriftJdbcHandler.data_type_size(data_type))
+                col_encodings.append(self.ENCODING_PLAIN)
+                dictionaries.append(b'')
+            num_bytes = len(new_data)
+            col_bytes.append(num_bytes)
+            if codec != self.CODEC_NONE:
+                # logging.info(f"compressing col:{col_name} bytes: {num_bytes}")
+                col_codec, new_data = self._compress_column(new_data, codec, level)
+                col_codecs.append(col_codec)
+                comp_rows.append(new_data)
+            else:
+                binary_rows.append(new_data)
+            col_comp_bytes.append(len(new_data))
         # duration = time.time() - start_time
-        bytes = sum(col_bytes)
-        comp_bytes = sum(col_comp_bytes)
-        # logging.info(f"total_time:{duration} bytes:{bytes} comp_bytes:{comp_bytes}")
+        # logging.info(f"total_time:{duration} bytes:{sum(col_bytes)} comp_bytes:{sum(col_comp_bytes)}")
 
     def get_connection_id(self):
         current_id = self._connection_id
@@ -356,8 +636,8 @@ class QflockThriftJdbcHandler:
         dbname = url.split(";")[0].lstrip("/")
         self._lock.acquire()
         current_id = self.get_connection_id()
-        self._connections[current_id] = {'url': url, 'properties': properties,
-                                         'dbname': dbname}
+        self._connections[current_id] = {'id': current_id, 'url': url,
+                                         'properties': properties, 'dbname': dbname}
         self._lock.release()
         logging.debug(f"New connection id {current_id} dbname {dbname} url {url} properties {str(properties)}")
         return ttypes.QFConnection(id=current_id)
@@ -395,6 +675,7 @@ class QflockThriftJdbcHandler:
 
         """
         logging.debug(inspect.currentframe().f_code.co_name)
+        return connection.id in self._connections
 
     def connection_setAutoCommit(self, connection, autoCommit):
         """
@@ -482,6 +763,22 @@ class QflockThriftJdbcHandler:
         """
         logging.debug(inspect.currentframe().f_code.co_name)
 
+    def connection_setClientInfo(self, connection, properties):
+        """
+        Parameters:
+         - connection
+         - properties
+
+        """
+        logging.debug(f"connection_setClientInfo connection id: {connection.id} " +
+                      f"properties {str(properties)}")
+        if connection.id not in self._connections:
+            raise ttypes.QFSQLException(reason=f"connection {connection.id} is not open",
+                                        sqlState="08003", vendorCode=0)
+        # Pooled connections are reused across queries, so the query
+        # properties (row groups, table, etc.) are replaced per use.
+        self._connections[connection.id]['properties'] = properties
+
     def connection_getCatalogSeparator(self, connection):
         """
         Parameters:
@@ -582,6 +879,16 @@ class QflockThriftJdbcHandler:
         if connection.id in self._connections:
             del self._connections[connection.id]
             self._lock.acquire()
+            open_cursors = [k for k, v in self._cursors.items()
+                            if v['connection_id'] == connection.id]
+            self._lock.release()
+            for result_set_id in open_cursors:
+                self._close_cursor(result_set_id)
+            self._lock.acquire()
+            # Prepared statements cached by the client are closed with their connection.
+            for statement_id in [k for k, v in self._pstatements.items()
+                                 if v['connection'].id == connection.id]:
+                del self._pstatements[statement_id]
             num_connections = len(self._connections.keys())
             if len(self._connections.keys()) == 0:
                 # self._clean_spark_temp_dir()
@@ -610,19 +917,186 @@ class QflockThriftJdbcHandler:
         """
         logging.debug(inspect.currentframe().f_code.co_name)
 
-    def statement_executeQuery(self, statement, sql):
+    def statement_executeQuery(self, statement, sql, fetchSize):
         """
         Parameters:
          - statement
          - sql
+         - fetchSize
 
         """
-        logging.debug(f"statement_executeQuery:: statement id: {statement.id} sql: {sql}")
-        row = ttypes.QFRow([ttypes.QFValue(isnull=False, val=ttypes.RawVal(integer_val=42))])
-        rows = [row]
-        parts = [ttypes.QFResultSetMetaDataPart(columnName='fakecol1', columnType='INT64')]
-        metadata = ttypes.QFResultSetMetaData(parts)
-        return ttypes.QFResultSet(42, rows, metadata)
+        connection = self._connections[statement.id_connection]
+        logging.debug(f"statement_executeQuery:: statement id: {statement.id} " +
+                      f"conn id: {statement.id_connection} fetchSize: {fetchSize} sql: {sql}")
+        self._spark.sql(f"USE {connection['dbname']}")
+        return self.exec_query(sql, connection, fetchSize)
+
+    def statement_fetchNext(self, resultSetId, fetchSize):
+        """
+        Parameters:
+         - resultSetId
+         - fetchSize
+
+        """
+        logging.debug(f"statement_fetchNext:: result set id: {resultSetId} fetchSize: {fetchSize}")
+        start_time = time.perf_counter_ns()
+        result = self._fetch_page(resultSetId, fetchSize)
+        result.serverTimeNs = time.perf_counter_ns() - start_time
+        return result
+
+    def statement_closeResultSet(self, resultSetId):
+        """
+        Parameters:
+         - resultSetId
+
+        """
+        logging.debug(f"statement_closeResultSet:: result set id: {resultSetId}")
+        self._close_cursor(resultSetId)
+
+    def connection_getRowGroupCount(self, connection, tableName):
+        """
+        Parameters:
+         - connection
+         - tableName
+
+        Returns the number of row groups of the table.
+        """
+        if connection.id not in self._connections:
+            raise ttypes.QFSQLException(reason=f"connection {connection.id} is not open",
+                                        sqlState="08003", vendorCode=0)
+        if tableName not in self._table_row_groups:
+            raise ttypes.QFSQLException(reason=f"table {tableName} not found",
+                                        sqlState="42S02", vendorCode=0)
+        return self._table_row_groups[tableName]
+
+    def connection_executeBatch(self, connection, ranges, fetchSize):
+        """
+        Parameters:
+         - connection
+         - ranges
+         - fetchSize
+
+        Starts all the query ranges and returns once at least one completes.
+        """
+        if connection.id not in self._connections:
+            raise ttypes.QFSQLException(reason=f"connection {connection.id} is not open",
+                                        sqlState="08003", vendorCode=0)
+        conn = self._connections[connection.id]
+        self._lock.acquire()
+        batch_id = self._batch_id
+        self._batch_id += 1
+        batch = {'queue': queue.Queue(), 'remaining': len(ranges), 'closed': False}
+        self._batches[batch_id] = batch
+        self._lock.release()
+        logging.debug(f"connection_executeBatch:: batch id: {batch_id} conn id: {connection.id} " +
+                      f"ranges: {len(ranges)} fetchSize: {fetchSize}")
+        for index, query_range in enumerate(ranges):
+            properties = dict(conn['properties'])
+            # A negative offset or count keeps the value of the connection.
+            if query_range.rowGroupOffset >= 0:
+                properties['rowGroupOffset'] = str(query_range.rowGroupOffset)
+            if query_range.rowGroupCount >= 0:
+                properties['rowGroupCount'] = str(query_range.rowGroupCount)
+            range_conn = dict(conn, properties=properties)
+            self._batch_executor.submit(self._exec_batch_range, batch, index,
+                                        query_range.sql, range_conn, fetchSize)
+        return self._collect_batch(batch_id)
+
+    def connection_fetchBatch(self, batchId):
+        """
+        Parameters:
+         - batchId
+
+        Returns the results completed since the last call, waiting for at least one.
+        """
+        logging.debug(f"connection_fetchBatch:: batch id: {batchId}")
+        return self._collect_batch(batchId)
+
+    def connection_closeBatch(self, batchId):
+        """
+        Parameters:
+         - batchId
+
+        """
+        logging.debug(f"connection_closeBatch:: batch id: {batchId}")
+        self._lock.acquire()
+        batch = self._batches.pop(batchId, None)
+        if batch is not None:
+            batch['closed'] = True
+        self._lock.release()
+        if batch is not None:
+            # Results nobody will fetch may hold open cursors.
+            while True:
+                try:
+                    index, result = batch['queue'].get_nowait()
+                except queue.Empty:
+                    break
+                if result is not None and result.hasMore:
+                    self._close_cursor(result.id)
+
+    def _exec_batch_range(self, batch, index, sql, connection, fetch_size):
+        result = None
+        try:
+            self._spark.sql(f"USE {connection['dbname']}")
+            # A range which finds all views in use waits for one,
+            # rather than failing the whole batch.
+            result = self.exec_query(sql, connection, fetch_size,
+                                     keep_waiting=lambda: not batch['closed'])
+            if result is not None:
+                result.batchIndex = index
+        except Exception as ex:
+            logging.warning(f"exception hit in batch query {index}")
+            traceback.print_exception(type(ex), ex, ex.__traceback__)
+        self._lock.acquire()
+        closed = batch['closed']
+        self._lock.release()
+        if closed and result is not None and result.hasMore:
+            self._close_cursor(result.id)
+        else:
+            batch['queue'].put((index, result))
+
+    def _collect_batch(self, batch_id):
+        self._lock.acquire()
+        batch = self._batches.get(batch_id)
+        self._lock.release()
+        if batch is None:
+            raise ttypes.QFSQLException(reason=f"batch {batch_id} is not open",
+                                        sqlState="24000", vendorCode=0)
+        # The batch may be closed while we wait, after which its
+        # remaining results are dropped rather than queued.
+        completed = []
+        while len(completed) == 0:
+            try:
+                completed.append(batch['queue'].get(timeout=self.BATCH_POLL_SECONDS))
+            except queue.Empty:
+                self._lock.acquire()
+                closed = batch['closed']
+                self._lock.release()
+                if closed:
+                    raise ttypes.QFSQLException(reason=f"batch {batch_id} was closed",
+                                                sqlState="24000", vendorCode=0)
+        while True:
+            try:
+                completed.append(batch['queue'].get_nowait())
+            except queue.Empty:
+                break
+        self._lock.acquire()
+        batch['remaining'] -= len(completed)
+        has_more = batch['remaining'] > 0
+        if not has_more:
+            self._batches.pop(batch_id, None)
+        self._lock.release()
+        failed = [index for index, result in completed if result is None]
+        if len(failed) > 0:
+            self.connection_closeBatch(batch_id)
+            for index, result in completed:
+                if result is not None and result.hasMore:
+                    self._close_cursor(result.id)
+            raise ttypes.QFSQLException(reason=f"batch {batch_id} query {failed[0]} failed",
+                                        sqlState="HY000", vendorCode=0)
+        return ttypes.QFBatchResult(batchId=batch_id,
+                                    results=[result for index, result in completed],
+                                    hasMore=has_more)
 
     def map_data_type(self, data_type):
         if isinstance(data_type, StringType):
@@ -773,6 +1247,119 @@ class QflockThriftJdbcHandler:
         else:
             logging.warning(f"preparedStatement id {statement.id} not found")
 
+    def connection_prepareStatement(self, connection, sql):
+        """
+        Parameters:
+         - connection
+         - sql
+
+        Keeps the statement text on the server, so executions only send their parameters.
+        """
+        if connection.id not in self._connections:
+            raise ttypes.QFSQLException(reason=f"connection {connection.id} is not open",
+                                        sqlState="08003", vendorCode=0)
+        self._lock.acquire()
+        current_id = self.get_prepared_statement_id()
+        self._pstatements[current_id] = {'connection': connection, 'sql': sql,
+                                         'parameters': self._count_parameters(sql)}
+        self._lock.release()
+        logging.debug(f"connection_prepareStatement id {current_id} connection id: {connection.id} " +
+                      f"sql: {sql}")
+        return ttypes.QFPreparedStatement(id=current_id, sql=sql, id_connection=connection.id)
+
+    @staticmethod
+    def _split_parameters(sql):
+        """Splits the sql at each ? parameter marker outside of quotes."""
+        parts = []
+        start = 0
+        quote = None
+        i = 0
+        while i < len(sql):
+            c = sql[i]
+            if quote is not None:
+                if c == '\\' and quote != '`':
+                    # Skip the escaped character.
+                    i += 1
+                elif c == quote:
+                    quote = None
+            elif c in ("'", '"', '`'):
+                quote = c
+            elif c == '?':
+                parts.append(sql[start:i])
+                start = i + 1
+            i += 1
+        parts.append(sql[start:])
+        return parts
+
+    @staticmethod
+    def _count_parameters(sql):
+        return len(QflockThriftJdbcHandler._split_parameters(sql)) - 1
+
+    @staticmethod
+    def _sql_literal(value):
+        if value is None or value.isnull or value.val is None:
+            return "NULL"
+        raw = value.val
+        if raw.string_val is not None:
+            escaped = raw.string_val.replace('\\', '\\\\').replace("'", "\\'")
+            return f"'{escaped}'"
+        if raw.bool_val is not None:
+            return "true" if raw.bool_val else "false"
+        if raw.double_val is not None:
+            return f"CAST('{repr(raw.double_val)}' AS DOUBLE)"
+        if raw.bigint_val is not None:
+            return f"{raw.bigint_val}L"
+        if raw.integer_val is not None:
+            return str(raw.integer_val)
+        if raw.smallint_val is not None:
+            return f"{raw.smallint_val}S"
+        return "NULL"
+
+    def _bind_parameters(self, sql, parameters):
+        parts = self._split_parameters(sql)
+        if len(parameters) != len(parts) - 1:
+            raise ttypes.QFSQLException(reason=f"statement has {len(parts) - 1} parameters, " +
+                                               f"{len(parameters)} were bound",
+                                        sqlState="07001", vendorCode=0)
+        bound = [parts[0]]
+        for value, part in zip(parameters, parts[1:]):
+            bound.append(self._sql_literal(value))
+            bound.append(part)
+        return "".join(bound)
+
+    def preparedStatement_executeBound(self, statement, parameters, rowGroupOffset,
+                                       rowGroupCount, fetchSize):
+        """
+        Parameters:
+         - statement
+         - parameters
+         - rowGroupOffset
+         - rowGroupCount
+         - fetchSize
+
+        Runs a statement prepared with connection_prepareStatement.
+        A negative offset or count keeps the value of the connection.
+        """
+        self._lock.acquire()
+        pstatement = self._pstatements.get(statement.id)
+        self._lock.release()
+        if pstatement is None or 'sql' not in pstatement:
+            raise ttypes.QFSQLException(reason=f"preparedStatement {statement.id} is not prepared",
+                                        sqlState="26000", vendorCode=0)
+        conn = self._connections[pstatement['connection'].id]
+        sql = self._bind_parameters(pstatement['sql'], parameters)
+        properties = dict(conn['properties'])
+        if rowGroupOffset >= 0:
+            properties['rowGroupOffset'] = str(rowGroupOffset)
+        if rowGroupCount >= 0:
+            properties['rowGroupCount'] = str(rowGroupCount)
+        logging.debug(f"preparedStatement_executeBound:: statement id: {statement.id} " +
+                      f"conn id: {conn['id']} off/cnt: {properties['rowGroupOffset']}/" +
+                      f"{properties['rowGroupCount']} fetchSize: {fetchSize} sql: {sql}")
+        self._spark.sql(f"USE {conn['dbname']}")
+        return self.exec_query(sql, dict(conn, properties=properties), fetchSize,
+                               use_plan_cache=True)
+
     def preparedStatement_execute(self, statement, sql):
         """
         Parameters:
@@ -782,11 +1369,12 @@ class QflockThriftJdbcHandler:
         """
         logging.debug(inspect.currentframe().f_code.co_name)
 
-    def preparedStatement_executeQuery(self, statement, sql):
+    def preparedStatement_executeQuery(self, statement, sql, fetchSize):
         """
         Parameters:
          - statement
          - sql
+         - fetchSize
 
         """
         connection_id = self._pstatements[statement.id]['connection'].id
@@ -804,7 +1392,7 @@ class QflockThriftJdbcHandler:
         # metadata = ttypes.QFResultSetMetaData(parts)
         # return ttypes.QFResultSet(42, rows, metadata)
         self._spark.sql(f"USE {connection['dbname']}")
-        return self.exec_query(sql, connection)
+        return self.exec_query(sql, connection, fetchSize)
 
     def preparedStatement_getResultSet(self, statement):
         """
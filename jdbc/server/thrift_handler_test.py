@@ -0,0 +1,108 @@
+#!/usr/bin/python3
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#    http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+"""Tests of QflockThriftJdbcHandler which need no Spark session.
+   Run from this directory with: python3 -m unittest thrift_handler_test
+"""
+import threading
+import types
+import unittest
+from collections import OrderedDict
+from unittest import mock
+
+from com.github.qflock.jdbc.api import ttypes
+
+import thrift_handler
+from thrift_handler import QflockThriftJdbcHandler
+
+
+class FakeSpark:
+    """Counts the queries which are analyzed, so the plan of each is new."""
+    def __init__(self):
+        self.analyzed = []
+        self._jsparkSession = None
+
+    def sql(self, query):
+        if not query.startswith("USE "):
+            self.analyzed.append(query)
+        plan = ('plan', query)
+        return types.SimpleNamespace(_jdf=types.SimpleNamespace(
+            queryExecution=lambda: types.SimpleNamespace(analyzed=lambda: plan)))
+
+
+class PlanCacheTest(unittest.TestCase):
+
+    SQL = "SELECT * FROM t WHERE a = ? AND b = ?"
+
+    def setUp(self):
+        handler = QflockThriftJdbcHandler.__new__(QflockThriftJdbcHandler)
+        handler._lock = threading.Lock()
+        handler._plan_templates = OrderedDict()
+        handler._max_plan_templates = 2
+        handler._spark = FakeSpark()
+        dataset = types.SimpleNamespace(ofRows=lambda session, plan: plan)
+        handler._gw = types.SimpleNamespace(jvm=types.SimpleNamespace(org=types.SimpleNamespace(
+            apache=types.SimpleNamespace(spark=types.SimpleNamespace(
+                sql=types.SimpleNamespace(Dataset=dataset))))))
+        connection = {'id': 1, 'dbname': 'db',
+                      'properties': {'rowGroupOffset': '0', 'rowGroupCount': '1'}}
+        handler._connections = {1: connection}
+        handler._pstatements = {7: {'connection': types.SimpleNamespace(id=1),
+                                    'sql': self.SQL}}
+        # Runs the query as far as its dataframe.
+        handler.exec_query = lambda sql, conn, fetch_size, use_plan_cache=False: \
+            handler._get_dataframe(sql, use_plan_cache)
+        self.handler = handler
+        patcher = mock.patch.object(thrift_handler, 'DataFrame', lambda jdf, session: jdf)
+        patcher.start()
+        self.addCleanup(patcher.stop)
+
+    def execute(self, a, b, offset=0):
+        parameters = [ttypes.QFValue(isnull=False, val=ttypes.RawVal(integer_val=a)),
+                      ttypes.QFValue(isnull=False, val=ttypes.RawVal(string_val=b))]
+        return self.handler.preparedStatement_executeBound(
+            types.SimpleNamespace(id=7), parameters, offset, 1, 0)
+
+    def test_bound_text_is_the_key(self):
+        self.execute(1, 'x')
+        self.assertEqual(list(self.handler._plan_templates),
+                         ["SELECT * FROM t WHERE a = 1 AND b = 'x'"])
+        # The same values on another row group range reuse the plan.
+        self.assertEqual(self.execute(1, 'x', offset=5),
+                         ('plan', "SELECT * FROM t WHERE a = 1 AND b = 'x'"))
+        self.assertEqual(len(self.handler._spark.analyzed), 1)
+        # Other values are another query text, so they are analyzed again.
+        self.execute(2, 'x')
+        self.execute(1, "x'y")
+        self.assertEqual(self.handler._spark.analyzed[1:],
+                         ["SELECT * FROM t WHERE a = 2 AND b = 'x'",
+                          "SELECT * FROM t WHERE a = 1 AND b = 'x\\'y'"])
+
+    def test_least_recently_used_plan_is_evicted(self):
+        self.execute(1, 'x')
+        self.execute(2, 'x')
+        self.execute(1, 'x')
+        self.execute(3, 'x')
+        self.assertEqual(list(self.handler._plan_templates),
+                         ["SELECT * FROM t WHERE a = 1 AND b = 'x'",
+                          "SELECT * FROM t WHERE a = 3 AND b = 'x'"])
+        self.execute(2, 'x')
+        self.assertEqual(len(self.handler._spark.analyzed), 4)
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -92,6 +92,31 @@ struct QFResultSet
   8: list<i32> compressedColumnBytes,
   9: list<list<i32>> strLenVector,
   10: list<binary> parquet,
+  11: bool hasMore,
+  12: binary arrowStream,
+  13: i32 batchIndex,
+  14: i64 serverTimeNs,
+  // Codec of each entry of compressedRows: 0 none, 1 zstd, 2 lz4.
+  15: list<i32> columnCodecs,
+  // Encoding of each column: 0 plain, 1 dictionary.  A dictionary column
+  // holds a code of columnTypeBytes bytes per row, indexing the distinct
+  // strings in dictionaries, whose lengths are in strLenVector.
+  16: list<i32> columnEncodings,
+  17: list<binary> dictionaries,
+}
+
+struct QFQueryRange
+{
+  1: string sql,
+  2: i32 rowGroupOffset,
+  3: i32 rowGroupCount
+}
+
+struct QFBatchResult
+{
+  1: i32 batchId,
+  2: list<QFResultSet> results,
+  3: bool hasMore
 }
 
 struct QFStaticMetaData
@@ -134,6 +159,7 @@ service QflockJdbcService {
 
    QFStatement createStatement(1:QFConnection connection),
    QFPreparedStatement createPreparedStatement(1:QFConnection connection),
+   QFPreparedStatement connection_prepareStatement(1:QFConnection connection, 2:string sql) throws (1:QFSQLException ouch)
 
    QFStaticMetaData connection_getstaticmetadata(1:QFConnection connection),
    bool connection_isvalid(1:QFConnection connection, 2:i32 timeout),
@@ -149,6 +175,7 @@ service QflockJdbcService {
    string connection_getCatalog(1:QFConnection connection) throws (1:QFSQLException ouch)
    void connection_setSchema(1:QFConnection connection, 2:string schema) throws (1:QFSQLException ouch)
    string connection_getSchema(1:QFConnection connection) throws (1:QFSQLException ouch)
+   void connection_setClientInfo(1:QFConnection connection, 2:map<string,string> properties) throws (1:QFSQLException ouch)
 
    string connection_getCatalogSeparator(1:QFConnection connection),
    string connection_getCatalogTerm(1:QFConnection connection),
@@ -167,7 +194,13 @@ service QflockJdbcService {
 
    void statement_close(1:QFStatement statement) throws (1:QFSQLException ouch)
    bool statement_execute(1:QFStatement statement, 2:string sql) throws (1:QFSQLException ouch)
-   QFResultSet statement_executeQuery(1:QFStatement statement, 2:string sql) throws (1:QFSQLException ouch)
+   QFResultSet statement_executeQuery(1:QFStatement statement, 2:string sql, 3:i32 fetchSize) throws (1:QFSQLException ouch)
+   QFResultSet statement_fetchNext(1:i32 resultSetId, 2:i32 fetchSize) throws (1:QFSQLException ouch)
+   void statement_closeResultSet(1:i32 resultSetId) throws (1:QFSQLException ouch)
+   QFBatchResult connection_executeBatch(1:QFConnection connection, 2:list<QFQueryRange> ranges, 3:i32 fetchSize) throws (1:QFSQLException ouch)
+   QFBatchResult connection_fetchBatch(1:i32 batchId) throws (1:QFSQLException ouch)
+   void connection_closeBatch(1:i32 batchId) throws (1:QFSQLException ouch)
+   i32 connection_getRowGroupCount(1:QFConnection connection, 2:string tableName) throws (1:QFSQLException ouch)
    QFResultSet statement_getResultSet(1:QFStatement statement) throws (1:QFSQLException ouch)
    i32 statement_getUpdateCount(1:QFStatement statement),
    i32 statement_getResultSetType(1:QFStatement statement)
@@ -183,7 +216,8 @@ service QflockJdbcService {
 
    void preparedStatement_close(1:QFPreparedStatement statement) throws (1:QFSQLException ouch)
    bool preparedStatement_execute(1:QFPreparedStatement statement, 2:string sql) throws (1:QFSQLException ouch)
-   QFResultSet preparedStatement_executeQuery(1:QFPreparedStatement statement, 2:string sql) throws (1:QFSQLException ouch)
+   QFResultSet preparedStatement_executeQuery(1:QFPreparedStatement statement, 2:string sql, 3:i32 fetchSize) throws (1:QFSQLException ouch)
+   QFResultSet preparedStatement_executeBound(1:QFPreparedStatement statement, 2:list<QFValue> parameters, 3:i32 rowGroupOffset, 4:i32 rowGroupCount, 5:i32 fetchSize) throws (1:QFSQLException ouch)
    QFResultSet preparedStatement_getResultSet(1:QFPreparedStatement statement) throws (1:QFSQLException ouch)
    i32 preparedStatement_getUpdateCount(1:QFPreparedStatement statement),
    i32 preparedStatement_getResultSetType(1:QFPreparedStatement statement)
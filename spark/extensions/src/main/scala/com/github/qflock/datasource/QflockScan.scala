@@ -71,7 +71,6 @@ class QflockScan(schema: StructType,
                                         pushedAggregation, options)
 
   override def readSchema(): StructType = pushdown.readSchema
-  private val partitions: Array[InputPartition] = getPartitions
 
   private def createPartitionsParquet(blockMap: Map[String, Array[BlockLocation]]):
               Array[InputPartition] = {
@@ -134,8 +133,11 @@ class QflockScan(schema: StructType,
       case "parquet" => createPartitionsParquet(blocks)
     }
   }
+  /** The row group range is read from the table descriptor each time the
+   *  scan is planned, so a cached plan can be run again for a new range.
+   */
   override def planInputPartitions(): Array[InputPartition] = {
-    partitions
+    getPartitions
   }
   override def createReaderFactory(): PartitionReaderFactory = {
     new QflockColumnarPartitionReaderFactory(pushdown, options,
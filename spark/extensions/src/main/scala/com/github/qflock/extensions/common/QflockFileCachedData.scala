@@ -19,6 +19,7 @@ package com.github.qflock.extensions.common
 
 import java.io.{BufferedOutputStream, DataOutputStream, File, FileOutputStream}
 import java.nio.file.{Files, Paths}
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import org.slf4j.{Logger, LoggerFactory}
 
@@ -39,15 +40,24 @@ class QflockFileCachedData(key: String, partition: Int) {
   var stream: Option[DataOutputStream] = Some(new DataOutputStream(
     new BufferedOutputStream(
       new FileOutputStream(cacheFile))))
+  // Released once the file is completely written.
+  private val written = new CountDownLatch(1)
   def close(): Unit = {
     if (stream.isDefined) {
       stream.get.flush()
       stream.get.close()
       stream = None
+      written.countDown()
     }
   }
   def shouldWrite: Boolean = stream.isDefined
-  def isDataValid: Boolean = stream.isEmpty
+  def isDataValid: Boolean = written.getCount == 0
+
+  /** Waits for the writer of the cache file to finish.
+   * @param timeoutMs longest time to wait
+   * @return true if the data is valid, false if the wait timed out.
+   */
+  def awaitData(timeoutMs: Long): Boolean = written.await(timeoutMs, TimeUnit.MILLISECONDS)
   def getFile: String = cacheFile
 }
 
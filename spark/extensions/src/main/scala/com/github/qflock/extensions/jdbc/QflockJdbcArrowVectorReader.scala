@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.jdbc
+
+import java.sql.{Connection, ResultSet}
+import java.util
+import java.util.Properties
+
+import scala.collection.JavaConverters._
+
+import com.github.qflock.jdbc.{QflockDataSource, QflockPreparedStatement, QflockResultSet,
+  QflockStatementMetrics}
+import org.slf4j.LoggerFactory
+
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.vectorized.{ArrowColumnVector, ColumnarBatch, ColumnVector}
+
+
+/** Allows for reading batches of columns from the jdbc server
+ *  using the Arrow IPC stream format.
+ *  Each Arrow record batch is returned as one ColumnarBatch, whose
+ *  columns wrap the Arrow vectors without copying.
+ *
+ *  @param schema description of columns
+ *  @param part the current jdbc partition
+ *  @param options data source options.
+ */
+class QflockJdbcArrowVectorReader(schema: StructType,
+                                  part: QflockJdbcPartition,
+                                  options: util.Map[String, String])
+    extends QflockColumnarVectorReader {
+  private val logger = LoggerFactory.getLogger(getClass)
+  def next(): Boolean = {
+    nextBatch()
+  }
+  def get(): ColumnarBatch = {
+    columnarBatch.get
+  }
+  private var connection: Option[Connection] = None
+  private var metrics: Option[QflockStatementMetrics] = None
+  private var results: Option[QflockResultSet] = None
+  private var columnarBatch: Option[ColumnarBatch] = None
+  def close(): Unit = {
+    metrics.foreach(m => logger.info(s"part:${part.index} $m"))
+    metrics = None
+    if (results.isDefined) {
+      // Releases the arrow vectors.
+      results.get.close()
+      results = None
+    }
+    if (connection.isDefined) {
+      connection.get.close()
+      connection = None
+    }
+  }
+
+  /**
+   * Advances to the next batch of rows. Returns false if there are no more.
+   * @return Boolean, true if more rows, false if none.
+   */
+  private def nextBatch(): Boolean = {
+    if (results.isEmpty) {
+      results = Some(getRemoteResults.asInstanceOf[QflockResultSet])
+      val root = results.get.getArrowRoot
+      val vectors = root.getFieldVectors.asScala.map(v => new ArrowColumnVector(v))
+      columnarBatch = Some(new ColumnarBatch(vectors.toArray[ColumnVector]))
+    }
+    if (results.get.loadNextArrowBatch()) {
+      val rows = results.get.getArrowRoot.getRowCount
+      logger.trace(s"nextBatch found rows: $rows")
+      columnarBatch.get.setNumRows(rows)
+      true
+    } else {
+      false
+    }
+  }
+
+  def getRemoteResults: ResultSet = {
+    val query = options.get("query")
+    val driver = options.get("driver")
+    val url = options.get("url")
+    try {
+      logger.debug("Loading " + driver)
+      // scalastyle:off classforname
+      Class.forName(driver).newInstance
+      // scalastyle:on classforname
+    } catch {
+      case e: Exception =>
+        logger.warn("Failed to load JDBC driver." + e.toString)
+    }
+
+    logger.debug(s"connecting to $url")
+    val properties = new Properties
+    properties.setProperty("rowGroupOffset", part.offset.toString)
+    properties.setProperty("rowGroupCount", part.length.toString)
+    properties.setProperty("resultApi", "arrow")
+    properties.setProperty("queryStats", options.getOrDefault("queryStats", ""))
+    properties.setProperty("tableName", options.get("tablename"))
+    properties.setProperty("queryName", options.get("queryname"))
+    properties.setProperty("appId", options.get("appid"))
+    val dataSource = QflockDataSource.getDataSource(url,
+      options.getOrDefault("poolsize", QflockDataSource.DEFAULT_MAX_POOL_SIZE.toString).toInt)
+    connection = Some(dataSource.getConnection(properties))
+    logger.debug(s"connected to $url")
+    val select = connection.get.prepareStatement(query).asInstanceOf[QflockPreparedStatement]
+    select.setRowGroupRange(part.offset.toInt, part.length.toInt)
+    logger.info(s"Starting query $query")
+    val result = select.executeQuery()
+    logger.info(s"Query complete $query")
+    // Lets the next partition on this connection reuse the server statement.
+    select.close()
+    val qfResultSet = result.asInstanceOf[QflockResultSet]
+    metrics = Some(qfResultSet.unwrap(classOf[QflockStatementMetrics]))
+    // Time to borrow the connection plus the time until the first page arrived.
+    val elapsed = metrics.get.getConnectNanos + metrics.get.getExecuteNanos
+    val appId = options.get("appid")
+    val queryName = options.getOrDefault("queryname", "")
+    val tableName = options.get("tablename")
+    val ruleLog = options.get("rulelog")
+    QflockLog.log(s"queryName:$queryName appId:$appId rows:${qfResultSet.getNumRows} " +
+                  s"bytes:${metrics.get.getCompressedBytes} ruleLog:$ruleLog " +
+                  s"tableName:$tableName part:${part.index} " +
+                  s"timeNs:$elapsed serverNs:${metrics.get.getServerNanos} query:$query",
+                  path = options.get("resultspath"))
+    result
+  }
+}
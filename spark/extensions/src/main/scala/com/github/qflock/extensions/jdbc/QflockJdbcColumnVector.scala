@@ -16,9 +16,10 @@
  */
 package com.github.qflock.extensions.jdbc
 
+import java.nio.{DoubleBuffer, IntBuffer, LongBuffer}
 import java.sql.ResultSet
 
-import com.github.qflock.jdbc.QflockResultSet
+import com.github.qflock.jdbc.{QflockColumnarResult, QflockResultSet}
 
 import org.apache.spark.sql.types._
 import org.apache.spark.sql.vectorized.ColumnVector
@@ -42,6 +43,17 @@ class QflockJdbcColumnVector(dataType: DataType, schema: StructType)
   }
   var resultSet: Option[QflockResultSet] = None
   var columnIndex: Option[Int] = None
+  // Views over the column of the current page, only the one
+  // matching dataType is set.
+  private var longs: LongBuffer = _
+  private var doubles: DoubleBuffer = _
+  private var ints: IntBuffer = _
+  private var strOffsets: Array[Int] = _
+  private var strBytes: Array[Byte] = _
+  private var strBytesOffset: Int = 0
+  // Set instead of the strings for dictionary encoded columns.
+  private var dictCodes: Array[Int] = _
+  private var dictionary: Array[UTF8String] = _
 
   def close(): Unit = {}
   def getArray(row: Int): org.apache.spark.sql.vectorized.ColumnarArray = { null }
@@ -50,22 +62,36 @@ class QflockJdbcColumnVector(dataType: DataType, schema: StructType)
   def getByte(row: Int): Byte = { resultSet.get.getByte(columnIndex.get, row) }
   def getChild(row: Int): org.apache.spark.sql.vectorized.ColumnVector = { null }
   def getDecimal(row: Int, r: Int, p: Int): org.apache.spark.sql.types.Decimal = { Decimal(0) }
-  def getDouble(row: Int): Double = {
-    resultSet.get.getDouble(columnIndex.get + 1, row + 1)
-  }
+  def getDouble(row: Int): Double = { doubles.get(row) }
   def getFloat(row: Int): Float = {
     resultSet.get.getFloat(columnIndex.get + 1, row + 1)
   }
-  def getInt(row: Int): Int = {
-    resultSet.get.getInt(columnIndex.get + 1, row + 1)
+  def getInt(row: Int): Int = { ints.get(row) }
+  def getLong(row: Int): Long = { longs.get(row) }
+  override def getDoubles(row: Int, count: Int): Array[Double] = {
+    val res = new Array[Double](count)
+    resultSet.get.copyDoubles(columnIndex.get + 1, row, res, 0, count)
+    res
+  }
+  override def getInts(row: Int, count: Int): Array[Int] = {
+    val res = new Array[Int](count)
+    resultSet.get.copyInts(columnIndex.get + 1, row, res, 0, count)
+    res
   }
-  def getLong(row: Int): Long = {
-    resultSet.get.getLong(columnIndex.get + 1, row + 1)
+  override def getLongs(row: Int, count: Int): Array[Long] = {
+    val res = new Array[Long](count)
+    resultSet.get.copyLongs(columnIndex.get + 1, row, res, 0, count)
+    res
   }
   def getMap(row: Int): org.apache.spark.sql.vectorized.ColumnarMap = { null }
   def getShort(row: Int): Short = { resultSet.get.getShort(columnIndex.get, row) }
   def getUTF8String(row: Int): org.apache.spark.unsafe.types.UTF8String = {
-    UTF8String.fromString(resultSet.get.getString(columnIndex.get + 1, row + 1))
+    if (dictionary != null) {
+      return dictionary(dictCodes(row))
+    }
+    // Point at the column bytes rather than decoding to a String.
+    val offset = strOffsets(row)
+    UTF8String.fromBytes(strBytes, strBytesOffset + offset, strOffsets(row + 1) - offset)
   }
   def hasNull: Boolean = { false }
   def isNullAt(row: Int): Boolean = { false }
@@ -78,7 +104,33 @@ class QflockJdbcColumnVector(dataType: DataType, schema: StructType)
   def setupColumn(colIdx: Integer, resSet: ResultSet): Int = {
     columnIndex = Some(colIdx)
     resultSet = Some(resSet.asInstanceOf[QflockResultSet])
-    resultSet.get.getNumRows
+    val columnar = resSet.unwrap(classOf[QflockColumnarResult])
+    val col = colIdx + 1
+    if (columnar.getNumRows == 0) {
+      // An empty page carries no column data.
+      return 0
+    }
+    dataType match {
+      case StringType if columnar.isDictionaryEncoded(col) =>
+        // One UTF8String per distinct value, pointing at the dictionary bytes.
+        val bytes = columnar.getDictionaryBytes(col)
+        val offsets = columnar.getDictionaryOffsets(col)
+        val base = bytes.arrayOffset() + bytes.position()
+        dictionary = Array.tabulate(offsets.length - 1) { i =>
+          UTF8String.fromBytes(bytes.array(), base + offsets(i), offsets(i + 1) - offsets(i))
+        }
+        dictCodes = columnar.getDictionaryCodes(col)
+      case StringType =>
+        val bytes = columnar.getStringBytes(col)
+        strOffsets = columnar.getStringOffsets(col)
+        strBytes = bytes.array()
+        strBytesOffset = bytes.arrayOffset() + bytes.position()
+        dictionary = null
+      case IntegerType => ints = columnar.getIntColumn(col)
+      case DoubleType => doubles = columnar.getDoubleColumn(col)
+      case LongType => longs = columnar.getLongColumn(col)
+    }
+    columnar.getNumRows
   }
 }
 
@@ -16,12 +16,13 @@
  */
 package com.github.qflock.extensions.jdbc
 
-import java.sql.{Connection, DriverManager, ResultSet}
+import java.sql.{Connection, ResultSet}
 import java.util
 import java.util.Properties
 
 import com.github.qflock.extensions.common.QflockQueryCache
-import com.github.qflock.jdbc.QflockResultSet
+import com.github.qflock.jdbc.{QflockDataSource, QflockPreparedStatement, QflockResultSet,
+  QflockStatementMetrics}
 import org.slf4j.LoggerFactory
 
 import org.apache.spark.broadcast.Broadcast
@@ -54,6 +55,7 @@ class QflockJdbcParquetVectorReader(schema: StructType,
     batch
   }
   private var connection: Option[Connection] = None
+  private var metrics: Option[QflockStatementMetrics] = None
   def close(): Unit = {
     if (connection.isDefined) {
       connection.get.close()
@@ -154,23 +156,30 @@ class QflockJdbcParquetVectorReader(schema: StructType,
     properties.setProperty("resultApi", "parquet")
     properties.setProperty("queryName", options.get("queryname"))
     properties.setProperty("appId", options.get("appid"))
-    val startTime = System.nanoTime()
-    connection = Some(DriverManager.getConnection(url, properties))
+    // Connections are pooled per url and shared by the tasks of this executor.
+    val dataSource = QflockDataSource.getDataSource(url,
+      options.getOrDefault("poolsize", QflockDataSource.DEFAULT_MAX_POOL_SIZE.toString).toInt)
+    connection = Some(dataSource.getConnection(properties))
     logger.debug(s"connected to $url")
-    val select = connection.get.prepareStatement(query)
+    val select = connection.get.prepareStatement(query).asInstanceOf[QflockPreparedStatement]
+    select.setRowGroupRange(part.offset.toInt, part.length.toInt)
     logger.debug(s"Starting query $query")
-    val result = select.executeQuery(query)
+    val result = select.executeQuery()
     logger.debug(s"Query complete $query")
-    val elapsed = System.nanoTime() - startTime
+    // Lets the next partition on this connection reuse the server statement.
+    select.close()
     val qfResultSet = result.asInstanceOf[QflockResultSet]
+    metrics = Some(qfResultSet.unwrap(classOf[QflockStatementMetrics]))
+    // Time to borrow the connection plus the time until the first page arrived.
+    val elapsed = metrics.get.getConnectNanos + metrics.get.getExecuteNanos
     val appId = options.get("appid")
     val queryName = options.getOrDefault("queryname", "")
     val tableName = options.get("tablename")
     val ruleLog = options.get("rulelog")
     QflockLog.log(s"queryName:$queryName appId:$appId rows:${qfResultSet.getNumRows} " +
-                  s"bytes:${qfResultSet.getSize} ruleLog:$ruleLog " +
+                  s"bytes:${metrics.get.getCompressedBytes} ruleLog:$ruleLog " +
                   s"tableName:$tableName part:${part.index} " +
-                  s"timeNs:$elapsed query:$query",
+                  s"timeNs:$elapsed serverNs:${metrics.get.getServerNanos} query:$query",
                   path = options.get("resultspath"))
     // return the result and the connection so we can close it later.
     result
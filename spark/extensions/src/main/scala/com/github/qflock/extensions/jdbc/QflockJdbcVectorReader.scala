@@ -16,12 +16,15 @@
  */
 package com.github.qflock.extensions.jdbc
 
-import java.sql.{Connection, DriverManager, ResultSet}
+import java.sql.{Connection, ResultSet}
 import java.util
 import java.util.Properties
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, ExecutionException, Semaphore}
 
 import com.github.qflock.extensions.common.QflockQueryCache
-import com.github.qflock.jdbc.QflockResultSet
+import com.github.qflock.jdbc.{QflockBatchResults, QflockColumnarResult, QflockConnection,
+  QflockDataSource, QflockPreparedStatement, QflockResultSet, QflockStatement,
+  QflockStatementMetrics}
 import org.slf4j.LoggerFactory
 
 import org.apache.spark.sql.types._
@@ -47,12 +50,62 @@ class QflockJdbcVectorReader(schema: StructType,
     columnarBatch
   }
   private var connection: Option[Connection] = None
+  // Metrics of the query, which keep counting fetch and decompress time until close.
+  private var metrics: Option[QflockStatementMetrics] = None
   def close(): Unit = {
+    metrics.foreach(m => logger.info(s"part:${part.index} $m"))
+    metrics = None
+    closeResults()
+    releaseView()
+    if (prefetched.isDefined) {
+      val (statement, future) = prefetched.get
+      prefetched = None
+      // The prefetch runs on the connection, so it must be done before the
+      // connection goes back to the pool.
+      try {
+        future.get().close()
+      } catch {
+        case e: Exception => logger.debug(s"prefetched query failed ${e.toString}")
+      } finally {
+        statement.close()
+      }
+      QflockJdbcVectorReader.releaseView(tableName)
+    }
+    if (batchResults.isDefined) {
+      // The batch releases its ranges on the connection, so it is also
+      // closed before the connection goes back to the pool.
+      batchResults.get.close()
+      batchResults = None
+    }
     if (connection.isDefined) {
       connection.get.close()
       connection = None
     }
   }
+  // With prefetchrowgroups set, the partition is queried in chunks of that
+  // many row groups.  The query for the next chunk is issued while the
+  // current chunk is consumed, so that its server time is hidden.
+  // All chunks run on the one connection of the task, whose transports let
+  // the prefetch run alongside the current chunk.  A second connection from
+  // the pool could deadlock once every task holds one and waits for another.
+  // The server only has maxviews views of each table, so prefetches of the
+  // tasks of this executor are limited to that many, and skipped beyond it.
+  private val chunkRowGroups = options.getOrDefault("prefetchrowgroups", "0").toLong
+  // With batchrowgroups set instead, the queries for all the chunks are sent
+  // in a single batch, and the chunks are read as the server completes them.
+  private val batchRowGroups = options.getOrDefault("batchrowgroups", "0").toLong
+  private val batched = batchRowGroups > 0 && batchRowGroups < part.length
+  private val chunked = batched || (chunkRowGroups > 0 && chunkRowGroups < part.length)
+  private var batchResults: Option[QflockBatchResults] = None
+  private var nextChunkOffset: Long = part.offset
+  // The statement of the prefetched chunk and its pending result.
+  private var prefetched: Option[(QflockPreparedStatement, CompletableFuture[QflockResultSet])] =
+    None
+  // Set while the current chunk was prefetched and holds a view.
+  private var holdsView = false
+  private val tableName = options.get("tablename")
+  private val maxViews =
+    options.getOrDefault("maxviews", QflockConnection.DEFAULT_MAX_VIEWS.toString).toInt
   private var rowsReturned: Long = 0
   private var currentBatchSize: Int = 0
   private var batchIdx: Long = 0
@@ -60,6 +113,8 @@ class QflockJdbcVectorReader(schema: StructType,
   private val colVectors = QflockJdbcColumnVector.apply(schema)
   private val columnarBatch = new ColumnarBatch(colVectors.asInstanceOf[Array[ColumnVector]])
   private var results: Option[ResultSet] = None
+  // Set while results is held by QflockQueryCache, which owns its buffers.
+  private var resultsCached = false
   /** Fetches the next set of columns from the stream, returning the
    *  number of rows that were returned.
    *  We expect all columns to return the same number of rows.
@@ -67,12 +122,28 @@ class QflockJdbcVectorReader(schema: StructType,
    *  @return Integer, the number of rows returned for the batch.
    */
   private def readNextBatch(): Integer = {
-    if (rowsReturned > 0) {
-      // There is only one batch.  So if we have already returned that
-      // batch, then we are done, just return 0 to indicate done.
+    if (results.isEmpty) {
+      results = if (chunked) nextChunk() else Some(getResults)
+    } else if (!results.get.asInstanceOf[QflockResultSet].nextPage()) {
+      // Each page of the result is one batch.  Without a fetch size
+      // there is only one page, so we are done with this result.
+      if (chunked) {
+        results = nextChunk()
+      } else {
+        closeResults()
+      }
+    }
+    // Skip over chunks which have no rows.
+    while (chunked && results.isDefined &&
+           results.get.asInstanceOf[QflockResultSet].getNumRows == 0 &&
+           !results.get.asInstanceOf[QflockResultSet].hasMorePages) {
+      results = nextChunk()
+    }
+    if (results.isEmpty) {
       return 0
     }
-    results = Some(getResults)
+    // Every column of the schema is read, so decompress them all in parallel.
+    results.get.unwrap(classOf[QflockColumnarResult]).decompressColumns()
     var rows: Integer = 0
     for (i <- 0 until numCols) {
       val currentRows = colVectors(i).setupColumn(i, results.get)
@@ -95,11 +166,15 @@ class QflockJdbcVectorReader(schema: StructType,
       val bytes = QflockQueryCache.bytes
       QflockLog.log(s"queryName:$queryName use-cached-data " +
                     s"appId:$appId part:${part.index} cachedBytes:$bytes key:$query")
+      resultsCached = true
       cachedValue.get.asInstanceOf[ResultSet]
     } else {
       val res = getRemoteResults
       val qfResultSet = res.asInstanceOf[QflockResultSet]
-      val cached = QflockQueryCache.insertData(query, part.index, res, qfResultSet.getSize)
+      // A paged result only holds its first page, so it cannot be cached.
+      val cached = !qfResultSet.hasMorePages &&
+        QflockQueryCache.insertData(query, part.index, res, qfResultSet.getSize)
+      resultsCached = cached
       if (cached) {
         val bytes = QflockQueryCache.bytes
         QflockLog.log(s"queryName:$queryName cache-data " +
@@ -109,8 +184,114 @@ class QflockJdbcVectorReader(schema: StructType,
     }
   }
 
-  def getRemoteResults: ResultSet = {
+  /** Returns the results of the next chunk of row groups, after issuing
+   *  the query for the chunk following it.
+   *
+   *  @return the results, or None once all chunks were read.
+   */
+  private def nextChunk(): Option[ResultSet] = {
+    if (batched) {
+      return nextBatchResult()
+    }
+    val end = part.offset + part.length
+    if (connection.isEmpty) {
+      connection = Some(getConnection(part.offset, part.length))
+    }
+    // The previous chunk is done.
+    if (results.isDefined) {
+      results.get.close()
+    }
+    releaseView()
+    val chunk = if (prefetched.isDefined) {
+      holdsView = true
+      prefetched.get
+    } else if (nextChunkOffset < end) {
+      submitChunk()
+    } else {
+      return None
+    }
+    prefetched = None
+    if (nextChunkOffset < end && QflockJdbcVectorReader.acquireView(tableName, maxViews)) {
+      try {
+        prefetched = Some(submitChunk())
+      } catch {
+        case e: Exception =>
+          QflockJdbcVectorReader.releaseView(tableName)
+          throw e
+      }
+    }
+    try {
+      Some(chunk._2.get())
+    } catch {
+      case e: ExecutionException => throw e.getCause
+    } finally {
+      // The result no longer needs the statement, which goes back to the
+      // statement cache of the connection for the next chunk.
+      chunk._1.close()
+    }
+  }
+
+  /** Returns the next result of the batch of chunks, after sending
+   *  the batch on the first call.
+   *
+   *  @return the results, or None once all chunks were read.
+   */
+  private def nextBatchResult(): Option[ResultSet] = {
+    if (results.isDefined) {
+      results.get.close()
+    }
+    if (batchResults.isEmpty) {
+      val query = options.get("query")
+      connection = Some(getConnection(part.offset, part.length))
+      val select = connection.get.createStatement().asInstanceOf[QflockStatement]
+      select.setFetchSize(options.getOrDefault("fetchsize", "0").toInt)
+      val end = part.offset + part.length
+      var offset = part.offset
+      while (offset < end) {
+        val length = math.min(batchRowGroups, end - offset)
+        select.addBatch(query, offset.toInt, length.toInt)
+        offset += length
+      }
+      logger.debug(s"sending batch of row groups ${part.offset}/${part.length} " +
+                   s"part:${part.index}")
+      batchResults = Some(select.executeQueryBatch())
+    }
+    if (batchResults.get.hasNext) Some(batchResults.get.next()) else None
+  }
+
+  private def submitChunk(): (QflockPreparedStatement, CompletableFuture[QflockResultSet]) = {
     val query = options.get("query")
+    val length = math.min(chunkRowGroups, part.offset + part.length - nextChunkOffset)
+    logger.debug(s"querying row groups $nextChunkOffset/$length part:${part.index}")
+    val select = connection.get.prepareStatement(query).asInstanceOf[QflockPreparedStatement]
+    select.setFetchSize(options.getOrDefault("fetchsize", "0").toInt)
+    select.setRowGroupRange(nextChunkOffset.toInt, length.toInt)
+    nextChunkOffset += length
+    (select, select.executeQueryAsync())
+  }
+
+  /** Closes the current results, so that their buffers go back to the pools
+   *  and the server releases any pages it still holds.  Results held by
+   *  QflockQueryCache are left open for the next reader.
+   */
+  private def closeResults(): Unit = {
+    if (results.isDefined && !resultsCached) {
+      results.get.close()
+    }
+    results = None
+    resultsCached = false
+  }
+
+  /** Gives back the view held by the current chunk, if it was prefetched.
+   */
+  private def releaseView(): Unit = {
+    if (holdsView) {
+      holdsView = false
+      QflockJdbcVectorReader.releaseView(tableName)
+    }
+  }
+
+  private def getConnection(rowGroupOffset: Long, rowGroupCount: Long): Connection = {
     val driver = options.get("driver")
     val url = options.get("url")
     try {
@@ -126,30 +307,44 @@ class QflockJdbcVectorReader(schema: StructType,
     logger.debug(s"connecting to $url")
     val properties = new Properties
     properties.setProperty("compression", "true")
-    properties.setProperty("rowGroupOffset", part.offset.toString)
-    properties.setProperty("rowGroupCount", part.length.toString)
+    properties.setProperty("rowGroupOffset", rowGroupOffset.toString)
+    properties.setProperty("rowGroupCount", rowGroupCount.toString)
     properties.setProperty("resultApi", "default")
     properties.setProperty("queryStats", options.getOrDefault("queryStats", ""))
     properties.setProperty("tableName", options.get("tablename"))
     properties.setProperty("queryName", options.get("queryname"))
     properties.setProperty("appId", options.get("appid"))
-    val startTime = System.nanoTime()
-    connection = Some(DriverManager.getConnection(url, properties))
+    // Connections are pooled per url and shared by the tasks of this executor.
+    val dataSource = QflockDataSource.getDataSource(url,
+      options.getOrDefault("poolsize", QflockDataSource.DEFAULT_MAX_POOL_SIZE.toString).toInt)
+    val newConnection = dataSource.getConnection(properties)
     logger.debug(s"connected to $url")
-    val select = connection.get.prepareStatement(query)
+    newConnection
+  }
+
+  def getRemoteResults: ResultSet = {
+    val query = options.get("query")
+    connection = Some(getConnection(part.offset, part.length))
+    val select = connection.get.prepareStatement(query).asInstanceOf[QflockPreparedStatement]
+    select.setFetchSize(options.getOrDefault("fetchsize", "0").toInt)
+    select.setRowGroupRange(part.offset.toInt, part.length.toInt)
     logger.info(s"Starting query $query")
-    val result = select.executeQuery(query)
+    val result = select.executeQuery()
     logger.info(s"Query complete $query")
-    val elapsed = System.nanoTime() - startTime
+    // Lets the next partition on this connection reuse the server statement.
+    select.close()
     val qfResultSet = result.asInstanceOf[QflockResultSet]
+    metrics = Some(qfResultSet.unwrap(classOf[QflockStatementMetrics]))
+    // Time to borrow the connection plus the time until the first page arrived.
+    val elapsed = metrics.get.getConnectNanos + metrics.get.getExecuteNanos
     val appId = options.get("appid")
     val queryName = options.getOrDefault("queryname", "")
     val tableName = options.get("tablename")
     val ruleLog = options.get("rulelog")
     QflockLog.log(s"queryName:$queryName appId:$appId rows:${qfResultSet.getNumRows} " +
-                  s"bytes:${qfResultSet.getSize} ruleLog:$ruleLog " +
+                  s"bytes:${metrics.get.getCompressedBytes} ruleLog:$ruleLog " +
                   s"tableName:$tableName part:${part.index} " +
-                  s"timeNs:$elapsed query:$query",
+                  s"timeNs:$elapsed serverNs:${metrics.get.getServerNanos} query:$query",
                   path = options.get("resultspath"))
     // return the result and the connection so we can close it later.
     result
@@ -179,6 +374,15 @@ class QflockJdbcVectorReader(schema: StructType,
 object QflockJdbcVectorReader {
 
   private val cache = collection.mutable.Map[String, ResultSet]()
+  // Views of each table held by prefetched chunks of this executor.
+  private val prefetchViews = new ConcurrentHashMap[String, Semaphore]()
+
+  private def acquireView(tableName: String, maxViews: Int): Boolean = {
+    prefetchViews.computeIfAbsent(tableName, _ => new Semaphore(maxViews)).tryAcquire()
+  }
+  private def releaseView(tableName: String): Unit = {
+    prefetchViews.get(tableName).release()
+  }
 
   def checkCache(key: String): Option[ResultSet] = {
     cache.get(key)
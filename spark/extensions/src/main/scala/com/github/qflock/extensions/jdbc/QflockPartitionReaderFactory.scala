@@ -46,9 +46,12 @@ class QflockPartitionReaderFactory(options: util.Map[String, String],
     val part = partition.asInstanceOf[QflockJdbcPartition]
     val schema = QflockJdbcDatasource.getSchema(options)
     logger.debug("QflockPartitionReaderFactory created row group " + part.index)
-    val reader = if (options.getOrDefault("resultapi", "default") == "parquet") {
+    val resultApi = options.getOrDefault("resultapi", "default")
+    val reader = if (resultApi == "parquet") {
       new QflockJdbcParquetVectorReader(schema, part, options,
         sharedConf, sqlConf)
+    } else if (resultApi == "arrow") {
+      new QflockJdbcArrowVectorReader(schema, part, options)
     } else {
       new QflockJdbcVectorReader(schema, part, options)
     }
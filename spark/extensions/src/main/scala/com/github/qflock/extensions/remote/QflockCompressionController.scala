@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.remote
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.ObjectName
+
+import scala.collection.JavaConverters._
+
+import org.slf4j.LoggerFactory
+
+import org.apache.spark.SparkEnv
+
+/** Picks the zstd level of each column of each batch, to send the most
+ *  rows per second over the link to the client.
+ *  For every column it keeps moving averages of the compression ratio and
+ *  the cpu time per byte at each level tried, and it estimates the rate at
+ *  which the streams send to the link from the bytes and time of the last
+ *  sends, as total bytes over total time, so that a short send does not
+ *  weigh as much as a long one.
+ *  Since columns compress in parallel with sending, the time per byte of a
+ *  level is whichever is slower, compressing on the shared compression
+ *  threads or sending the compressed bytes.  The level with the least time
+ *  wins, so incompressible columns or fast links get raw passthrough
+ *  (level 0) and slow links get high levels.  Every few batches a
+ *  neighbouring level is tried so the estimates follow the data.
+ *  spark.qflock.server.linkRate, in bytes per second, gives the rate to
+ *  assume before any batch was sent; until then level 3 is used.
+ */
+object QflockCompressionController extends QflockCompressionControllerMBean {
+  private val logger = LoggerFactory.getLogger(getClass)
+  val levels: Array[Int] = Array(0, 1, 3, 6, 9, 15)
+  private val defaultLevel = 2
+  // Typical zstd cpu time per input byte, used until a level is measured.
+  private val priorNsPerByte = Array(0.0, 2.0, 3.5, 10.0, 20.0, 60.0)
+  // Typical ratio of each level relative to level 1, used to estimate the
+  // ratio of levels not measured yet from those that were.
+  private val ratioScale = Array(1.0, 1.0, 0.95, 0.9, 0.88, 0.85)
+  private val priorRatio = 0.5
+  private val alpha = 0.2
+  private val exploreEvery = 16
+  // Differences smaller than this are not worth the cpu of a higher level.
+  private val minGain = 0.02
+  // Number of sends the link rate is estimated over.
+  private val sendWindow = 32
+
+  private class ColumnStats {
+    val ratio: Array[Double] = Array.fill(levels.length)(Double.NaN)
+    val nsPerByte: Array[Double] = Array.fill(levels.length)(Double.NaN)
+    var batches: Long = 0
+    var chosen: Int = defaultLevel
+  }
+  private val columns = new ConcurrentHashMap[String, ColumnStats]
+  @volatile private var linkBytesPerSec: Double = Option(SparkEnv.get)
+    .flatMap(_.conf.getOption("spark.qflock.server.linkRate"))
+    .map(_.toDouble).getOrElse(Double.NaN)
+  private val windowBytes = new Array[Long](sendWindow)
+  private val windowNanos = new Array[Long](sendWindow)
+  private var windowNext = 0
+  private var windowTotalBytes = 0L
+  private var windowTotalNanos = 0L
+  private val batchesByLevel = Array.fill(levels.length)(new AtomicLong(0))
+  private val rawBytes = new AtomicLong(0)
+  private val sentBytes = new AtomicLong(0)
+
+  try {
+    ManagementFactory.getPlatformMBeanServer.registerMBean(
+      this, new ObjectName("com.github.qflock.server:type=Compression"))
+  } catch {
+    case ex: Exception => logger.warn(s"failed to register compression metrics: $ex")
+  }
+
+  private def ewma(old: Double, value: Double): Double = {
+    if (old.isNaN) value else old + alpha * (value - old)
+  }
+
+  private def estimatedRatio(stats: ColumnStats, i: Int): Double = {
+    if (i == 0) {
+      1.0
+    } else if (!stats.ratio(i).isNaN) {
+      stats.ratio(i)
+    } else {
+      // Scale from the closest level measured.
+      levels.indices.filter(j => j > 0 && !stats.ratio(j).isNaN)
+        .sortBy(j => math.abs(j - i)).headOption
+        .map(j => math.min(1.0, stats.ratio(j) * ratioScale(i) / ratioScale(j)))
+        .getOrElse(priorRatio)
+    }
+  }
+
+  private def nsPerByte(stats: ColumnStats, i: Int): Double = {
+    if (stats.nsPerByte(i).isNaN) priorNsPerByte(i) else stats.nsPerByte(i)
+  }
+
+  /** Returns the index in levels to use for the next batch of a column.
+   */
+  def chooseLevel(column: String): Int = {
+    val stats = columns.computeIfAbsent(column, _ => new ColumnStats)
+    val link = linkBytesPerSec
+    val choice = stats.synchronized {
+      stats.batches += 1
+      if (link.isNaN) {
+        defaultLevel
+      } else {
+        val cost = levels.indices.map(i =>
+          math.max(nsPerByte(stats, i) / QflockCompressionPool.threads,
+                   estimatedRatio(stats, i) * 1e9 / link))
+        var best = 0
+        for (i <- levels.indices) {
+          if (cost(i) < cost(best) * (1 - minGain)) {
+            best = i
+          }
+        }
+        if (best != stats.chosen) {
+          logger.info(s"column $column level ${levels(stats.chosen)} -> ${levels(best)} " +
+                      f"ratio ${estimatedRatio(stats, best)}%.3f " +
+                      f"link ${link / 1e6}%.1fMB/s")
+          stats.chosen = best
+        }
+        if (stats.batches % exploreEvery == 0) {
+          // Alternate between trying the level above and below.
+          val step = if ((stats.batches / exploreEvery) % 2 == 0) 1 else -1
+          math.min(levels.length - 1, math.max(0, best + step))
+        } else {
+          best
+        }
+      }
+    }
+    batchesByLevel(choice).incrementAndGet()
+    choice
+  }
+
+  /** Records the result of compressing a batch of a column.
+   * @param column the column
+   * @param level index in levels of the level used
+   * @param bytes bytes before compression
+   * @param compressedBytes bytes after compression
+   * @param nanos time taken to compress
+   */
+  def recordColumn(column: String, level: Int, bytes: Int, compressedBytes: Int,
+                   nanos: Long): Unit = {
+    rawBytes.addAndGet(bytes)
+    sentBytes.addAndGet(if (level == 0) bytes else compressedBytes)
+    if (level > 0 && bytes > 0) {
+      val stats = columns.computeIfAbsent(column, _ => new ColumnStats)
+      stats.synchronized {
+        stats.ratio(level) = ewma(stats.ratio(level), compressedBytes.toDouble / bytes)
+        stats.nsPerByte(level) = ewma(stats.nsPerByte(level), nanos.toDouble / bytes)
+      }
+    }
+  }
+
+  /** Records the time a stream spent sending a batch.
+   * @param bytes bytes sent
+   * @param nanos time spent writing them to the stream
+   */
+  def recordSend(bytes: Long, nanos: Long): Unit = {
+    if (bytes > 0 && nanos > 0) {
+      windowBytes.synchronized {
+        windowTotalBytes += bytes - windowBytes(windowNext)
+        windowTotalNanos += nanos - windowNanos(windowNext)
+        windowBytes(windowNext) = bytes
+        windowNanos(windowNext) = nanos
+        windowNext = (windowNext + 1) % sendWindow
+        linkBytesPerSec = windowTotalBytes * 1e9 / windowTotalNanos
+      }
+    }
+  }
+
+  override def getLinkBytesPerSecond: Double = linkBytesPerSec
+
+  override def getBatchesByLevel: String = {
+    levels.indices.map(i => s"${levels(i)}=${batchesByLevel(i).get}").mkString(" ")
+  }
+
+  override def getColumnLevels: String = {
+    columns.asScala.toSeq.sortBy(_._1).map { case (column, stats) =>
+      stats.synchronized {
+        f"$column=${levels(stats.chosen)}(${estimatedRatio(stats, stats.chosen)}%.3f)"
+      }
+    }.mkString(" ")
+  }
+
+  override def getRawBytes: Long = rawBytes.get
+
+  override def getSentBytes: Long = sentBytes.get
+}
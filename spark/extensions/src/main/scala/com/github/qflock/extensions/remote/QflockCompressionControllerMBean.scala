@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.remote
+
+/** Metrics of the QflockCompressionController, registered as
+ *  com.github.qflock.server:type=Compression.
+ */
+trait QflockCompressionControllerMBean {
+  /** @return the estimated bytes per second one stream gets from the link. */
+  def getLinkBytesPerSecond: Double
+  /** @return the batches sent at each level, as level=count pairs. */
+  def getBatchesByLevel: String
+  /** @return the level currently chosen for each column, with its ratio. */
+  def getColumnLevels: String
+  /** @return bytes of column data before compression. */
+  def getRawBytes: Long
+  /** @return bytes of column data sent after compression. */
+  def getSentBytes: Long
+}
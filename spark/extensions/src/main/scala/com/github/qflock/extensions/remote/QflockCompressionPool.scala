@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.remote
+
+import java.util.concurrent.{Callable, Executors, Future, ThreadFactory}
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.apache.spark.SparkEnv
+
+/** Threads shared by all writers for compressing columns.
+ *  The work queued is bounded by the buffers of the writers, since each
+ *  buffer has at most one batch of columns being compressed.
+ *  The number of threads is spark.qflock.server.compressionThreads,
+ *  by default one per core.
+ */
+object QflockCompressionPool {
+  private val threadCount = new AtomicInteger(0)
+  lazy val threads: Int = Option(SparkEnv.get).map(_.conf.getInt(
+    "spark.qflock.server.compressionThreads", Runtime.getRuntime.availableProcessors))
+    .getOrElse(Runtime.getRuntime.availableProcessors)
+  private lazy val executor = {
+    Executors.newFixedThreadPool(threads, new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, s"qflock-compress-${threadCount.getAndIncrement}")
+        t.setDaemon(true)
+        t
+      }
+    })
+  }
+
+  def submit[T](task: Callable[T]): Future[T] = executor.submit(task)
+}
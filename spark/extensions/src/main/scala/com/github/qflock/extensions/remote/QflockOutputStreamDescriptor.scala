@@ -25,11 +25,16 @@ import java.util.concurrent.ConcurrentLinkedQueue
 
 import scala.collection.mutable
 
-import com.github.qflock.server.QflockDataStreamer
-import com.github.qflock.server.QflockDataStreamItem
+import com.github.qflock.server.{QflockDataStreamer, QflockDataStreamItem, QflockServerHeader}
 
 
 
+/** The response stream of a request, shared by the query's writer tasks.
+ *  Each writer task opens a sub stream with a streamer thread of its own,
+ *  so tasks compress and send in parallel rather than queueing behind one
+ *  thread.  Their frames are interleaved on the response, see
+ *  QflockServerHeader.Frame.
+ */
 class QflockOutputStreamRecord(var stream: Option[OutputStream]) {
 
   var channel: Option[WritableByteChannel] = None
@@ -39,7 +44,11 @@ class QflockOutputStreamRecord(var stream: Option[OutputStream]) {
   }
 
   var freed: Boolean = true
-  private val streamer: QflockDataStreamer = new QflockDataStreamer
+  // Streamers are started as writer tasks need them and kept for later requests.
+  private val streamers = mutable.ArrayBuffer[QflockDataStreamer]()
+  private val idleStreamers = mutable.Queue[QflockDataStreamer]()
+  private var nextStreamId = 1
+  private val frameHeader = ByteBuffer.allocate(QflockServerHeader.Frame.bytes)
 
   def fill(inputStream: OutputStream): Unit = {
     stream = Some(inputStream)
@@ -48,14 +57,25 @@ class QflockOutputStreamRecord(var stream: Option[OutputStream]) {
   }
 
   def free(): Unit = {
-    stream = None
-    wroteHeader = false
-    freed = true
-    streamer.reset
-  }
-  def bytesStreamed: Long = streamer.bytesStreamed
-  def streamsOutstanding: Boolean = streamer.streamsOutstanding
-  streamer.start()
+    this.synchronized {
+      stream = None
+      wroteHeader = false
+      freed = true
+      streamers.foreach(_.reset())
+      idleStreamers.clear()
+      idleStreamers ++= streamers
+      nextStreamId = 1
+    }
+  }
+  def bytesStreamed: Long = this.synchronized(streamers.map(_.bytesStreamed).sum)
+  def streamsOutstanding: Boolean = this.synchronized(streamers.exists(_.streamsOutstanding))
+  /** Waits until everything handed to the sub streams was sent.
+   * @return the first error hit while streaming, if any.
+   */
+  def awaitStreams(): Option[Throwable] = {
+    val all = this.synchronized(streamers.toList)
+    all.map(_.awaitIdle()).find(_.isDefined).flatten
+  }
   var wroteHeader: Boolean = false
   def writeHeader(byteBuffer: ByteBuffer): Boolean = {
     this.synchronized {
@@ -68,9 +88,104 @@ class QflockOutputStreamRecord(var stream: Option[OutputStream]) {
       } else false
     }
   }
+
+  /** Opens the sub stream of a writer task.
+   */
+  def openStream(): QflockMuxOutputStream = {
+    this.synchronized {
+      val streamer = if (idleStreamers.nonEmpty) {
+        idleStreamers.dequeue()
+      } else {
+        val s = new QflockDataStreamer
+        s.start()
+        streamers += s
+        s
+      }
+      val streamId = nextStreamId
+      nextStreamId += 1
+      new QflockMuxOutputStream(this, streamId, streamer)
+    }
+  }
+
+  private[remote] def closeStream(streamer: QflockDataStreamer): Unit = {
+    this.synchronized {
+      idleStreamers.enqueue(streamer)
+    }
+  }
+
+  /** Writes one frame of a sub stream, made of two parts of data.
+   * @param flags QflockServerHeader.Frame.endOfBatch if the frame ends a batch
+   */
+  private[remote] def writeFrame(streamId: Int, flags: Int,
+                                 first: Array[Byte], firstLen: Int,
+                                 second: Array[Byte], secondOff: Int, secondLen: Int): Unit = {
+    this.synchronized {
+      frameHeader.putInt(QflockServerHeader.Frame.streamId, streamId)
+      frameHeader.putInt(QflockServerHeader.Frame.flags, flags)
+      frameHeader.putInt(QflockServerHeader.Frame.length, firstLen + secondLen)
+      stream.get.write(frameHeader.array())
+      stream.get.write(first, 0, firstLen)
+      stream.get.write(second, secondOff, secondLen)
+      if ((flags & QflockServerHeader.Frame.endOfBatch) != 0) {
+        stream.get.flush()
+      }
+    }
+  }
+}
+
+/** The sub stream of one writer task, which writes into the shared
+ *  response as frames.  Small writes are collected into one frame,
+ *  flush() ends a batch.
+ *
+ * @param record the response the frames are written to
+ * @param streamId id of the sub stream in the frame headers
+ * @param streamer thread which streams the task's batches
+ */
+class QflockMuxOutputStream(record: QflockOutputStreamRecord,
+                            streamId: Int,
+                            streamer: QflockDataStreamer) extends OutputStream {
+  private val buffer = ByteBuffer.allocate(QflockMuxOutputStream.frameBytes)
+
+  override def write(b: Int): Unit = {
+    if (!buffer.hasRemaining) {
+      writeFrame(0, Array.emptyByteArray, 0, 0)
+    }
+    buffer.put(b.toByte)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    if (len <= buffer.remaining) {
+      buffer.put(b, off, len)
+    } else {
+      // Large writes go out along with what was collected, without a copy.
+      writeFrame(0, b, off, len)
+    }
+  }
+
+  /** Ends the batch written since the last flush.
+   */
+  override def flush(): Unit = {
+    writeFrame(QflockServerHeader.Frame.endOfBatch, Array.emptyByteArray, 0, 0)
+  }
+
+  private def writeFrame(flags: Int, b: Array[Byte], off: Int, len: Int): Unit = {
+    record.writeFrame(streamId, flags, buffer.array(), buffer.position(), b, off, len)
+    buffer.clear()
+  }
+
   def streamAsync(bufferStream: QflockDataStreamItem): Unit = {
     streamer.enqueue(bufferStream)
   }
+
+  /** Hands the streamer back once all the task's batches were streamed.
+   */
+  override def close(): Unit = {
+    record.closeStream(streamer)
+  }
+}
+
+object QflockMuxOutputStream {
+  private val frameBytes: Int = 64 * 1024
 }
 
 case class QflockOutputStreamDescriptor(requests: Int) {
@@ -69,6 +69,45 @@ class QflockRemoteClient(query: String,
   private val stream = getQueryStream
   def getStream: DataInputStream = stream
   def getQueryStream: DataInputStream = {
+    var retries = 0
+    var statusCode = openQuery()
+    // The server answers 503 while it is too busy to queue the query.
+    while (statusCode == 503 && retries < QflockRemoteClient.maxRetries) {
+      val retryAfterMs = getRetryAfterMs(connection.get)
+      logger.info(s"server busy, retrying in ${retryAfterMs}ms $tableName $rgOffset/$rgCount")
+      Option(connection.get.getErrorStream).foreach(_.close())
+      connection.get.disconnect()
+      Thread.sleep(retryAfterMs)
+      retries += 1
+      statusCode = openQuery()
+    }
+    if (statusCode == 200) {
+//      logger.info(s"opening stream done $tableName $rgOffset $rgCount")
+      new DataInputStream(new BufferedInputStream(connection.get.getInputStream))
+    } else {
+      logger.error(s"unexpected http status on connect: $statusCode")
+      getEmptyQueryStream(query, schema)
+    }
+  }
+  /** Retry-After is either a number of seconds or an HTTP-date.
+   *  Anything else falls back to the default delay.
+   */
+  private def getRetryAfterMs(con: HttpURLConnection): Long = {
+    val defaultMs = QflockRemoteClient.defaultRetryAfterSeconds * 1000L
+    Option(con.getHeaderField("Retry-After")).map(_.trim) match {
+      case Some(value) if value.nonEmpty && value.forall(Character.isDigit) =>
+        try {
+          value.toLong * 1000L
+        } catch {
+          case _: NumberFormatException => defaultMs
+        }
+      case Some(_) =>
+        val date = con.getHeaderFieldDate("Retry-After", 0L)
+        if (date > 0) math.max(0L, date - System.currentTimeMillis()) else defaultMs
+      case None => defaultMs
+    }
+  }
+  private def openQuery(): Int = {
 //    logger.info(s"opening stream to: $tableName $rgOffset $rgCount")
     val url = new URL(urlPath)
     val con = url.openConnection.asInstanceOf[HttpURLConnection]
@@ -86,13 +125,11 @@ class QflockRemoteClient(query: String,
       val input = jsonString.getBytes("utf-8")
       os.write(input, 0, input.length)
     } finally if (os != null) os.close()
-    val statusCode = con.getResponseCode
-    if (statusCode == 200) {
-//      logger.info(s"opening stream done $tableName $rgOffset $rgCount")
-      new DataInputStream(new BufferedInputStream(con.getInputStream))
-    } else {
-      logger.error(s"unexpected http status on connect: $statusCode")
-      getEmptyQueryStream(query, schema)
-    }
+    con.getResponseCode
   }
 }
+
+object QflockRemoteClient {
+  private val maxRetries = 600
+  private val defaultRetryAfterSeconds = 1
+}
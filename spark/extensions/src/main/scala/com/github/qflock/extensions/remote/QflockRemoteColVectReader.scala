@@ -73,7 +73,7 @@ class QflockRemoteColVectReader(schema: StructType,
       logger.info(s"bytes not available $context, waited $waitCount times ${client.toString}")
     }
   }
-  private val (numCols: Integer, dataTypes: Array[Int]) = {
+  private val (numCols: Integer, dataTypes: Array[Int], multiplexed: Boolean) = {
     /* The NDP server encodes the number of columns followed by
      * the the type of each column.  All values are doubles.
      */
@@ -81,7 +81,8 @@ class QflockRemoteColVectReader(schema: StructType,
       // waitForBytes("data type read")
 //      logger.info(s"Data Read Starting $query")
       val magic = stream.readInt()
-      if (magic != QflockServerHeader.magic) {
+      // The server multiplexes its writer tasks, files of the cache are not.
+      if (magic != QflockServerHeader.magic && magic != QflockServerHeader.muxMagic) {
         throw new java.lang.IllegalStateException(s"magic $magic != ${QflockServerHeader.magic}")
       }
       val nColsLong = stream.readInt()
@@ -93,17 +94,17 @@ class QflockRemoteColVectReader(schema: StructType,
          logger.debug(String.valueOf(i) + " : " + String.valueOf(dataTypes(i))
          + " " + query)
       }
-      (nCols, dataTypes)
+      (nCols, dataTypes, magic == QflockServerHeader.muxMagic)
     } catch {
         case ex: Exception =>
         /* We do not expect to hit end of file, but if we do, it might mean that
          * the NDP query had nothing to return.
          */
           throw new Exception("Init Exception: " + ex)
-          (0, new Array[Int](0))
+          (0, new Array[Int](0), false)
         case ex: Throwable =>
           throw new Exception("Init Throwable: " + ex)
-          (0, new Array[Int](0))
+          (0, new Array[Int](0), false)
     }
   }
   def writeHeader(): Unit = {
@@ -117,6 +118,13 @@ class QflockRemoteColVectReader(schema: StructType,
     }
   }
   writeHeader()
+  private val demux = if (multiplexed) Some(new QflockStreamDemux(stream)) else None
+  // The cache file has the format of an unmultiplexed response.
+  private def writeTerminator(): Unit = {
+    if (cachedData.isDefined && cachedData.get.shouldWrite) {
+      cachedData.get.stream.get.write(QflockServerHeader.streamTerminator)
+    }
+  }
   private val colVectors = QflockRemoteColumnVector(batchSize, dataTypes, schema,
                                                      cachedData)
   private val columnarBatch = new ColumnarBatch(colVectors.asInstanceOf[Array[ColumnVector]])
@@ -128,11 +136,21 @@ class QflockRemoteColVectReader(schema: StructType,
    */
   private def readNextBatch(): Integer = {
     var rows: Integer = 0
+    val batchStream = if (demux.isEmpty) {
+      stream
+    } else {
+      demux.get.nextBatch() match {
+        case Some(s) => s
+        case None =>
+          writeTerminator()
+          return 0
+      }
+    }
     for (i <- 0 until numCols) {
 //      if (i != 0) {
 //        waitForBytes(s"read col $i")
 //      }
-      val currentRows = colVectors(i).readColumn(stream)
+      val currentRows = colVectors(i).readColumn(batchStream)
 //      logger.info(s"Data Read col $i rows $currentRows totalRows $rowsReturned $query")
       if (currentRows == 0) {
         // End of stream hit.
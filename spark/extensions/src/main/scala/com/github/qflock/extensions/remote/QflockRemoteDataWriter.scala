@@ -23,6 +23,7 @@ import java.util
 import com.github.qflock.server.QflockServerHeader
 import org.slf4j.LoggerFactory
 
+import org.apache.spark.TaskContext
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.connector.write._
 import org.apache.spark.sql.types._
@@ -48,19 +49,20 @@ class QflockRemoteDataWriter(partId: Int, taskId: Long,
   // Client sets outStreamRequestId after calling fillRequestInfo
   private val requestId = options.get("outstreamrequestid").toInt
   private val streamDescriptor = QflockOutputStreamDescriptor.get.getRequestInfo(requestId)
-  // The stream is used to write data back to the client.
-  private val outputStream: DataOutputStream =
-    streamDescriptor.stream.get.asInstanceOf[DataOutputStream]
+  // The task's own sub stream of the response to the client.
+  private val muxStream = streamDescriptor.openStream()
+  private val outputStream: DataOutputStream = new DataOutputStream(muxStream)
   private val bufferPoolCount = 2
   private val bufferPool = QflockWriteBufferPool(bufferPoolCount, schema, outputStream, batchSize)
   private var buffer = bufferPool.allocate
   writeDataFormat()
   private def writeDataFormat(): Unit = {
-    // The data format consists of an int for magic,
+    // The data format consists of an int for magic, which tells the client
+    // the batches that follow are multiplexed,
     // an integer for number of columns,
     // followed by an integer for the type of each column.
     val buffer = ByteBuffer.allocate((schema.fields.length + 2) * 4)
-    buffer.putInt(QflockServerHeader.magic)
+    buffer.putInt(QflockServerHeader.muxMagic)
     buffer.putInt(schema.fields.length)
     schema.fields.foreach(s => buffer.putInt(
       s.dataType match {
@@ -84,7 +86,8 @@ class QflockRemoteDataWriter(partId: Int, taskId: Long,
       totalRows += rowIndex
       // setBufferName
       buffer.setRows(rowIndex)
-      streamDescriptor.streamAsync(buffer)
+      buffer.compressAsync()
+      muxStream.streamAsync(buffer)
       buffer = bufferPool.allocate
       rowIndex = 0
     }
@@ -98,22 +101,45 @@ class QflockRemoteDataWriter(partId: Int, taskId: Long,
       totalRows += rowIndex
       setBufferName()
       buffer.setRows(rowIndex)
-      streamDescriptor.streamAsync(buffer)
+      buffer.compressAsync()
+      muxStream.streamAsync(buffer)
       rowIndex = 0
     } else {
       buffer.free()
     }
-    var loopCount = 0
-    while (bufferPool.size < bufferPoolCount) {
-      // logger.info(s"waiting for buffers to free $loopCount")
-      loopCount += 1
-      Thread.sleep(100)
-    }
-    if (loopCount > 100) {
-      logger.info(s"done waiting for buffers to free $loopCount")
-    }
+    // The buffers still streaming hold data of this partition.
+    bufferPool.awaitAllFree()
+    muxStream.close()
     //    logger.info(s"rows $totalRows " +
     //                s"uncompressed ${bufferPool.totalUncompressedBytes} " +
     //                s"compressed ${bufferPool.totalCompressedBytes} ")
   }
 }
+
+object QflockRemoteDataWriter {
+  /** Writes one partition of rows back to the client, as the
+   *  qflockRemote data source's write task would.
+   *
+   * @param context context of the task writing the partition
+   * @param schema the schema of the rows
+   * @param options the write options, as passed to the data writer factory
+   * @param rows the rows of the partition
+   */
+  def writeAll(context: TaskContext,
+               schema: StructType,
+               options: util.Map[String, String],
+               rows: Iterator[InternalRow]): Unit = {
+    val writer = new QflockRemoteDataWriter(context.partitionId, context.taskAttemptId,
+                                            schema, options)
+    try {
+      rows.foreach(writer.write)
+      writer.commit()
+    } catch {
+      case ex: Throwable =>
+        writer.abort()
+        throw ex
+    } finally {
+      writer.close()
+    }
+  }
+}
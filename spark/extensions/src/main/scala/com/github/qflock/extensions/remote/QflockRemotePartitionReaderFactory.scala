@@ -51,19 +51,23 @@ class QflockRemotePartitionReaderFactory(options: util.Map[String, String],
 
     val appId = options.get("appid")
 //    val cachedDataEntry: Option[QflockFileCachedData] = None
+    // Another task may still be writing the cached data, in which case we
+    // wait for it to finish, or read from the server if it takes too long.
+    val cachedData = cachedValue.map(_.asInstanceOf[QflockFileCachedData]).filter(fileData => {
+      fileData.isDataValid || {
+        logger.warn(s" invalid-cached-data wait " +
+                    s"appId:$appId part:${part.index} key:$query")
+        fileData.awaitData(QflockRemotePartitionReaderFactory.cacheWaitMs)
+      }
+    })
     val cachedDataEntry: Option[QflockFileCachedData] = {
-      if (cachedValue.isDefined) {
-        val fileData = cachedValue.get.asInstanceOf[QflockFileCachedData]
-        var waitCount = 0
-        while(!fileData.isDataValid) {
-          // Wait for the write of data to be complete.
-          logger.warn(s" invalid-cached-data wait $waitCount" +
-                      s"appId:$appId part:${part.index} key:$query")
-          Thread.sleep(100)
-          waitCount += 1
-        }
+      if (cachedData.isDefined) {
         logger.warn(s" use-cached-data " + s"appId:$appId part:${part.index} key:$query")
-        Some(fileData)
+        cachedData
+      } else if (cachedValue.isDefined) {
+        logger.warn(s" cached-data-timeout " +
+          s"appId:$appId part:${part.index} key:$query")
+        None
       } else {
         logger.warn(s" insert-cached-data " +
           s"appId:$appId part:${part.index} key:$query")
@@ -73,7 +77,7 @@ class QflockRemotePartitionReaderFactory(options: util.Map[String, String],
     //    logger.info("QflockRemotePartitionReaderFactory creating partition " +
     //                s"part ${part.index} off ${part.offset} len ${part.length}")
     val client = {
-      if (cachedValue.isDefined) {
+      if (cachedData.isDefined) {
         new QflockFileClient(cachedDataEntry.get.getFile)
       } else {
         new QflockRemoteClient(query, part.name,
@@ -93,3 +97,6 @@ class QflockRemotePartitionReaderFactory(options: util.Map[String, String],
   }
 }
 
+object QflockRemotePartitionReaderFactory {
+  private val cacheWaitMs: Long = 10 * 60 * 1000
+}
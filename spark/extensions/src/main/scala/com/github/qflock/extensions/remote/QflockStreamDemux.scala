@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.remote
+
+import java.io.{ByteArrayInputStream, DataInputStream}
+
+import scala.collection.mutable
+
+import com.github.qflock.server.QflockServerHeader
+
+/** Splits a multiplexed response into the batches of its writer tasks.
+ *  Frames of each sub stream are collected until the frame ending a batch
+ *  arrives, so a batch is returned as soon as it is complete, regardless
+ *  of the batches of other tasks still in flight.
+ *  See QflockServerHeader.Frame for the layout.
+ *
+ * @param stream the response, positioned after its header
+ */
+class QflockStreamDemux(stream: DataInputStream) {
+  private val partial = mutable.HashMap[Int, QflockStreamDemux.BatchBuffer]()
+  // The batch last returned, whose buffer is reused once it was read.
+  private var current: Option[QflockStreamDemux.BatchBuffer] = None
+  private var spare: Option[QflockStreamDemux.BatchBuffer] = None
+
+  /** Returns the next complete batch, in the format of an unmultiplexed
+   *  response without its header.
+   * @return a stream over the columns of the batch, or None at the end of the response.
+   */
+  def nextBatch(): Option[DataInputStream] = {
+    current.foreach(b => {
+      b.length = 0
+      spare = Some(b)
+    })
+    current = None
+    while (true) {
+      val streamId = stream.readInt()
+      if (streamId == 0) {
+        // The rest of the stream terminator.
+        stream.readFully(new Array[Byte](QflockServerHeader.streamTerminator.length - 4))
+        return None
+      }
+      val flags = stream.readInt()
+      val length = stream.readInt()
+      val buffer = partial.getOrElseUpdate(streamId, {
+        val b = spare.getOrElse(new QflockStreamDemux.BatchBuffer)
+        spare = None
+        b
+      })
+      buffer.read(stream, length)
+      if ((flags & QflockServerHeader.Frame.endOfBatch) != 0) {
+        partial.remove(streamId)
+        current = Some(buffer)
+        return Some(new DataInputStream(
+          new ByteArrayInputStream(buffer.bytes, 0, buffer.length)))
+      }
+    }
+    None
+  }
+}
+
+object QflockStreamDemux {
+  private class BatchBuffer {
+    var bytes: Array[Byte] = new Array[Byte](64 * 1024)
+    var length: Int = 0
+
+    def read(stream: DataInputStream, n: Int): Unit = {
+      if (length + n > bytes.length) {
+        bytes = java.util.Arrays.copyOf(bytes,
+          math.max(length + n, math.min(bytes.length.toLong * 2, Int.MaxValue - 8).toInt))
+      }
+      stream.readFully(bytes, length, n)
+      length += n
+    }
+  }
+}
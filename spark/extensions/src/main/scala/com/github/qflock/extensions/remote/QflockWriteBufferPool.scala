@@ -18,6 +18,7 @@ package com.github.qflock.extensions.remote
 
 import java.io.DataOutputStream
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.locks.ReentrantLock
 
 import org.apache.spark.sql.types._
 
@@ -39,6 +40,8 @@ case class QflockWriteBufferPool(count: Int,
     }
     pool
   }
+  private val lock = new ReentrantLock
+  private val allFree = lock.newCondition
   def size: Int = pool.size()
   def allocate: QflockWriteBufferStream = {
     pool.take()
@@ -49,7 +52,28 @@ case class QflockWriteBufferPool(count: Int,
 //    totalCompressedBytes += item.totalCompressedBytes
 //    totalUncompressedBytes += item.totalUncompressedBytes
     item.reset()
-    pool.add(item)
+    lock.lock()
+    try {
+      pool.add(item)
+      if (pool.size == count) {
+        allFree.signalAll()
+      }
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  /** Waits until every buffer allocated from the pool has been freed.
+   */
+  def awaitAllFree(): Unit = {
+    lock.lock()
+    try {
+      while (pool.size < count) {
+        allFree.await()
+      }
+    } finally {
+      lock.unlock()
+    }
   }
 }
 
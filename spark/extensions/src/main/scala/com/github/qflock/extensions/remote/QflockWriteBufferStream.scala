@@ -16,9 +16,9 @@
  */
 package com.github.qflock.extensions.remote
 
-import java.io.{DataOutputStream, FileOutputStream}
+import java.io.DataOutputStream
 import java.nio.ByteBuffer
-import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.{Callable, ExecutionException, Future}
 
 import com.github.luben.zstd.Zstd
 import com.github.qflock.server.{QflockDataStreamItem, QflockServerHeader}
@@ -32,7 +32,7 @@ import org.apache.spark.sql.types._
  *
  * @param schema the schema of write data
  * @param batchSize size of batch in rows to stream data
- * @param outputStream the stream to push data into.
+ * @param outputStream the stream to push data into, flushed at the end of each batch.
  * @param pool - Back pointer to the pool from which we were allocated.
  */
 class QflockWriteBufferStream(schema: StructType,
@@ -53,12 +53,13 @@ class QflockWriteBufferStream(schema: StructType,
   // this gets set in order to signal to client this buffer needs flush.
   var isFull: Boolean = false
   private var numBytes: Int = 0
-  private val compressionLevel = 3
   private val bufferLength: Array[Int] = {
     schema.fields.map(x => batchSizeForType(x.dataType))
   }
+  // Sized for the worst case, data which does not compress.
   private val compressBuffers: Array[ByteBuffer] = {
-    schema.fields.map(x => ByteBuffer.allocate(batchSizeForType(x.dataType)))
+    schema.fields.map(x =>
+      ByteBuffer.allocate(Zstd.compressBound(batchSizeForType(x.dataType)).toInt))
   }
   private val dataBuffers: Array[ByteBuffer] = {
     schema.fields.map(x => ByteBuffer.allocate(batchSizeForType(x.dataType)))
@@ -104,7 +105,7 @@ class QflockWriteBufferStream(schema: StructType,
   }
   val compressStringLengths: Array[ByteBuffer] = {
     schema.fields.map(x => x.dataType match {
-      case StringType => ByteBuffer.allocate(4 * batchSize)
+      case StringType => ByteBuffer.allocate(Zstd.compressBound(4 * batchSize).toInt)
       case _ => ByteBuffer.allocate(0)
     })
   }
@@ -166,6 +167,9 @@ class QflockWriteBufferStream(schema: StructType,
     }
   }
   def free(): Unit = {
+    // The buffer may be freed without being processed, so make sure
+    // no compression is still using it.
+    awaitCompression()
     pool.free(this)
   }
   private var rows: Int = 0
@@ -173,74 +177,142 @@ class QflockWriteBufferStream(schema: StructType,
   def reset(): Unit = {
     isFull = false
     numBytes = 0
-//    totalCompressedBytes = 0
-//    totalUncompressedBytes = 0
+    // Normally cleared as each column is written, unless the batch was
+    // dropped or failed part way.
+    dataBuffers.foreach(_.clear())
+    stringLengths.foreach(_.clear())
+  }
+
+  // Compressed sizes of each column, one for fixed length columns,
+  // the lengths followed by the data for strings.
+  private var compressed: Array[Future[Array[Int]]] = Array.empty
+  // Index into QflockCompressionController.levels of each column's data
+  // and of each string column's lengths, chosen for the current batch.
+  private val dataLevels = new Array[Int](schema.fields.length)
+  private val lengthLevels = new Array[Int](schema.fields.length)
+  private val lengthsKeys = schema.fields.map(f => s"${f.name}.lengths")
+
+  /** Compresses a buffer at the chosen level, or leaves it as is for level 0.
+   * @return the compressed size, or 0 if sent raw.
+   */
+  private def compress(key: String, level: Int,
+                       src: ByteBuffer, srcLen: Int, dst: ByteBuffer): Int = {
+    if (level == 0) {
+      QflockCompressionController.recordColumn(key, level, srcLen, 0, 0)
+      return 0
+    }
+    val start = System.nanoTime()
+    val compressedBytes = Zstd.compressByteArray(
+      dst.array(), 0, dst.array().length,
+      src.array(), 0, srcLen, QflockCompressionController.levels(level))
+    if (Zstd.isError(compressedBytes)) {
+      throw new IllegalStateException(s"compression failed: " +
+                                      Zstd.getErrorName(compressedBytes))
+    }
+    QflockCompressionController.recordColumn(key, level, srcLen, compressedBytes.toInt,
+                                             System.nanoTime() - start)
+    compressedBytes.toInt
+  }
+
+  private def compressColumn(i: Int): Array[Int] = {
+    val name = schema.fields(i).name
+    if (schema.fields(i).dataType != StringType) {
+      val dataLen = rows * sizeForType(schema.fields(i).dataType)
+      Array(compress(name, dataLevels(i), dataBuffers(i), dataLen, compressBuffers(i)))
+    } else {
+      Array(compress(lengthsKeys(i), lengthLevels(i), stringLengths(i),
+                     stringLengths(i).position(), compressStringLengths(i)),
+            compress(name, dataLevels(i), dataBuffers(i),
+                     dataBuffers(i).position(), compressBuffers(i)))
+    }
+  }
+
+  /** Starts compressing the columns of the batch in parallel.
+   *  Called when the batch is handed to the streamer, so the batch
+   *  compresses while the ones before it are still being sent.
+   */
+  def compressAsync(): Unit = {
+    for (i <- schema.fields.indices) {
+      dataLevels(i) = QflockCompressionController.chooseLevel(schema.fields(i).name)
+      if (schema.fields(i).dataType == StringType) {
+        lengthLevels(i) = QflockCompressionController.chooseLevel(lengthsKeys(i))
+      }
+    }
+    compressed = schema.fields.indices.map(i =>
+      QflockCompressionPool.submit(new Callable[Array[Int]] {
+        override def call(): Array[Int] = compressColumn(i)
+      })).toArray
   }
-//  var totalCompressedBytes: Long = 0
-//  var totalUncompressedBytes: Long = 0
+
+  private def awaitCompression(): Unit = {
+    compressed.foreach(f => {
+      try {
+        f.get()
+      } catch {
+        case _: ExecutionException =>
+      }
+    })
+    compressed = Array.empty
+  }
+
+  private var sentBytes: Long = 0
+  private var sendNanos: Long = 0
+
+  /** Writes one frame.  A compressed size of 0 tells the client the
+   *  data is sent raw.
+   */
+  private def writeFrame(i: Int, dataLen: Int, raw: ByteBuffer,
+                         src: ByteBuffer, compressedBytes: Int): Unit = {
+    val start = System.nanoTime()
+    header(i).putInt(QflockServerHeader.Offset.dataLen, dataLen)
+    header(i).putInt(QflockServerHeader.Offset.compressedLen, compressedBytes)
+    outputStream.write(header(i).array())
+    if (compressedBytes == 0) {
+      outputStream.write(raw.array(), 0, dataLen)
+      sentBytes += dataLen
+    } else {
+      // The buffer is larger than the amount we need to transfer, just
+      // write the length of the compressed bytes.
+      outputStream.write(src.array(), 0, compressedBytes)
+      sentBytes += compressedBytes
+    }
+    sendNanos += System.nanoTime() - start
+  }
+
+  /** Writes the compressed columns in order, each as soon as it is ready.
+   */
   def process: Unit = {
-    for (i <- Range(0, schema.fields.length)) {
-      if (schema.fields(i).dataType != StringType) {
-//        logger.trace(s"col $i rows $rows $name")
-        val dataLen = rows * sizeForType(schema.fields(i).dataType)
-        val compressedBytes = Zstd.compressByteArray(
-          compressBuffers(i).array(), 0, compressBuffers(i).array().length,
-          dataBuffers(i).array(), 0, dataLen, compressionLevel)
-        if (false) {
-          val fName = s"${schema.fields(i).name}_data.bin"
-          val fos = new FileOutputStream(s"/qflock/spark/build/$fName", true)
-          fos.write(dataBuffers(i).array(), 0, dataBuffers(i).position())
-          fos.close()
-          val fNameComp = s"${schema.fields(i).name}_compressed.bin"
-          val fosComp = new FileOutputStream(s"/qflock/spark/build/$fNameComp", true)
-          fosComp.write(compressBuffers(i).array(), 0, compressedBytes.toInt)
-          fosComp.close()
+    if (compressed.isEmpty) {
+      compressAsync()
+    }
+    sentBytes = 0
+    sendNanos = 0
+    try {
+      for (i <- Range(0, schema.fields.length)) {
+        val sizes = try {
+          compressed(i).get()
+        } catch {
+          case ex: ExecutionException => throw ex.getCause
+        }
+        if (schema.fields(i).dataType != StringType) {
+          writeFrame(i, rows * sizeForType(schema.fields(i).dataType),
+                     dataBuffers(i), compressBuffers(i), sizes(0))
+        } else { // Strings
+          // First the lengths, next the strings.
+          writeFrame(i, stringLengths(i).position(), stringLengths(i),
+                     compressStringLengths(i), sizes(0))
+          writeFrame(i, dataBuffers(i).position(), dataBuffers(i), compressBuffers(i), sizes(1))
+          stringLengths(i).clear()
         }
-        header(i).putInt(QflockServerHeader.Offset.dataLen,
-          dataLen)
-        header(i).putInt(QflockServerHeader.Offset.compressedLen,
-          compressedBytes.toInt)
-        outputStream.write(header(i).array())
-        // The buffer is larger than the amount we need to transfer, just
-        // write the length of the compressed bytes.
-//        totalUncompressedBytes += dataBuffers(i).position()
-//        totalCompressedBytes += compressedBytes
-        outputStream.write(compressBuffers(i).array(), 0, compressedBytes.toInt)
-        outputStream.flush()
-        dataBuffers(i).clear()
-      } else { // Strings
-//        logger.trace(s"str col $i rows $rows $name")
-        // First compress and send lengths
-        var compressedBytes = Zstd.compressByteArray(
-          compressBuffers(i).array(), 0, compressBuffers(i).array().length,
-          stringLengths(i).array(), 0, stringLengths(i).position(), compressionLevel)
-        header(i).putInt(QflockServerHeader.Offset.dataLen,
-          stringLengths(i).position())
-        header(i).putInt(QflockServerHeader.Offset.compressedLen,
-          compressedBytes.toInt)
-        outputStream.write(header(i).array())
-        // The buffer is larger than the amount we need to transfer, just
-        // write the length of the compressed bytes.
-        outputStream.write(compressBuffers(i).array(), 0, compressedBytes.toInt)
-        stringLengths(i).clear()
-        // Next compress and send strings
-        compressedBytes = Zstd.compressByteArray(
-          compressBuffers(i).array(), 0, compressBuffers(i).array().length,
-          dataBuffers(i).array(), 0, dataBuffers(i).position(), compressionLevel)
-        header(i).putInt(QflockServerHeader.Offset.dataLen,
-          dataBuffers(i).position())
-        header(i).putInt(QflockServerHeader.Offset.compressedLen,
-          compressedBytes.toInt)
-        outputStream.write(header(i).array())
-        // The buffer is larger than the amount we need to transfer, just
-        // write the length of the compressed bytes.
-//        totalUncompressedBytes += dataBuffers(i).position()
-//        totalCompressedBytes += compressedBytes
-        outputStream.write(compressBuffers(i).array(), 0, compressedBytes.toInt)
-        outputStream.flush()
         dataBuffers(i).clear()
       }
+      val start = System.nanoTime()
+      outputStream.flush()
+      // Writes only take time once the link can not keep up, so this
+      // measures what the link delivers to this stream.
+      QflockCompressionController.recordSend(sentBytes, sendNanos + System.nanoTime() - start)
+    } finally {
+      awaitCompression()
     }
   }
 }
-
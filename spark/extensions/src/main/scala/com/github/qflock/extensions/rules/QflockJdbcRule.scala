@@ -24,6 +24,7 @@ import scala.util.{Either, Left => EitherLeft, Right => EitherRight}
 
 import com.github.qflock.extensions.common.{PushdownSQL, PushdownSqlStatus, QflockQueryCache}
 import com.github.qflock.extensions.jdbc.{QflockDataSourceV2ScanRelation, QflockJdbcScan, QflockLog}
+import com.github.qflock.jdbc.{QflockConnection, QflockDataSource}
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.apache.spark.sql.SparkSession
@@ -291,7 +292,11 @@ case class QflockJdbcRule(spark: SparkSession) extends Rule[LogicalPlan] {
   private def determineApi(references: Seq[AttributeReference]): String = {
     // For now we use the parquet format for any results that include strings,
     // as this api is faster for strings.
-    if (references.toStructType.fields.exists(x => x.dataType == StringType)) {
+    // qflockJdbcResultApi (default, parquet or arrow) overrides the choice.
+    val configuredApi = spark.conf.get("qflockJdbcResultApi", "")
+    if (configuredApi.nonEmpty) {
+      configuredApi
+    } else if (references.toStructType.fields.exists(x => x.dataType == StringType)) {
       "parquet"
     } else {
       "default"
@@ -379,6 +384,13 @@ case class QflockJdbcRule(spark: SparkSession) extends Rule[LogicalPlan] {
     opt.put("appid", fullAppId)
     opt.put("path", path)
     opt.put("url", spark.conf.get("qflockJdbcUrl"))
+    opt.put("fetchsize", spark.conf.get("qflockJdbcFetchSize", "0"))
+    opt.put("poolsize", spark.conf.get("qflockJdbcPoolSize",
+      QflockDataSource.DEFAULT_MAX_POOL_SIZE.toString))
+    opt.put("prefetchrowgroups", spark.conf.get("qflockJdbcPrefetchRowGroups", "0"))
+    opt.put("maxviews", spark.conf.get("qflockJdbcMaxViews",
+      QflockConnection.DEFAULT_MAX_VIEWS.toString))
+    opt.put("batchrowgroups", spark.conf.get("qflockJdbcBatchRowGroups", "0"))
     opt.put("resultspath", resultsPath)
     opt.put("queryname", spark.conf.get("qflockQueryName"))
     opt.put("format", "parquet")
@@ -916,6 +928,13 @@ case class QflockJdbcRule(spark: SparkSession) extends Rule[LogicalPlan] {
     val fullAppId = s"$appId$testNum-$generationId"
     opt.put("appid", fullAppId)
     opt.put("url", spark.conf.get("qflockJdbcUrl"))
+    opt.put("fetchsize", spark.conf.get("qflockJdbcFetchSize", "0"))
+    opt.put("poolsize", spark.conf.get("qflockJdbcPoolSize",
+      QflockDataSource.DEFAULT_MAX_POOL_SIZE.toString))
+    opt.put("prefetchrowgroups", spark.conf.get("qflockJdbcPrefetchRowGroups", "0"))
+    opt.put("maxviews", spark.conf.get("qflockJdbcMaxViews",
+      QflockConnection.DEFAULT_MAX_VIEWS.toString))
+    opt.put("batchrowgroups", spark.conf.get("qflockJdbcBatchRowGroups", "0"))
     opt.put("resultspath", resultsPath)
     opt.put("queryname", spark.conf.get("qflockQueryName"))
     opt.put("format", "parquet")
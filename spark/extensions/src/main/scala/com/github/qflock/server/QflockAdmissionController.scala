@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.util.concurrent.{ScheduledFuture, ScheduledThreadPoolExecutor, ThreadFactory,
+  TimeUnit}
+import java.util.concurrent.locks.ReentrantLock
+
+import scala.collection.mutable
+
+import org.slf4j.LoggerFactory
+
+/** Thrown when a query can not be admitted, either because the queue is
+ *  full or because it waited too long.
+ *
+ * @param message reason for the rejection
+ * @param retryAfterSeconds when the client should try again
+ */
+class QflockAdmissionException(message: String, val retryAfterSeconds: Int)
+  extends Exception(message)
+
+/** A query admitted to run.  Must be released once its results are sent.
+ */
+trait QflockAdmission {
+  def release(): Unit
+}
+
+/** Decides when queries may run, so bursts of requests queue instead of
+ *  failing on the server's fixed request slots.
+ *  A query runs once its table has a free view, fewer than maxQueries are
+ *  running, and its estimated result fits the memory budget.  Waiting
+ *  queries are ordered by priority, higher first, then by arrival.
+ *  A query whose table is busy does not hold back queries of other tables,
+ *  but one waiting for global slots or memory holds back those behind it,
+ *  so large queries are not starved.
+ *  Waiting queries hold no thread, they are kept as callbacks which are
+ *  called once the query may run or its wait timed out.
+ *
+ * @param tableLimits concurrent queries allowed per table
+ * @param config server settings
+ */
+class QflockAdmissionController(tableLimits: Map[String, Int], config: QflockServerConfig) {
+  private val logger = LoggerFactory.getLogger(getClass)
+  private val lock = new ReentrantLock
+  private var sequence: Long = 0
+  private var running = 0
+  private var runningBytes: Long = 0
+  private val runningPerTable = mutable.HashMap[String, Int]().withDefaultValue(0)
+  private val waiting = mutable.TreeSet[Waiter]()(
+    Ordering.by[Waiter, (Int, Long)](w => (-w.priority, w.sequence)))
+  // Rejects the queries which waited longer than queueTimeoutMs.
+  private val timer = {
+    val t = new ScheduledThreadPoolExecutor(1, new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "qflock-admission-timer")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    t.setRemoveOnCancelPolicy(true)
+    t
+  }
+
+  private class Waiter(val tableName: String,
+                       val bytes: Long,
+                       val priority: Int,
+                       val sequence: Long,
+                       val onAdmitted: QflockAdmission => Unit,
+                       val onRejected: QflockAdmissionException => Unit) {
+    var timeout: Option[ScheduledFuture[_]] = None
+  }
+
+  /** Estimates the bytes a query holds while running from the row groups it reads.
+   *  Capped at the budget so any single query can run.
+   */
+  def estimateBytes(rgCount: Int): Long = {
+    math.min(rgCount.toLong * config.rowGroupBytes, config.maxQueryMemory)
+  }
+
+  /** Queues a query to run once it may, without waiting for it.
+   *  The callbacks run on the thread which admitted the query, the caller's
+   *  or one releasing an admission, or on the timer thread, so they must
+   *  not block.  An admission whose callback throws is released.
+   *
+   * @param tableName table the query reads
+   * @param bytes estimated memory of the query
+   * @param priority larger values run first
+   * @param onAdmitted called with the admission once the query may run
+   * @param onRejected called if the query waited longer than queueTimeoutMs
+   * @throws QflockAdmissionException if the queue is full.
+   */
+  def admit(tableName: String, bytes: Long, priority: Int = 0)
+           (onAdmitted: QflockAdmission => Unit,
+            onRejected: QflockAdmissionException => Unit): Unit = {
+    if (!tableLimits.contains(tableName)) {
+      throw new NoSuchElementException(s"unknown table $tableName")
+    }
+    val admitted = withLock {
+      if (waiting.size >= config.maxQueuedQueries) {
+        throw new QflockAdmissionException(
+          s"admission queue full ($running running, ${waiting.size} waiting)",
+          config.retryAfterSeconds)
+      }
+      val waiter = new Waiter(tableName, bytes, priority, sequence, onAdmitted, onRejected)
+      sequence += 1
+      waiting += waiter
+      val admitted = schedule()
+      if (!admitted.contains(waiter)) {
+        waiter.timeout = Some(timer.schedule(new Runnable {
+          override def run(): Unit = expire(waiter)
+        }, config.queueTimeoutMs, TimeUnit.MILLISECONDS))
+      }
+      admitted
+    }
+    admitted.foreach(start)
+  }
+
+  /** Rejects a query which is still waiting once its timeout passed.
+   */
+  private def expire(waiter: Waiter): Unit = {
+    var expired = false
+    val admitted = withLock {
+      expired = waiting.contains(waiter)
+      if (expired) {
+        waiting -= waiter
+        // It may have held back the queries behind it.
+        schedule()
+      } else {
+        Seq.empty
+      }
+    }
+    if (expired) {
+      waiter.onRejected(new QflockAdmissionException(
+        s"timed out waiting for admission to ${waiter.tableName}", config.retryAfterSeconds))
+    }
+    admitted.foreach(start)
+  }
+
+  /** Hands the admission to a query admitted by schedule().
+   */
+  private def start(waiter: Waiter): Unit = {
+    logger.debug(s"admitted query on ${waiter.tableName} bytes: ${waiter.bytes} " +
+                 s"priority: ${waiter.priority}")
+    val admission = new QflockAdmission {
+      private var released = false
+      override def release(): Unit = {
+        val admitted = withLock {
+          if (!released) {
+            released = true
+            running -= 1
+            runningBytes -= waiter.bytes
+            runningPerTable(waiter.tableName) -= 1
+            schedule()
+          } else {
+            Seq.empty
+          }
+        }
+        admitted.foreach(start)
+      }
+    }
+    try {
+      waiter.onAdmitted(admission)
+    } catch {
+      case ex: Exception =>
+        logger.warn(s"failed to start query on ${waiter.tableName}: $ex")
+        admission.release()
+    }
+  }
+
+  /** Admits waiting queries in order while they fit.  Called with the lock held.
+   * @return the queries admitted, whose callbacks are called once the lock is released.
+   */
+  private def schedule(): Seq[Waiter] = {
+    val admitted = mutable.ArrayBuffer[Waiter]()
+    val blocked = waiting.iterator.find(w => {
+      if (runningPerTable(w.tableName) >= tableLimits(w.tableName)) {
+        false
+      } else if (running >= config.maxQueries ||
+                 runningBytes + w.bytes > config.maxQueryMemory) {
+        true
+      } else {
+        running += 1
+        runningBytes += w.bytes
+        runningPerTable(w.tableName) += 1
+        w.timeout.foreach(_.cancel(false))
+        admitted += w
+        false
+      }
+    })
+    waiting --= admitted
+    blocked.foreach(w => logger.trace(s"query on ${w.tableName} waiting for resources"))
+    admitted
+  }
+
+  private def withLock[T](body: => T): T = {
+    lock.lock()
+    try body finally lock.unlock()
+  }
+
+  def queued: Int = withLock(waiting.size)
+}
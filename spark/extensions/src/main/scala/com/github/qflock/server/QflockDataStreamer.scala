@@ -17,6 +17,9 @@
 package com.github.qflock.server
 
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.locks.ReentrantLock
+
+import org.slf4j.LoggerFactory
 
 
 /** Is a thread which represents a streamer of data.
@@ -26,22 +29,72 @@ import java.util.concurrent.ArrayBlockingQueue
  *
  */
 class QflockDataStreamer extends java.lang.Thread {
+  private val logger = LoggerFactory.getLogger(getClass)
   val queue: ArrayBlockingQueue[QflockDataStreamItem] =
     new ArrayBlockingQueue[QflockDataStreamItem](16)
+  // Items enqueued and not yet processed and freed, including the one
+  // being processed, which is no longer in the queue.
+  private var outstanding = 0
+  private val lock = new ReentrantLock
+  private val idle = lock.newCondition
+  @volatile private var error: Option[Throwable] = None
 
   def enqueue(item: QflockDataStreamItem): Unit = {
 //    logger.trace(s"item enqueued ${item.toString}")
+    lock.lock()
+    try outstanding += 1 finally lock.unlock()
     queue.put(item)
   }
   // Check if any streams are still in process of sending data.
-  def streamsOutstanding: Boolean = queue.size() > 0
-  def reset(): Unit = bytesStreamed = 0
+  def streamsOutstanding: Boolean = {
+    lock.lock()
+    try outstanding > 0 finally lock.unlock()
+  }
+
+  /** Waits until all items enqueued so far have been streamed.
+   * @return the first error hit while streaming, if any.
+   */
+  def awaitIdle(): Option[Throwable] = {
+    lock.lock()
+    try {
+      while (outstanding > 0) {
+        idle.await()
+      }
+    } finally {
+      lock.unlock()
+    }
+    error
+  }
+  def reset(): Unit = {
+    bytesStreamed = 0
+    error = None
+  }
   var bytesStreamed: Long = 0
   override def run(): Unit = {
     while (true) {
       val item = queue.take()
-      item.process
-      item.free()
+      try {
+        // Once streaming failed, for example because the client went away,
+        // the rest of the request's items are dropped.
+        if (error.isEmpty) {
+          item.process
+        }
+      } catch {
+        case ex: Exception =>
+          logger.warn(s"error streaming $item: $ex")
+          error = Some(ex)
+      } finally {
+        item.free()
+        lock.lock()
+        try {
+          outstanding -= 1
+          if (outstanding == 0) {
+            idle.signalAll()
+          }
+        } finally {
+          lock.unlock()
+        }
+      }
     }
   }
 }
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.{SelectionKey, SocketChannel}
+import java.nio.charset.StandardCharsets
+import java.util
+import java.util.Locale
+import java.util.concurrent.locks.ReentrantLock
+
+import org.slf4j.LoggerFactory
+
+/** One client connection of a QflockHttpServer.
+ *  Reads and writes happen on the io thread which owns the connection.
+ *  A request is handed to the server once its body has arrived, and no
+ *  more is read until its response is complete.  A pipelined request which
+ *  already arrived is then dispatched without waiting for more data.  Response data is queued
+ *  by the query threads; enqueue blocks while more than maxQueuedBytes
+ *  are waiting, so a slow reader holds back only its own writers.
+ *  Data queued on the io thread itself does not wait, since that thread
+ *  is the one which drains it.
+ *
+ * @param channel the client socket
+ * @param loop the io thread owning the connection
+ * @param server the server to dispatch requests to
+ * @param config server settings
+ */
+class QflockHttpConnection(channel: SocketChannel,
+                           loop: QflockHttpServer#IoLoop,
+                           server: QflockHttpServer,
+                           config: QflockServerConfig) {
+  import QflockHttpConnection._
+  private val logger = LoggerFactory.getLogger(getClass)
+  private[server] var key: SelectionKey = _
+  private var readBuffer = ByteBuffer.allocate(initialReadBytes)
+  private var pending: Option[(String, String, Map[String, String], Int, Int)] = None
+  // Set while a request is being handled.
+  private var busy = false
+  private val lock = new ReentrantLock
+  private val drained = lock.newCondition
+  private val writeQueue = new util.ArrayDeque[ByteBuffer]
+  private var queuedBytes: Long = 0
+  private var closeWhenDrained = false
+  @volatile private var closed = false
+
+  override def toString: String = {
+    try channel.getRemoteAddress.toString catch { case _: IOException => "closed" }
+  }
+
+  /** Queues buffers to be written in order.
+   *  Blocks while the connection has too much data waiting, unless called
+   *  on the io thread, which is the one to drain it.
+   */
+  def enqueue(buffers: Array[ByteBuffer]): Unit = {
+    val wait = !(Thread.currentThread eq loop)
+    lock.lock()
+    try {
+      while (wait && queuedBytes > config.maxQueuedBytes && !closed) {
+        drained.await()
+      }
+      if (closed) {
+        throw new IOException(s"connection $this closed")
+      }
+      buffers.foreach(b => {
+        writeQueue.add(b)
+        queuedBytes += b.remaining
+      })
+    } finally {
+      lock.unlock()
+    }
+    loop.update(this)
+  }
+
+  /** Runs a task on the io thread of the connection.
+   */
+  def execute(task: Runnable): Unit = {
+    loop.execute(task)
+  }
+
+  /** Runs a task on a query thread of the server.
+   */
+  def executeQuery(task: Runnable): Unit = {
+    server.executeQuery(task)
+  }
+
+  /** Called once the whole response was queued.
+   * @param keepAlive true to read the next request after this one
+   * @param abort true to drop the connection without sending queued data
+   */
+  def responseComplete(keepAlive: Boolean, abort: Boolean = false): Unit = {
+    lock.lock()
+    try {
+      if (abort) {
+        writeQueue.clear()
+        queuedBytes = 0
+      }
+      closeWhenDrained = !keepAlive
+      busy = false
+    } finally {
+      lock.unlock()
+    }
+    loop.update(this)
+  }
+
+  /** Sets the operations of interest to the state of the connection.
+   *  Runs on the io thread.
+   */
+  private[server] def updateInterest(): Unit = {
+    if (closed || !key.isValid) {
+      return
+    }
+    var ready = false
+    lock.lock()
+    try {
+      if (writeQueue.isEmpty && closeWhenDrained && !busy) {
+        close()
+      } else {
+        val read = if (busy || closeWhenDrained) 0 else SelectionKey.OP_READ
+        val write = if (writeQueue.isEmpty) 0 else SelectionKey.OP_WRITE
+        key.interestOps(read | write)
+        ready = read != 0
+      }
+    } finally {
+      lock.unlock()
+    }
+    // The next request may have arrived along with the last one.
+    if (ready && readBuffer.position() > 0) {
+      processRequest()
+    }
+  }
+
+  /** Writes as much queued data as the socket accepts.  Runs on the io thread.
+   */
+  private[server] def onWritable(): Unit = {
+    lock.lock()
+    try {
+      while (!writeQueue.isEmpty) {
+        val buffers = new Array[ByteBuffer](math.min(writeQueue.size, maxGatherBuffers))
+        val queued = writeQueue.iterator
+        for (i <- buffers.indices) {
+          buffers(i) = queued.next
+        }
+        val written = channel.write(buffers)
+        queuedBytes -= written
+        while (!writeQueue.isEmpty && !writeQueue.peek.hasRemaining) {
+          writeQueue.poll()
+        }
+        if (queuedBytes <= config.maxQueuedBytes / 2) {
+          drained.signalAll()
+        }
+        if (written == 0) {
+          // The socket buffer is full, wait to be writable again.
+          return
+        }
+      }
+    } finally {
+      lock.unlock()
+    }
+    updateInterest()
+  }
+
+  /** Reads what arrived and dispatches a request once it is complete.
+   *  Runs on the io thread.
+   */
+  private[server] def onReadable(): Unit = {
+    if (!readBuffer.hasRemaining) {
+      if (readBuffer.capacity >= maxRequestBytes) {
+        reject(413)
+        return
+      }
+      val larger = ByteBuffer.allocate(readBuffer.capacity * 2)
+      readBuffer.flip()
+      larger.put(readBuffer)
+      readBuffer = larger
+    }
+    if (channel.read(readBuffer) < 0) {
+      close()
+      return
+    }
+    processRequest()
+  }
+
+  /** Dispatches the request in the read buffer once it is complete.
+   *  Runs on the io thread.
+   */
+  private def processRequest(): Unit = {
+    if (pending.isEmpty) {
+      pending = parseHeaders()
+    }
+    pending.foreach(p => {
+      val (method, uri, headers, bodyStart, bodyLength) = p
+      if (bodyStart + bodyLength > maxRequestBytes) {
+        reject(413)
+      } else if (readBuffer.position() >= bodyStart + bodyLength) {
+        val body = util.Arrays.copyOfRange(readBuffer.array(), bodyStart, bodyStart + bodyLength)
+        // Keep anything after the body for the next request.
+        readBuffer.flip()
+        readBuffer.position(bodyStart + bodyLength)
+        readBuffer.compact()
+        pending = None
+        busy = true
+        key.interestOps(key.interestOps & ~SelectionKey.OP_READ)
+        server.dispatch(this, QflockHttpRequest(method, uri, headers, body))
+      }
+    })
+  }
+
+  private def parseHeaders(): Option[(String, String, Map[String, String], Int, Int)] = {
+    val data = readBuffer.array()
+    val end = indexOfHeaderEnd(data, readBuffer.position())
+    if (end < 0) {
+      return None
+    }
+    val lines = new String(data, 0, end, StandardCharsets.ISO_8859_1).split("\r\n")
+    val requestLine = lines(0).split(" ")
+    if (requestLine.length < 3) {
+      reject(400)
+      return None
+    }
+    val headers = lines.drop(1).flatMap(l => {
+      val colon = l.indexOf(':')
+      if (colon > 0) {
+        Some(l.substring(0, colon).trim.toLowerCase(Locale.ROOT) -> l.substring(colon + 1).trim)
+      } else {
+        None
+      }
+    }).toMap
+    try {
+      val length = headers.get("content-length").map(_.toInt).getOrElse(0)
+      Some((requestLine(0), requestLine(1), headers, end + 4, length))
+    } catch {
+      case _: NumberFormatException =>
+        reject(400)
+        None
+    }
+  }
+
+  private def indexOfHeaderEnd(data: Array[Byte], limit: Int): Int = {
+    var i = 0
+    while (i + 3 < limit) {
+      if (data(i) == '\r' && data(i + 1) == '\n' && data(i + 2) == '\r' && data(i + 3) == '\n') {
+        return i
+      }
+      i += 1
+    }
+    -1
+  }
+
+  /** Answers a request which can not be handled and closes the connection.
+   */
+  private def reject(status: Int): Unit = {
+    logger.warn(s"rejecting request from $this with status $status")
+    busy = true
+    key.interestOps(key.interestOps & ~SelectionKey.OP_READ)
+    new QflockHttpResponse(this, config.chunkBytes, keepAlive = false)
+      .send(status, Array.emptyByteArray)
+  }
+
+  def close(): Unit = {
+    closed = true
+    lock.lock()
+    try {
+      writeQueue.clear()
+      queuedBytes = 0
+      drained.signalAll()
+    } finally {
+      lock.unlock()
+    }
+    if (key != null) {
+      key.cancel()
+    }
+    try {
+      channel.close()
+    } catch {
+      case ex: IOException => logger.debug(s"error closing connection: $ex")
+    }
+  }
+}
+
+object QflockHttpConnection {
+  private val initialReadBytes = 8 * 1024
+  private val maxRequestBytes = 16 * 1024 * 1024
+  private val maxGatherBuffers = 64
+}
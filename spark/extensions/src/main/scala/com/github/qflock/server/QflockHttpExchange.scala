@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.io.{IOException, OutputStream}
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.Locale
+
+import scala.collection.mutable
+
+import org.slf4j.LoggerFactory
+
+/** Handles the requests of a QflockHttpServer.
+ *  Called on the io thread of the connection, so it must not block.  Work
+ *  which may block continues on a query thread with runOnQueryThread.
+ */
+trait QflockHttpHandler {
+  def handle(request: QflockHttpRequest, response: QflockHttpResponse): Unit
+}
+
+/** A request read in full by the server.
+ *
+ * @param method request method such as POST
+ * @param uri request target
+ * @param headers header values, keyed by the lower case header name
+ * @param body the request body
+ */
+case class QflockHttpRequest(method: String,
+                             uri: String,
+                             headers: Map[String, String],
+                             body: Array[Byte]) {
+  def header(name: String): Option[String] = headers.get(name.toLowerCase(Locale.ROOT))
+  def keepAlive: Boolean = !header("connection").exists(_.equalsIgnoreCase("close"))
+}
+
+object QflockHttpResponse {
+  val reasons: Map[Int, String] = Map(
+    200 -> "OK",
+    400 -> "Bad Request",
+    404 -> "Not Found",
+    405 -> "Method Not Allowed",
+    413 -> "Payload Too Large",
+    500 -> "Internal Server Error",
+    503 -> "Service Unavailable")
+  private val crlf = "\r\n".getBytes(StandardCharsets.US_ASCII)
+  private val lastChunk = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)
+}
+
+/** The response to a request, sent either whole with send() or streamed
+ *  as chunks through the stream returned by sendHeaders().
+ *  Data is queued on the connection and written by its io thread, so a
+ *  slow reader only blocks the writer once maxQueuedBytes are waiting.
+ */
+class QflockHttpResponse(connection: QflockHttpConnection,
+                         chunkBytes: Int,
+                         keepAlive: Boolean) {
+  import QflockHttpResponse._
+  private val logger = LoggerFactory.getLogger(getClass)
+  val headers: mutable.LinkedHashMap[String, String] = mutable.LinkedHashMap()
+  private var sentHeaders = false
+  private var closed = false
+  private var body: Option[ChunkedStream] = None
+  def headersSent: Boolean = sentHeaders
+
+  private def statusLine(status: Int, extra: Seq[(String, String)]): ByteBuffer = {
+    val sb = new StringBuilder
+    sb.append(s"HTTP/1.1 $status ${reasons.getOrElse(status, "Unknown")}\r\n")
+    (headers.toSeq ++ extra).foreach(h => sb.append(s"${h._1}: ${h._2}\r\n"))
+    if (!keepAlive) sb.append("Connection: close\r\n")
+    sb.append("\r\n")
+    ByteBuffer.wrap(sb.toString.getBytes(StandardCharsets.ISO_8859_1))
+  }
+
+  /** Sends a complete response with a content length.
+   */
+  def send(status: Int, body: Array[Byte]): Unit = {
+    if (sentHeaders) {
+      throw new IllegalStateException("response headers already sent")
+    }
+    sentHeaders = true
+    closed = true
+    connection.enqueue(Array(
+      statusLine(status, Seq("Content-Length" -> body.length.toString)),
+      ByteBuffer.wrap(body)))
+    connection.responseComplete(keepAlive)
+  }
+
+  /** Sends the headers of a chunked response.
+   * @return the stream to write the body into.  Closing it ends the response.
+   */
+  def sendHeaders(status: Int): OutputStream = {
+    if (sentHeaders) {
+      throw new IllegalStateException("response headers already sent")
+    }
+    sentHeaders = true
+    connection.enqueue(Array(statusLine(status, Seq("Transfer-Encoding" -> "chunked"))))
+    body = Some(new ChunkedStream)
+    body.get
+  }
+
+  /** Queues a buffer as a chunk of the body without copying it.
+   *  The buffer's contents must not change until it was sent.
+   */
+  def sendChunk(data: ByteBuffer): Unit = {
+    if (body.isEmpty) {
+      throw new IllegalStateException("response headers not sent")
+    }
+    body.get.write(data)
+  }
+
+  /** Ends the response, completing it if the body was not closed yet.
+   */
+  def close(): Unit = {
+    if (!closed) {
+      if (!sentHeaders) {
+        send(200, Array.emptyByteArray)
+      } else {
+        body.foreach(_.flush())
+        closed = true
+        connection.enqueue(Array(ByteBuffer.wrap(lastChunk)))
+        connection.responseComplete(keepAlive)
+      }
+    }
+  }
+
+  /** Continues handling the request on the io thread of the connection.
+   *  Data is queued there without waiting for the client to read it,
+   *  so the task must not block.  A task which fails calls fail().
+   */
+  def runOnIoThread(task: => Unit): Unit = {
+    connection.execute(guard(task))
+  }
+
+  /** Continues handling the request on a query thread of the server,
+   *  which may block while it streams the response.
+   *  A task which fails calls fail().
+   */
+  def runOnQueryThread(task: => Unit): Unit = {
+    connection.executeQuery(guard(task))
+  }
+
+  private def guard(task: => Unit): Runnable = new Runnable {
+    override def run(): Unit = {
+      try {
+        task
+      } catch {
+        case ex: Exception => fail(ex)
+      }
+    }
+  }
+
+  /** Answers the request with 500 after handling it failed, or drops the
+   *  connection if part of the response was already sent.
+   */
+  def fail(ex: Exception): Unit = {
+    logger.error(s"error handling request from $connection: $ex")
+    if (!sentHeaders) {
+      try {
+        send(500, Option(ex.getMessage).getOrElse("").getBytes(StandardCharsets.UTF_8))
+      } catch {
+        case sendEx: IOException =>
+          logger.debug(s"failed to send error to $connection: $sendEx")
+          abort()
+      }
+    } else if (!closed) {
+      abort()
+    }
+  }
+
+  /** Drops the connection without completing the response,
+   *  so the client sees the stream fail rather than end.
+   */
+  def abort(): Unit = {
+    closed = true
+    connection.responseComplete(keepAlive = false, abort = true)
+  }
+
+  /** Collects writes into chunks of chunkBytes.  Each chunk is queued as its
+   *  size line, data and trailing CRLF, which the io thread sends with one
+   *  gathering write.
+   */
+  private class ChunkedStream extends OutputStream {
+    private var buffer = ByteBuffer.allocate(chunkBytes)
+
+    override def write(b: Int): Unit = {
+      if (closed) {
+        throw new IOException("response is closed")
+      }
+      if (!buffer.hasRemaining) {
+        flush()
+      }
+      buffer.put(b.toByte)
+    }
+
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+      if (closed) {
+        throw new IOException("response is closed")
+      }
+      if (len > buffer.remaining) {
+        flush()
+      }
+      if (len >= chunkBytes) {
+        // Large writes become a chunk of their own without going
+        // through the chunk buffer.
+        queueChunk(ByteBuffer.wrap(java.util.Arrays.copyOfRange(b, off, off + len)))
+      } else {
+        buffer.put(b, off, len)
+      }
+    }
+
+    def write(data: ByteBuffer): Unit = {
+      if (closed) {
+        throw new IOException("response is closed")
+      }
+      // An empty chunk would end the body.
+      if (data.hasRemaining) {
+        flush()
+        queueChunk(data)
+      }
+    }
+
+    override def flush(): Unit = {
+      if (buffer.position() > 0) {
+        buffer.flip()
+        queueChunk(buffer)
+        buffer = ByteBuffer.allocate(chunkBytes)
+      }
+    }
+
+    private def queueChunk(data: ByteBuffer): Unit = {
+      val size = Integer.toHexString(data.remaining) + "\r\n"
+      connection.enqueue(Array(
+        ByteBuffer.wrap(size.getBytes(StandardCharsets.US_ASCII)),
+        data,
+        ByteBuffer.wrap(crlf)))
+    }
+
+    override def close(): Unit = {
+      if (!closed) {
+        flush()
+        QflockHttpResponse.this.close()
+      }
+    }
+  }
+}
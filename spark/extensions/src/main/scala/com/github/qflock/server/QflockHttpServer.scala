@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.channels.{SelectionKey, Selector, ServerSocketChannel, SocketChannel}
+import java.util.concurrent.{ConcurrentLinkedQueue, LinkedBlockingQueue, ThreadFactory,
+  ThreadPoolExecutor, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.JavaConverters._
+
+import org.slf4j.LoggerFactory
+
+/** A non-blocking HTTP/1.1 server for streaming query results.
+ *  An acceptor thread hands new connections to a set of io threads, which
+ *  do all socket reads and writes with selectors.  Complete requests are
+ *  handed to the handler on the io thread, which queues them for admission
+ *  and answers those it can not queue with a 503 and Retry-After.  Admitted
+ *  queries run on a separate pool of query threads, which stream the
+ *  response by queueing chunks on the connection.  A thread is only held
+ *  while a query produces data, never while it waits to be admitted or a
+ *  slow client drains it, beyond the maxQueuedBytes each connection may buffer.
+ *
+ * @param config server settings
+ * @param handler handles each request
+ */
+class QflockHttpServer(config: QflockServerConfig, handler: QflockHttpHandler) {
+  private val logger = LoggerFactory.getLogger(getClass)
+  private val serverChannel = ServerSocketChannel.open()
+  private val acceptSelector = Selector.open()
+  private val ioLoops = Array.tabulate(config.ioThreads)(i => new IoLoop(i))
+  private val nextLoop = new AtomicInteger(0)
+  // Admission bounds the queries handed to the pool, so its queue only
+  // holds work when queryThreads is set below maxQueries.
+  private val queryExecutor = new ThreadPoolExecutor(
+    config.queryThreads, config.queryThreads, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue[Runnable], threadFactory("qflock-query"))
+  @volatile private var running = false
+
+  private def threadFactory(name: String): ThreadFactory = new ThreadFactory {
+    private val count = new AtomicInteger(0)
+    override def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, s"$name-${count.getAndIncrement}")
+      t.setDaemon(true)
+      t
+    }
+  }
+
+  def start(): Unit = {
+    // Intentionally leave out the address to cause binding to all local adapters.
+    serverChannel.bind(new InetSocketAddress(config.port), config.backlog)
+    serverChannel.configureBlocking(false)
+    serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT)
+    running = true
+    ioLoops.foreach(_.start())
+    val acceptor = new Thread(new Runnable {
+      override def run(): Unit = accept()
+    }, "qflock-accept")
+    acceptor.start()
+  }
+
+  def stop(): Unit = {
+    running = false
+    acceptSelector.wakeup()
+    ioLoops.foreach(_.selector.wakeup())
+    queryExecutor.shutdown()
+  }
+
+  private def accept(): Unit = {
+    while (running) {
+      acceptSelector.select()
+      acceptSelector.selectedKeys.clear()
+      var channel = serverChannel.accept()
+      while (channel != null) {
+        channel.configureBlocking(false)
+        channel.socket.setTcpNoDelay(true)
+        ioLoops(nextLoop.getAndIncrement % ioLoops.length).register(channel)
+        channel = serverChannel.accept()
+      }
+    }
+    serverChannel.close()
+  }
+
+  /** Hands a complete request to the handler, on the io thread of its connection.
+   *  The handler completes the response, possibly later on another thread.
+   */
+  private[server] def dispatch(connection: QflockHttpConnection,
+                               request: QflockHttpRequest): Unit = {
+    val response = new QflockHttpResponse(connection, config.chunkBytes, request.keepAlive)
+    try {
+      handler.handle(request, response)
+    } catch {
+      case ex: Exception => response.fail(ex)
+    }
+  }
+
+  /** Runs a task on a query thread.
+   */
+  private[server] def executeQuery(task: Runnable): Unit = {
+    queryExecutor.execute(task)
+  }
+
+  /** An io thread, which owns the connections registered with its selector.
+   */
+  class IoLoop(index: Int) extends Thread(s"qflock-io-$index") {
+    setDaemon(true)
+    private[server] val selector = Selector.open()
+    private val registrations = new ConcurrentLinkedQueue[SocketChannel]
+    private val updates = new ConcurrentLinkedQueue[QflockHttpConnection]
+    private val tasks = new ConcurrentLinkedQueue[Runnable]
+
+    def register(channel: SocketChannel): Unit = {
+      registrations.add(channel)
+      selector.wakeup()
+    }
+
+    /** Asks the io thread to update the interest of a connection,
+     *  after data was queued or a response completed.
+     */
+    def update(connection: QflockHttpConnection): Unit = {
+      if (Thread.currentThread eq this) {
+        connection.updateInterest()
+      } else {
+        updates.add(connection)
+        selector.wakeup()
+      }
+    }
+
+    /** Runs a task on the io thread, such as sending a response once a
+     *  request waited for admission or for an identical request.
+     */
+    def execute(task: Runnable): Unit = {
+      tasks.add(task)
+      selector.wakeup()
+    }
+
+    override def run(): Unit = {
+      while (running) {
+        selector.select()
+        var channel = registrations.poll()
+        while (channel != null) {
+          val connection = new QflockHttpConnection(channel, this, QflockHttpServer.this, config)
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection)
+          channel = registrations.poll()
+        }
+        var connection = updates.poll()
+        while (connection != null) {
+          connection.updateInterest()
+          connection = updates.poll()
+        }
+        var task = tasks.poll()
+        while (task != null) {
+          try {
+            task.run()
+          } catch {
+            case ex: Exception => logger.error(s"error in task on $getName: $ex")
+          }
+          task = tasks.poll()
+        }
+        val selected = selector.selectedKeys
+        selected.asScala.foreach(key => {
+          val connection = key.attachment.asInstanceOf[QflockHttpConnection]
+          try {
+            if (key.isValid && key.isWritable) {
+              connection.onWritable()
+            }
+            if (key.isValid && key.isReadable) {
+              connection.onReadable()
+            }
+          } catch {
+            case ex: IOException =>
+              logger.debug(s"closing $connection: $ex")
+              connection.close()
+          }
+        })
+        selected.clear()
+      }
+      selector.keys.asScala.foreach(k =>
+        k.attachment.asInstanceOf[QflockHttpConnection].close())
+      selector.close()
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.util
+
+import org.slf4j.LoggerFactory
+
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan
+import org.apache.spark.sql.execution.QueryExecution
+
+/** A query planned once and kept for later requests.
+ *
+ * @param analyzed the analyzed plan
+ * @param optimized the optimized plan
+ */
+case class QflockCachedPlan(analyzed: LogicalPlan, optimized: LogicalPlan) {
+  /** Returns an execution of the plan which skips analysis and optimization,
+   *  so only physical planning runs again.
+   */
+  def execution(spark: SparkSession): QueryExecution = {
+    val cached = this
+    new QueryExecution(spark, analyzed) {
+      override lazy val analyzed: LogicalPlan = cached.analyzed
+      override lazy val optimizedPlan: LogicalPlan = cached.optimized
+    }
+  }
+}
+
+/** Keeps the optimized plans of recent queries.
+ *  Every partition of a client query sends the same SQL for a different
+ *  range of row groups.  The range is not part of the plan, since the
+ *  qflockDs scan reads it from its view's request slot when the plan is
+ *  executed, so one plan per view serves all partitions.
+ *
+ * @param maxPlans number of plans to keep, least recently used go first
+ */
+class QflockPlanCache(maxPlans: Int) {
+  private val logger = LoggerFactory.getLogger(getClass)
+  private var hits: Long = 0
+  private var misses: Long = 0
+  private val plans = new util.LinkedHashMap[(String, String, Int, String), QflockCachedPlan](
+      16, 0.75f, true) {
+    override def removeEldestEntry(
+        eldest: util.Map.Entry[(String, String, Int, String), QflockCachedPlan]): Boolean = {
+      size > maxPlans
+    }
+  }
+
+  /** Returns the plan of the query, planning it with the given function on a miss.
+   * @param query the query as sent by the client, before it names a view
+   * @param tableName table the query reads
+   * @param viewId request slot of the view the query was bound to
+   * @param schema schema of the table
+   * @param plan plans the query
+   */
+  def getOrPlan(query: String, tableName: String, viewId: Int, schema: String)
+               (plan: => QflockCachedPlan): QflockCachedPlan = {
+    val key = (QflockPlanCache.normalize(query), tableName, viewId, schema)
+    val cached = synchronized {
+      val p = Option(plans.get(key))
+      if (p.isDefined) hits += 1 else misses += 1
+      p
+    }
+    cached.getOrElse {
+      // Queries on the same view are not run concurrently, so there is no
+      // need to guard against planning the same key twice.
+      val newPlan = plan
+      synchronized {
+        plans.put(key, newPlan)
+        logger.debug(s"plan cache hits: $hits misses: $misses size: ${plans.size}")
+      }
+      newPlan
+    }
+  }
+
+  def clear(): Unit = synchronized {
+    plans.clear()
+  }
+}
+
+object QflockPlanCache {
+  /** Collapses whitespace outside of quotes, so queries differing only
+   *  in layout share a plan.
+   */
+  def normalize(query: String): String = {
+    val sb = new StringBuilder(query.length)
+    var quote: Option[Char] = None
+    var space = false
+    query.trim.foreach(c => {
+      if (quote.isEmpty && c.isWhitespace) {
+        space = true
+      } else {
+        if (space) {
+          sb.append(' ')
+          space = false
+        }
+        if (quote.contains(c)) {
+          quote = None
+        } else if (quote.isEmpty && (c == '\'' || c == '"' || c == '`')) {
+          quote = Some(c)
+        }
+        sb.append(c)
+      }
+    })
+    sb.toString
+  }
+}
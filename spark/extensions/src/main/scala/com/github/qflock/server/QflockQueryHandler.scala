@@ -16,12 +16,15 @@
  */
 package com.github.qflock.server
 
-import java.io.{EOFException, OutputStream, PrintWriter, StringWriter}
+import java.io.{EOFException, IOException, OutputStream, PrintWriter, StringWriter}
+import java.util
 
-import com.github.qflock.extensions.remote.QflockOutputStreamDescriptor
+import com.github.qflock.extensions.remote.{QflockOutputStreamDescriptor, QflockRemoteDataWriter}
 import org.slf4j.LoggerFactory
 
+import org.apache.spark.TaskContext
 import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.InternalRow
 
 /** Handles queries for the server.
  *  This object has a set of views it instantiates at init time.
@@ -36,8 +39,47 @@ object QflockQueryHandler {
   private val dbName = "tpcds"
   private val tables = QflockServerTable.getAllTables
   private val tablesMap = tables.map(t => t.getTableName -> t).toMap
-  def init(): Unit = {
+  private var admission: Option[QflockAdmissionController] = None
+  private var planCache = new QflockPlanCache(0)
+  private var resultCache: Option[QflockResultCache] = None
+  private var modificationTimeTtlMs = 0L
+  def init(config: QflockServerConfig): Unit = {
     tables.foreach(t => t.createViews())
+    modificationTimeTtlMs = config.modificationTimeTtlMs
+    planCache = new QflockPlanCache(config.planCacheSize)
+    resultCache = Some(new QflockResultCache(config))
+    // Each running query holds one output stream slot and one view of its table.
+    QflockOutputStreamDescriptor.initMap(config.maxQueries)
+    admission = Some(new QflockAdmissionController(
+      tables.map(t => t.getTableName -> t.getMaxViews.toInt).toMap, config))
+  }
+
+  /** Queues a query on the table to run once it may, without waiting for it.
+   * @param tableName table the query reads
+   * @param count number of row groups the query reads
+   * @param priority larger values run first
+   * @param onAdmitted called with the admission, to be released once the query is done.
+   * @param onRejected called if the query waited too long.
+   * @throws QflockAdmissionException if the server is too busy to queue it.
+   */
+  def admit(tableName: String, count: Int, priority: Int)
+           (onAdmitted: QflockAdmission => Unit,
+            onRejected: QflockAdmissionException => Unit): Unit = {
+    admission.get.admit(tableName, admission.get.estimateBytes(count), priority)(
+      onAdmitted, onRejected)
+  }
+
+  def getResultCache: QflockResultCache = resultCache.get
+
+  /** Returns the key of a request's result in the result cache.
+   * @param query String representation of the query.
+   * @param tableName name of the table to partition on
+   * @param offset row group offset to start at
+   * @param count number of row groups.
+   */
+  def resultKey(query: String, tableName: String, offset: Int, count: Int): QflockResultKey = {
+    QflockResultKey(QflockPlanCache.normalize(query), tableName, offset, count,
+                    tablesMap(tableName).getModificationTime(modificationTimeTtlMs))
   }
   private def getSparkSession: SparkSession = {
     logger.info(s"create new session")
@@ -88,45 +130,64 @@ object QflockQueryHandler {
                      s" ${tableName}_$readRequestId")
     logger.info(s"Start readRequestId: $readRequestId writeRequestId: $writeRequestId " +
       s"query: $newQuery")
+    var streamError: Option[Throwable] = None
+    var bytesStreamed: Long = 0
     try {
-      val df = spark.sql(newQuery)
-      df // .repartition(1)
-        // .orderBy((df.columns.toSeq map { x => col(x) }).toArray: _*)
-        .write.format("qflockRemote")
-        .mode("overwrite")
-        .option("outStreamRequestId", writeRequestId)
-        .option("rgoffset", offset)
-        .option("rgcount", count)
-        .option("query", newQuery)
-        .save()
-    } catch {
-      case _: EOFException =>
-      // logger.warn(ex.toString)
-      case ex: Exception =>
-        logger.error(s"error during query: $newQuery " +
-                     s"rgoffset $offset rgcount $count" +
-                     s"outStreamRequestId $writeRequestId")
-        val sw = new StringWriter
-        ex.printStackTrace(new PrintWriter(sw))
-        logger.error(sw.toString)
-        throw ex
-    }
-    var pollCount = 0
-    // We do not want to allow the request to return until
-    // after we have finished streaming back the data.
-    // If there is a stream still outstanding, then we will
-    // wait for it to complete.
-    while (desc.streamsOutstanding) {
-      logger.debug(s"Streams still outstanding $pollCount")
-      Thread.sleep(10)
-      pollCount += 1
-    }
-    if (pollCount > 0) {
-      logger.info(s"streams outstanding pollCount $pollCount")
+      try {
+        // Only the first request for a query on this view plans it, the
+        // rest reuse the optimized plan and just plan the physical scan,
+        // which picks up the row group range from the view's request slot.
+        val plan = planCache.getOrPlan(query, tableName, readRequestId,
+                                       tablesMap(tableName).getSchema) {
+          val qe = spark.sql(newQuery).queryExecution
+          QflockCachedPlan(qe.analyzed, qe.optimizedPlan)
+        }
+        val qe = plan.execution(spark)
+        val schema = qe.analyzed.schema
+        // These are the options the qflockRemote data source passes its writers.
+        val options = new util.HashMap[String, String]()
+        options.put("outstreamrequestid", writeRequestId.toString)
+        options.put("rgoffset", offset.toString)
+        options.put("rgcount", count.toString)
+        options.put("query", newQuery)
+        // A plan with no partitions runs no writers, so nothing would write
+        // the header.  Run a single empty partition in its place.
+        val rdd = if (qe.toRdd.partitions.isEmpty) {
+          spark.sparkContext.parallelize(Seq.empty[InternalRow], 1)
+        } else {
+          qe.toRdd
+        }
+        spark.sparkContext.runJob(rdd, (context: TaskContext, rows: Iterator[InternalRow]) =>
+          QflockRemoteDataWriter.writeAll(context, schema, options, rows))
+      } catch {
+        case _: EOFException =>
+        // logger.warn(ex.toString)
+        case ex: Exception =>
+          logger.error(s"error during query: $newQuery " +
+                       s"rgoffset $offset rgcount $count" +
+                       s"outStreamRequestId $writeRequestId")
+          val sw = new StringWriter
+          ex.printStackTrace(new PrintWriter(sw))
+          logger.error(sw.toString)
+          throw ex
+      }
+    } finally {
+      // We do not want to allow the request to return until
+      // after we have finished streaming back the data,
+      // nor free the request while its writers may still use it.
+      val waitStart = System.nanoTime()
+      streamError = desc.awaitStreams()
+      val waitMs = (System.nanoTime() - waitStart) / 1000000
+      if (waitMs > 0) {
+        logger.info(s"waited ${waitMs}ms for streams outstanding")
+      }
+      bytesStreamed = desc.bytesStreamed
+      QflockOutputStreamDescriptor.get.freeRequest(writeRequestId)
+      tablesMap(tableName).descriptor.freeRequest(readRequestId)
     }
-    val bytesStreamed = desc.bytesStreamed
-    QflockOutputStreamDescriptor.get.freeRequest(writeRequestId)
-    tablesMap(tableName).descriptor.freeRequest(readRequestId)
+    // A failed stream means the client is missing data, so the response
+    // must not be ended normally.
+    streamError.foreach(ex => throw new IOException(s"streaming failed: $newQuery", ex))
     logger.info(s"Done readRequestId: $readRequestId " +
                 s"writeRequestId: $writeRequestId " +
                 s"bytesStreamed: $bytesStreamed")
@@ -16,38 +16,30 @@
  */
 package com.github.qflock.server
 
-import java.net.InetSocketAddress
-import java.util.concurrent.Executors
-
-import com.sun.net.httpserver.HttpServer
 import org.apache.log4j.{ConsoleAppender, Level, Logger, PatternLayout}
 import org.slf4j.LoggerFactory
 
+import org.apache.spark.SparkConf
+
 
 /** This is the remote server object which is used to connect a
  *   remote spark instance to other external Spark clusters.
  *
  * @param hostName Name of the host to export/bind to
- * @param port port to bind to
+ * @param config port and thread pool settings of the server
  */
-class QflockRemoteServer(hostName: String, port: Integer) {
+class QflockRemoteServer(hostName: String, config: QflockServerConfig) {
   private val logger = LoggerFactory.getLogger(getClass)
-  // Intentionally leave out the address to cause binding to all local adapters.
-  private val server = HttpServer.create(new InetSocketAddress(port), 16)
-  private val threadPoolExecutor = Executors.newFixedThreadPool(10)
+  private val server = new QflockHttpServer(config, new QflockServerHttpHandler())
   def start(): Unit = {
-    QflockQueryHandler.init()
+    QflockQueryHandler.init(config)
     Logger.getRootLogger.setLevel(Level.INFO)
-    server.createContext("/query", new QflockServerHttpHandler())
-    server.setExecutor(threadPoolExecutor)
     server.start()
-    logger.info(s" Server started on port $port")
+    logger.info(s" Server started on port ${config.port} with ${config.ioThreads} io threads " +
+                s"and ${config.queryThreads} query threads")
   }
 }
 
-/** This is a standalone server to be run to connect a
- *  remote spark instance with other spark instances.
- */
 object QflockRemoteServer {
   def setupLogger(): Unit = {
     val console = new ConsoleAppender()
@@ -58,7 +50,7 @@ object QflockRemoteServer {
     Logger.getRootLogger.addAppender(console)
   }
   def main(args: scala.Array[String]): Unit = {
-    val server = new QflockRemoteServer("qflock-spark-dc2", 9860)
+    val server = new QflockRemoteServer("qflock-spark-dc2", QflockServerConfig(new SparkConf()))
     server.start()
   }
 }
@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.io.{File, IOException, OutputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.slf4j.LoggerFactory
+
+/** Identifies the result of a request.
+ *  The modification time of the table's files is part of the key, so a
+ *  table which is rewritten no longer matches its old results.
+ *
+ * @param query the query, normalized as for the plan cache
+ * @param tableName table the query reads
+ * @param offset first row group read
+ * @param count number of row groups read
+ * @param modificationTime latest modification time of the table's files
+ */
+case class QflockResultKey(query: String,
+                           tableName: String,
+                           offset: Int,
+                           count: Int,
+                           modificationTime: Long)
+
+/** A request which is running the query of a key.  Identical requests
+ *  arriving meanwhile wait for it rather than running the query again.
+ */
+class QflockResultFlight(val key: QflockResultKey) {
+  private var finished = false
+  private var result: Option[Array[ByteBuffer]] = None
+  private val followers = ArrayBuffer[Option[Array[ByteBuffer]] => Unit]()
+
+  private[server] def finish(segments: Option[Array[ByteBuffer]]): Unit = {
+    val waiting = synchronized {
+      finished = true
+      result = segments
+      val waiting = followers.toList
+      followers.clear()
+      waiting
+    }
+    waiting.foreach(f => f(segments.map(_.map(_.duplicate()))))
+  }
+
+  /** Calls back once the running request is done, without waiting for it.
+   *  The callback runs on the thread which completes the request, or at once
+   *  if it is already done, so it must not block.
+   * @param follower called with the body it sent, or None if it failed
+   *                 or was too large to keep.
+   */
+  def onFinish(follower: Option[Array[ByteBuffer]] => Unit): Unit = {
+    val done = synchronized {
+      if (!finished) {
+        followers += follower
+      }
+      finished
+    }
+    if (done) {
+      follower(result.map(_.map(_.duplicate())))
+    }
+  }
+}
+
+/** Passes the body of a response through to the client and keeps a copy
+ *  of it in direct buffers, so it does not count against the heap.
+ *  Writes come from one thread at a time, since the writer tasks' frames
+ *  and the header are written under the lock of the response's record.
+ *
+ * @param out the response stream
+ * @param segmentBytes largest buffer to copy into
+ * @param maxBytes the copy is dropped once the body is larger than this
+ */
+class QflockResultCapture(out: OutputStream, segmentBytes: Int, maxBytes: Long)
+    extends OutputStream {
+  private val minSegmentBytes = 64 * 1024
+  private val segments = ArrayBuffer[ByteBuffer]()
+  private var bytes: Long = 0
+  private var capturing = true
+  private var failed = false
+
+  override def write(b: Int): Unit = {
+    write(Array(b.toByte), 0, 1)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    try {
+      out.write(b, off, len)
+    } catch {
+      case ex: IOException =>
+        failed = true
+        throw ex
+    }
+    if (capturing) {
+      append(b, off, len)
+    }
+  }
+
+  private def append(b: Array[Byte], off: Int, len: Int): Unit = {
+    if (bytes + len > maxBytes) {
+      capturing = false
+      segments.clear()
+      return
+    }
+    var pos = off
+    var left = len
+    while (left > 0) {
+      if (segments.isEmpty || !segments.last.hasRemaining) {
+        // Segments grow with the body, so small bodies stay small.
+        val size = math.min(segmentBytes.toLong, math.max(minSegmentBytes.toLong, bytes))
+        segments += ByteBuffer.allocateDirect(size.toInt)
+      }
+      val n = math.min(left, segments.last.remaining)
+      segments.last.put(b, pos, n)
+      pos += n
+      left -= n
+    }
+    bytes += len
+  }
+
+  override def flush(): Unit = {
+    try {
+      out.flush()
+    } catch {
+      case ex: IOException =>
+        failed = true
+        throw ex
+    }
+  }
+
+  /** Marks the body as incomplete, so it is not kept.
+   */
+  def fail(): Unit = {
+    failed = true
+  }
+
+  /** @return the body written, or None if it is incomplete or too large.
+   */
+  def result: Option[Array[ByteBuffer]] = {
+    if (!capturing || failed) {
+      None
+    } else {
+      if (segments.nonEmpty && segments.last.hasRemaining) {
+        // Trims the last segment, which may be up to half empty.
+        val last = segments.last
+        last.flip()
+        segments(segments.length - 1) = ByteBuffer.allocateDirect(last.remaining).put(last)
+      }
+      Some(segments.map(s => {
+        val d = s.duplicate()
+        d.flip()
+        d
+      }).toArray)
+    }
+  }
+}
+
+/** Keeps the bodies of recent responses, so a request identical to an
+ *  earlier one is answered without running a spark job.
+ *  The body is the stream of already compressed frames the writers sent,
+ *  kept in off-heap buffers up to resultCacheMemory bytes.  The least
+ *  recently used bodies beyond that move to files in resultCacheDir, up to
+ *  resultCacheDisk bytes, after which the least recently used are deleted.
+ *  Only one request runs the query of a key at a time.  Requests for a key
+ *  which is running are called back once it is done and send its body.
+ *  Off-heap buffers count against -XX:MaxDirectMemorySize.
+ *
+ * @param config sizes and location of the cache
+ */
+class QflockResultCache(config: QflockServerConfig) {
+  import QflockResultCache._
+  private val logger = LoggerFactory.getLogger(getClass)
+  private val segmentBytes = 1024 * 1024
+  val enabled: Boolean = config.resultCacheMemory > 0 || config.resultCacheDisk > 0
+  private val maxEntryBytes = math.min(config.resultCacheMaxEntry, Int.MaxValue.toLong)
+  private val dir = new File(config.resultCacheDir)
+  private val memory = new util.LinkedHashMap[QflockResultKey, Array[ByteBuffer]](16, 0.75f, true)
+  private val disk = new util.LinkedHashMap[QflockResultKey, (File, Long)](16, 0.75f, true)
+  private val inFlight = new util.HashMap[QflockResultKey, QflockResultFlight]
+  private var memoryBytes: Long = 0
+  private var diskBytes: Long = 0
+  private var fileId: Long = 0
+  private var memoryHits: Long = 0
+  private var diskHits: Long = 0
+  private var joins: Long = 0
+  private var misses: Long = 0
+  if (config.resultCacheDisk > 0) {
+    // Files left by an earlier run are not indexed, so they would never be used.
+    dir.mkdirs()
+    Option(dir.listFiles()).foreach(_.filter(_.getName.endsWith(fileSuffix)).foreach(_.delete()))
+  }
+
+  private def size(segments: Array[ByteBuffer]): Long = segments.map(_.capacity.toLong).sum
+
+  /** Finds the body of a key.
+   * @return Hit with buffers holding the body, Follow with the request
+   *         running the key, Lead if the caller is to run it and complete
+   *         the flight, or Bypass if the cache is disabled.
+   */
+  def lookup(key: QflockResultKey): Lookup = {
+    if (!enabled) {
+      Bypass
+    } else {
+      synchronized {
+        val segments = memory.get(key)
+        val file = disk.get(key)
+        val mapped = if (segments == null && file != null) mapFile(key, file) else None
+        val flight = inFlight.get(key)
+        if (segments != null) {
+          memoryHits += 1
+          Hit(segments.map(_.duplicate()))
+        } else if (mapped.isDefined) {
+          diskHits += 1
+          Hit(mapped.get)
+        } else if (flight != null) {
+          joins += 1
+          Follow(flight)
+        } else {
+          misses += 1
+          val newFlight = new QflockResultFlight(key)
+          inFlight.put(key, newFlight)
+          Lead(newFlight)
+        }
+      }
+    }
+  }
+
+  /** Returns a stream which writes through to out and keeps the body.
+   */
+  def capture(out: OutputStream): QflockResultCapture = {
+    new QflockResultCapture(out, segmentBytes, maxEntryBytes)
+  }
+
+  /** Ends a flight, keeping the body if it was captured in full, and
+   *  hands the body to the requests which waited for it.
+   * @param flight the flight returned by lookup
+   * @param capture the stream the body was written through, if any
+   */
+  def complete(flight: QflockResultFlight, capture: Option[QflockResultCapture]): Unit = {
+    val segments = capture.flatMap(_.result)
+    val victims = synchronized {
+      inFlight.remove(flight.key)
+      segments.map(s => {
+        memory.put(flight.key, s)
+        memoryBytes += size(s)
+        evictMemory()
+      }).getOrElse(Seq.empty)
+    }
+    flight.finish(segments)
+    // Writing the files is left outside of the lock, meanwhile the
+    // bodies are not found and are run again.
+    victims.foreach(v => demote(v._1, v._2))
+    logger.debug(s"result cache memoryHits: $memoryHits diskHits: $diskHits joins: $joins " +
+                 s"misses: $misses memoryBytes: $memoryBytes diskBytes: $diskBytes")
+  }
+
+  private def evictMemory(): Seq[(QflockResultKey, Array[ByteBuffer])] = {
+    val victims = ArrayBuffer[(QflockResultKey, Array[ByteBuffer])]()
+    val it = memory.entrySet.iterator
+    while (memoryBytes > config.resultCacheMemory && it.hasNext) {
+      val entry = it.next()
+      it.remove()
+      memoryBytes -= size(entry.getValue)
+      victims += (entry.getKey -> entry.getValue)
+    }
+    victims
+  }
+
+  private def demote(key: QflockResultKey, segments: Array[ByteBuffer]): Unit = {
+    val bytes = segments.map(_.remaining.toLong).sum
+    if (bytes > config.resultCacheDisk) {
+      return
+    }
+    val file = synchronized {
+      fileId += 1
+      new File(dir, s"$fileId$fileSuffix")
+    }
+    try {
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.CREATE,
+                                     StandardOpenOption.WRITE,
+                                     StandardOpenOption.TRUNCATE_EXISTING)
+      try {
+        segments.foreach(s => {
+          val d = s.duplicate()
+          while (d.hasRemaining) {
+            channel.write(d)
+          }
+        })
+      } finally {
+        channel.close()
+      }
+    } catch {
+      case ex: IOException =>
+        logger.warn(s"failed to write result cache file $file: $ex")
+        file.delete()
+        return
+    }
+    synchronized {
+      if (memory.containsKey(key) || disk.containsKey(key)) {
+        file.delete()
+      } else {
+        disk.put(key, (file, bytes))
+        diskBytes += bytes
+        val it = disk.entrySet.iterator
+        while (diskBytes > config.resultCacheDisk && it.hasNext) {
+          val entry = it.next()
+          it.remove()
+          diskBytes -= entry.getValue._2
+          // Bodies being sent from the file keep their mapping.
+          entry.getValue._1.delete()
+        }
+      }
+    }
+  }
+
+  /** Maps a file of the cache, dropping it from the cache if it can not be read.
+   * @return the body in slices of segmentBytes.
+   */
+  private def mapFile(key: QflockResultKey, file: (File, Long)): Option[Array[ByteBuffer]] = {
+    try {
+      val channel = FileChannel.open(file._1.toPath, StandardOpenOption.READ)
+      try {
+        // The mapping stays valid after the channel is closed.
+        val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, file._2)
+        Some(Range(0, file._2.toInt, segmentBytes).map(off => {
+          val d = mapped.duplicate()
+          d.position(off)
+          d.limit(math.min(off.toLong + segmentBytes, file._2).toInt)
+          d.slice()
+        }).toArray)
+      } finally {
+        channel.close()
+      }
+    } catch {
+      case ex: IOException =>
+        logger.warn(s"failed to read result cache file ${file._1}: $ex")
+        disk.remove(key)
+        diskBytes -= file._2
+        file._1.delete()
+        None
+    }
+  }
+}
+
+object QflockResultCache {
+  private val fileSuffix = ".result"
+
+  sealed trait Lookup
+  /** The body was found. */
+  case class Hit(buffers: Array[ByteBuffer]) extends Lookup
+  /** Another request is running the key. */
+  case class Follow(flight: QflockResultFlight) extends Lookup
+  /** The caller runs the key and completes the flight. */
+  case class Lead(flight: QflockResultFlight) extends Lookup
+  /** The cache is disabled. */
+  case object Bypass extends Lookup
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import org.apache.spark.SparkConf
+
+/** Settings of the remote server, taken from the spark configuration
+ *  so they can be given with --conf on spark-submit.
+ *
+ * @param port port to listen on
+ * @param backlog length of the queue of connections not yet accepted
+ * @param ioThreads threads which accept, read and write connections
+ * @param queryThreads threads which run admitted queries
+ * @param chunkBytes size of the chunks of a response
+ * @param maxQueuedBytes bytes of a response which may wait to be sent
+ *                       before the writer blocks
+ * @param maxQueries queries which may run at once
+ * @param maxQueuedQueries queries which may wait to run before requests are
+ *                         turned away with 503
+ * @param maxQueryMemory memory budget of the running queries
+ * @param rowGroupBytes estimated memory per row group read by a query
+ * @param queueTimeoutMs longest a query waits to run
+ * @param retryAfterSeconds Retry-After sent with a 503
+ * @param planCacheSize optimized query plans to keep
+ * @param resultCacheMemory off-heap bytes of results to keep, see QflockResultCache
+ * @param resultCacheDisk bytes of results to keep on local disk
+ * @param resultCacheDir directory of the results kept on disk
+ * @param resultCacheMaxEntry largest result to keep
+ * @param modificationTimeTtlMs how long the modification time of a table,
+ *                              which keys its cached results, is reused
+ */
+case class QflockServerConfig(port: Int,
+                              backlog: Int,
+                              ioThreads: Int,
+                              queryThreads: Int,
+                              chunkBytes: Int,
+                              maxQueuedBytes: Long,
+                              maxQueries: Int,
+                              maxQueuedQueries: Int,
+                              maxQueryMemory: Long,
+                              rowGroupBytes: Long,
+                              queueTimeoutMs: Long,
+                              retryAfterSeconds: Int,
+                              planCacheSize: Int,
+                              resultCacheMemory: Long,
+                              resultCacheDisk: Long,
+                              resultCacheDir: String,
+                              resultCacheMaxEntry: Long,
+                              modificationTimeTtlMs: Long)
+
+object QflockServerConfig {
+  val prefix = "spark.qflock.server."
+  def apply(conf: SparkConf): QflockServerConfig = {
+    val maxQueries = conf.getInt(prefix + "maxQueries", 16)
+    val maxQueuedQueries = conf.getInt(prefix + "maxQueuedQueries", 64)
+    QflockServerConfig(
+      port = conf.getInt(prefix + "port", 9860),
+      backlog = conf.getInt(prefix + "backlog", 128),
+      ioThreads = conf.getInt(prefix + "ioThreads", 2),
+      // Queued queries hold no thread, so by default there is one
+      // for each query which may be running.
+      queryThreads = conf.getInt(prefix + "queryThreads", maxQueries),
+      chunkBytes = conf.getSizeAsBytes(prefix + "chunkSize", "128k").toInt,
+      maxQueuedBytes = conf.getSizeAsBytes(prefix + "maxQueuedBytes", "16m"),
+      maxQueries = maxQueries,
+      maxQueuedQueries = maxQueuedQueries,
+      maxQueryMemory = conf.getSizeAsBytes(prefix + "maxQueryMemory", "4g"),
+      // Matches the parquet.block.size the tables are written with.
+      rowGroupBytes = conf.getSizeAsBytes(prefix + "rowGroupSize", "16m"),
+      queueTimeoutMs = conf.getTimeAsMs(prefix + "queueTimeout", "120s"),
+      retryAfterSeconds = conf.getInt(prefix + "retryAfter", 1),
+      planCacheSize = conf.getInt(prefix + "planCacheSize", 256),
+      resultCacheMemory = conf.getSizeAsBytes(prefix + "resultCacheMemory", "1g"),
+      resultCacheDisk = conf.getSizeAsBytes(prefix + "resultCacheDisk", "16g"),
+      resultCacheDir = conf.get(prefix + "resultCacheDir", "/tmp/qflock-result-cache"),
+      resultCacheMaxEntry = conf.getSizeAsBytes(prefix + "resultCacheMaxEntry", "256m"),
+      modificationTimeTtlMs = conf.getTimeAsMs(prefix + "modificationTimeTtl", "5s"))
+  }
+}
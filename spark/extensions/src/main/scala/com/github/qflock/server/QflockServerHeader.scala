@@ -38,6 +38,8 @@ object QflockServerHeader {
   val bytes: Int = 4 * 4
   val stringLength: Int = 120
   val magic: Int = 42424242
+  // Starts a response whose writer tasks are multiplexed as frames.
+  val muxMagic: Int = 42424243
   val batchSize: Int = 4 * 1024 * 1024
   val streamTerminator: Array[Byte] = {
     val byteBuffer = ByteBuffer.allocate(4 * 4)
@@ -46,6 +48,19 @@ object QflockServerHeader {
     }
     byteBuffer.array()
   }
+  /** This encodes the layout of the frame header of a multiplexed response.
+   *  Each writer task of a query sends its batches as a sub stream of
+   *  frames with its own id, starting at 1.  The last frame of a batch is
+   *  flagged, so the client can decode each batch as soon as it is complete.
+   *  The stream terminator ends the response, since its stream id is 0.
+   */
+  object Frame {
+    val streamId: Int = 0 * 4
+    val flags: Int = 1 * 4
+    val length: Int = 2 * 4
+    val bytes: Int = 3 * 4
+    val endOfBatch: Int = 1
+  }
   /** Type of object encoded in binary.
    *  This follows the encoding values used by the NDP server.
    */
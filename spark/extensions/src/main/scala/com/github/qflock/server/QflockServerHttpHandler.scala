@@ -17,8 +17,8 @@
 package com.github.qflock.server
 
 import java.io._
+import java.nio.ByteBuffer
 
-import com.sun.net.httpserver.{HttpExchange, HttpHandler}
 import org.json4s._
 import org.json4s.jackson.JsonMethods._
 import org.slf4j.LoggerFactory
@@ -27,43 +27,145 @@ import org.slf4j.LoggerFactory
 /** Is a handler of http requests for the Qflock Remote Server.
  *
  */
-class QflockServerHttpHandler extends HttpHandler {
+class QflockServerHttpHandler extends QflockHttpHandler {
   private val logger = LoggerFactory.getLogger(getClass)
-  def handle(httpExchange: HttpExchange): Unit = {
-    if ("POST".equals(httpExchange.getRequestMethod)) {
-      handlePostRequest(httpExchange)
+  def handle(request: QflockHttpRequest, response: QflockHttpResponse): Unit = {
+    if ("POST".equals(request.method)) {
+      handlePostRequest(request, response)
+    } else {
+      response.send(405, Array.emptyByteArray)
     }
   }
 
-  def handleGetRequest(httpExchange: HttpExchange): String = {
-    httpExchange.getRequestURI
-      .toString
-      .split("\\?")(1)
-      .split("=")(1)
+  def getRequestJson(body: Array[Byte]): Map[String, Any] = {
+    val request = new String(body, "utf-8").trim
+    logger.info(request)
+    parse(request).values.asInstanceOf[Map[String, Any]]
   }
-  def getRequestJson(stream: InputStream): Map[String, Any] = {
-    val br = new BufferedReader(new InputStreamReader(stream, "utf-8"))
-    val response = new StringBuilder
+
+  def handlePostRequest(request: QflockHttpRequest, response: QflockHttpResponse): String = {
+    val json = getRequestJson(request.body)
+    val cache = QflockQueryHandler.getResultCache
+    rejecting(json, response) {
+      val key = QflockQueryHandler.resultKey(json("query").toString,
+                                             json("tableName").toString,
+                                             json("rgOffset").toString.toInt,
+                                             json("rgCount").toString.toInt)
+      cache.lookup(key) match {
+        case QflockResultCache.Hit(buffers) =>
+          sendCached(buffers, response)
+        case QflockResultCache.Follow(flight) =>
+          // An identical request is running, its body is sent once it is done,
+          // unless it failed or was too large to keep.  No thread waits meanwhile.
+          flight.onFinish(body => response.runOnIoThread {
+            body match {
+              case Some(buffers) => sendCached(buffers, response)
+              case None => rejecting(json, response)(admitQuery(json, None, response))
+            }
+          })
+        case QflockResultCache.Lead(flight) =>
+          admitQuery(json, Some(flight), response)
+        case QflockResultCache.Bypass =>
+          admitQuery(json, None, response)
+      }
+    }
+    ""
+  }
+
+  /** Answers requests which can not be queued or name an unknown table.
+   */
+  private def rejecting(json: Map[String, Any], response: QflockHttpResponse)
+                       (body: => Unit): Unit = {
+    try {
+      body
+    } catch {
+      case ex: QflockAdmissionException if !response.headersSent =>
+        reject(json, ex, response)
+      case ex: NoSuchElementException if !response.headersSent =>
+        response.send(404, String.valueOf(ex.getMessage).getBytes("utf-8"))
+    }
+  }
+
+  private def reject(json: Map[String, Any],
+                     ex: QflockAdmissionException,
+                     response: QflockHttpResponse): Unit = {
+    // The client is expected to retry, so this is not an error.
+    logger.info(s"rejected query on ${json("tableName")}: ${ex.getMessage}")
+    response.headers("Retry-After") = ex.retryAfterSeconds.toString
+    response.send(503, ex.getMessage.getBytes("utf-8"))
+  }
+
+  /** Queues the query, which runs on a query thread once admitted.
+   *  A query which waited too long is answered with 503 like one which
+   *  could not be queued.
+   * @param flight set if the body is to be kept in the result cache
+   */
+  private def admitQuery(json: Map[String, Any],
+                         flight: Option[QflockResultFlight],
+                         response: QflockHttpResponse): Unit = {
+    // Requests following the flight run the query themselves.
+    def abandon(): Unit = flight.foreach(f => QflockQueryHandler.getResultCache.complete(f, None))
+    val priority = json.get("priority").map(_.toString.toInt).getOrElse(0)
+    try {
+      QflockQueryHandler.admit(json("tableName").toString,
+                               json("rgCount").toString.toInt, priority)(
+        admission => {
+          try {
+            response.runOnQueryThread(runQuery(json, flight, admission, response))
+          } catch {
+            case ex: Exception =>
+              abandon()
+              throw ex
+          }
+        },
+        ex => {
+          abandon()
+          response.runOnIoThread(reject(json, ex, response))
+        })
+    } catch {
+      case ex: Exception =>
+        abandon()
+        throw ex
+    }
+  }
+
+  /** Runs an admitted query and releases its admission.
+   * @param flight set if the body is to be kept in the result cache
+   */
+  private def runQuery(json: Map[String, Any],
+                       flight: Option[QflockResultFlight],
+                       admission: QflockAdmission,
+                       response: QflockHttpResponse): Unit = {
+    var capture: Option[QflockResultCapture] = None
     try {
-      var responseLine = br.readLine
-      while (responseLine != null) {
-        response.append(responseLine.trim)
-        responseLine = br.readLine
+      try {
+        response.headers("Content-Type") = "application/octet-stream"
+        // The response is sent in chunked format, the stream is buffered
+        // into chunks which the server's io threads write to the client.
+        val responseStream = response.sendHeaders(200)
+        capture = flight.map(_ => QflockQueryHandler.getResultCache.capture(responseStream))
+        val outputStream = new DataOutputStream(capture.getOrElse(responseStream))
+        try {
+          streamQuery(json, outputStream)
+        } catch {
+          case ex: Throwable =>
+            capture.foreach(_.fail())
+            throw ex
+        }
+        // The terminator is not part of the body kept.
+        responseStream.write(QflockServerHeader.streamTerminator)
+        // We close the stream to indicate that we are done.
+        // This is a part of the api for chunked requests.
+        responseStream.close()
+      } finally {
+        admission.release()
       }
-      logger.info(response.toString)
-    } finally if (br != null) br.close()
-    parse(response.toString).values.asInstanceOf[Map[String, Any]]
+    } finally {
+      flight.foreach(f => QflockQueryHandler.getResultCache.complete(f, capture))
+    }
   }
 
-  def handlePostRequest(httpExchange: HttpExchange): String = {
-    val requestStream = httpExchange.getRequestBody
-    val json = getRequestJson(requestStream)
-    httpExchange.getResponseHeaders.set("Content-Type", "application/octet-stream")
-    val outputStream = new DataOutputStream(
-      new BufferedOutputStream(httpExchange.getResponseBody, 128 * 1024))
-    // Set length to 0.  By convention this means that we will used chunked
-    // format instead of content-length.  Close will end the response.
-    httpExchange.sendResponseHeaders(200, 0)
+  private def streamQuery(json: Map[String, Any], outputStream: DataOutputStream): Unit = {
     // Note that we pass the outputSteam to the QflockQueryHandler
     // The handler will eventually pass this stream along to our write data source
     // which will stream the data back to the client in a separate thread/data streamer.
@@ -72,11 +174,15 @@ class QflockServerHttpHandler extends HttpHandler {
                                    json("rgOffset").toString.toInt,
                                    json("rgCount").toString.toInt,
                                    outputStream)
+  }
+
+  /** Sends a body from the result cache, without running the query.
+   */
+  private def sendCached(buffers: Array[ByteBuffer], response: QflockHttpResponse): Unit = {
+    response.headers("Content-Type") = "application/octet-stream"
+    val outputStream = response.sendHeaders(200)
+    buffers.foreach(response.sendChunk)
     outputStream.write(QflockServerHeader.streamTerminator)
-    outputStream.flush()
-    // We close the stream to indicate that we are done.
-    // This is a part of the api for chunked requests.
-    httpExchange.close()
-    ""
+    outputStream.close()
   }
 }
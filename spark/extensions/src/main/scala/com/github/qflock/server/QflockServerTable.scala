@@ -17,6 +17,7 @@
 package com.github.qflock.server
 
 import com.github.qflock.datasource.QflockTableDescriptor
+import org.apache.hadoop.fs.Path
 import org.apache.hadoop.hive.metastore.api.{FieldSchema, Table}
 import org.slf4j.LoggerFactory
 
@@ -34,6 +35,36 @@ class QflockServerTable(dbName: String, tableName: String, maxViews: Integer = 4
   private val spark = SparkSession.builder.getOrCreate
   private val table: Table = ExtHiveUtils.getTable(dbName, tableName)
   def getTableName: String = tableName
+  def getMaxViews: Int = maxViews
+
+  private val modificationTimeLock = new Object
+  private var modificationTime = 0L
+  private var modificationTimeListedAt = 0L
+
+  /** Returns the latest modification time of the table's directory and
+   *  files, which changes whenever the table is rewritten.
+   *  Listing the files is costly, so a time listed within the last ttlMs
+   *  is reused, and concurrent callers wait for a single listing.
+   * @param ttlMs how long a listed time is reused
+   */
+  def getModificationTime(ttlMs: Long): Long = modificationTimeLock.synchronized {
+    val now = System.currentTimeMillis()
+    if (modificationTimeListedAt == 0 || now - modificationTimeListedAt >= ttlMs) {
+      modificationTime = listModificationTime
+      modificationTimeListedAt = now
+    }
+    modificationTime
+  }
+  private def listModificationTime: Long = {
+    val path = new Path(table.getSd.getLocation)
+    val fs = path.getFileSystem(spark.sessionState.newHadoopConf())
+    var latest = fs.getFileStatus(path).getModificationTime
+    val files = fs.listFiles(path, true)
+    while (files.hasNext) {
+      latest = math.max(latest, files.next.getModificationTime)
+    }
+    latest
+  }
   private val schema = getSchema
   def getSchema: String = {
     def convert_col(dType: String): String = {
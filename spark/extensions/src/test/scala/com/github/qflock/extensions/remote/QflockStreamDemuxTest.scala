@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.extensions.remote
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream}
+
+import scala.collection.mutable
+import scala.util.Random
+
+import com.github.qflock.server.QflockServerHeader
+import org.scalatest.funsuite.AnyFunSuite
+
+class QflockStreamDemuxTest extends AnyFunSuite {
+
+  private def readAll(demux: QflockStreamDemux): Seq[Array[Byte]] = {
+    val batches = mutable.ArrayBuffer[Array[Byte]]()
+    var batch = demux.nextBatch()
+    while (batch.isDefined) {
+      val bytes = new Array[Byte](batch.get.available())
+      batch.get.readFully(bytes)
+      batches += bytes
+      batch = demux.nextBatch()
+    }
+    batches
+  }
+
+  test("batches of interleaved sub streams are returned whole, in the order they end") {
+    val out = new ByteArrayOutputStream
+    val record = new QflockOutputStreamRecord(None)
+    record.fill(out)
+    val random = new Random(1)
+    val streams = Array.fill(4)(record.openStream())
+    val pending = Array.fill(4)(new ByteArrayOutputStream)
+    val expected = mutable.ArrayBuffer[Array[Byte]]()
+    def endBatch(s: Int): Unit = {
+      streams(s).flush()
+      expected += pending(s).toByteArray
+      pending(s).reset()
+    }
+    // Writes both below and above the frame size, switching streams at each write.
+    (0 until 400).foreach(_ => {
+      val s = random.nextInt(streams.length)
+      val length = if (random.nextBoolean()) random.nextInt(100) else random.nextInt(200000)
+      val data = new Array[Byte](length)
+      random.nextBytes(data)
+      if (length == 1) {
+        streams(s).write(data(0))
+      } else {
+        streams(s).write(data, 0, length)
+      }
+      pending(s).write(data)
+      if (random.nextInt(3) == 0) {
+        endBatch(s)
+      }
+    })
+    streams.indices.foreach(endBatch)
+    streams.foreach(_.close())
+    out.write(QflockServerHeader.streamTerminator)
+    record.free()
+
+    val input = new DataInputStream(new ByteArrayInputStream(out.toByteArray))
+    val batches = readAll(new QflockStreamDemux(input))
+    assert(batches.length == expected.length)
+    batches.zip(expected).foreach(b => assert(b._1.sameElements(b._2)))
+    assert(input.read() == -1)
+  }
+
+  test("a response without batches is empty") {
+    val input = new DataInputStream(new ByteArrayInputStream(QflockServerHeader.streamTerminator))
+    assert(readAll(new QflockStreamDemux(input)).isEmpty)
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.net.{HttpURLConnection, ServerSocket, URL}
+import java.util.concurrent.{CompletableFuture, CountDownLatch, TimeUnit}
+import java.util.function.Supplier
+
+import scala.collection.mutable
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class QflockAdmissionControllerTest extends AnyFunSuite {
+
+  private def config(maxQueries: Int = 1,
+                     maxQueuedQueries: Int = 16,
+                     queueTimeoutMs: Long = 60000,
+                     port: Int = 0): QflockServerConfig = {
+    QflockServerConfig(port = port,
+                       backlog = 16,
+                       ioThreads = 1,
+                       queryThreads = maxQueries,
+                       chunkBytes = 64 * 1024,
+                       maxQueuedBytes = 1024 * 1024,
+                       maxQueries = maxQueries,
+                       maxQueuedQueries = maxQueuedQueries,
+                       maxQueryMemory = 1L << 30,
+                       rowGroupBytes = 1024 * 1024,
+                       queueTimeoutMs = queueTimeoutMs,
+                       retryAfterSeconds = 7,
+                       planCacheSize = 0,
+                       resultCacheMemory = 0,
+                       resultCacheDisk = 0,
+                       resultCacheDir = "",
+                       resultCacheMaxEntry = 0,
+                       modificationTimeTtlMs = 0)
+  }
+
+  /** Admits a query, recording its name and admission once it may run.
+   */
+  private def admit(controller: QflockAdmissionController,
+                    admitted: mutable.LinkedHashMap[String, QflockAdmission],
+                    name: String,
+                    tableName: String = "t",
+                    priority: Int = 0): Unit = {
+    controller.admit(tableName, 0, priority)(
+      admission => admitted.synchronized(admitted(name) = admission),
+      ex => fail(s"$name rejected: ${ex.getMessage}"))
+  }
+
+  test("waiting queries run by priority, then by arrival") {
+    val controller = new QflockAdmissionController(Map("t" -> 4), config())
+    val admitted = mutable.LinkedHashMap[String, QflockAdmission]()
+    admit(controller, admitted, "a")
+    admit(controller, admitted, "b")
+    admit(controller, admitted, "c", priority = 1)
+    admit(controller, admitted, "d", priority = 1)
+    assert(admitted.keys.toSeq == Seq("a"))
+    assert(controller.queued == 3)
+    Seq("a", "c", "d").foreach(name => admitted(name).release())
+    assert(admitted.keys.toSeq == Seq("a", "c", "d", "b"))
+    assert(controller.queued == 0)
+  }
+
+  test("a table at its limit does not hold back other tables") {
+    val controller = new QflockAdmissionController(Map("t1" -> 1, "t2" -> 1),
+                                                   config(maxQueries = 4))
+    val admitted = mutable.LinkedHashMap[String, QflockAdmission]()
+    admit(controller, admitted, "a", "t1")
+    admit(controller, admitted, "b", "t1")
+    admit(controller, admitted, "c", "t2")
+    assert(admitted.keys.toSeq == Seq("a", "c"))
+    admitted("a").release()
+    assert(admitted.keys.toSeq == Seq("a", "c", "b"))
+  }
+
+  test("a query waiting too long is rejected") {
+    val controller = new QflockAdmissionController(Map("t" -> 1),
+                                                   config(queueTimeoutMs = 50))
+    val admitted = mutable.LinkedHashMap[String, QflockAdmission]()
+    admit(controller, admitted, "a")
+    val rejected = new CountDownLatch(1)
+    var rejection: Option[QflockAdmissionException] = None
+    controller.admit("t", 0)(
+      _ => fail("b admitted"),
+      ex => {
+        rejection = Some(ex)
+        rejected.countDown()
+      })
+    assert(rejected.await(10, TimeUnit.SECONDS))
+    assert(rejection.get.getMessage.contains("timed out"))
+    assert(rejection.get.retryAfterSeconds == 7)
+    assert(controller.queued == 0)
+    admitted("a").release()
+  }
+
+  test("a query is rejected when the queue is full") {
+    val controller = new QflockAdmissionController(Map("t" -> 1),
+                                                   config(maxQueuedQueries = 1))
+    val admitted = mutable.LinkedHashMap[String, QflockAdmission]()
+    admit(controller, admitted, "a")
+    admit(controller, admitted, "b")
+    val ex = intercept[QflockAdmissionException](admit(controller, admitted, "c"))
+    assert(ex.retryAfterSeconds == 7)
+    assertThrows[NoSuchElementException](admit(controller, admitted, "d", "unknown"))
+  }
+
+  test("requests beyond the queue get 503 with Retry-After") {
+    val socket = new ServerSocket(0)
+    val port = socket.getLocalPort
+    socket.close()
+    val serverConfig = config(maxQueuedQueries = 1, port = port)
+    val controller = new QflockAdmissionController(Map("t" -> 1), serverConfig)
+    val admitted = mutable.ArrayBuffer[QflockAdmission]()
+    val server = new QflockHttpServer(serverConfig, new QflockHttpHandler {
+      override def handle(request: QflockHttpRequest, response: QflockHttpResponse): Unit = {
+        try {
+          controller.admit("t", 0)(
+            admission => response.runOnQueryThread {
+              admitted.synchronized(admitted += admission)
+              response.send(200, Array.emptyByteArray)
+            },
+            ex => response.runOnIoThread(response.send(500, Array.emptyByteArray)))
+        } catch {
+          case ex: QflockAdmissionException =>
+            response.headers("Retry-After") = ex.retryAfterSeconds.toString
+            response.send(503, Array.emptyByteArray)
+        }
+      }
+    })
+    server.start()
+    try {
+      def post(): HttpURLConnection = {
+        val connection = new URL(s"http://localhost:$port/query")
+          .openConnection.asInstanceOf[HttpURLConnection]
+        connection.setRequestMethod("POST")
+        connection.setDoOutput(true)
+        connection.getOutputStream.write("{}".getBytes("utf-8"))
+        connection
+      }
+      assert(post().getResponseCode == 200)
+      // Waits for admission holding no thread, which fills the queue.
+      val queued = CompletableFuture.supplyAsync(new Supplier[Int] {
+        override def get(): Int = post().getResponseCode
+      })
+      while (controller.queued == 0) {
+        Thread.sleep(10)
+      }
+      val rejected = post()
+      assert(rejected.getResponseCode == 503)
+      assert(rejected.getHeaderField("Retry-After") == "7")
+      admitted.synchronized(admitted.head).release()
+      assert(queued.get(10, TimeUnit.SECONDS) == 200)
+    } finally {
+      server.stop()
+    }
+  }
+}
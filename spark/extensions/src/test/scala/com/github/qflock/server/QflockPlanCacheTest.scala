@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import org.scalatest.funsuite.AnyFunSuite
+
+import org.apache.spark.sql.catalyst.plans.logical.OneRowRelation
+
+class QflockPlanCacheTest extends AnyFunSuite {
+
+  test("normalize collapses whitespace outside of quotes") {
+    assert(QflockPlanCache.normalize("  SELECT  a,\n\tb FROM t  ") == "SELECT a, b FROM t")
+    assert(QflockPlanCache.normalize("SELECT 'a  b', \"c\n d\" FROM `e  f`") ==
+           "SELECT 'a  b', \"c\n d\" FROM `e  f`")
+    assert(QflockPlanCache.normalize("WHERE x = 'it\"s  '  AND  y = 1") ==
+           "WHERE x = 'it\"s  ' AND y = 1")
+  }
+
+  test("getOrPlan plans each key once") {
+    val cache = new QflockPlanCache(8)
+    var planned = 0
+    def plan(): QflockCachedPlan = {
+      planned += 1
+      QflockCachedPlan(OneRowRelation(), OneRowRelation())
+    }
+    val first = cache.getOrPlan("SELECT a FROM t", "t", 0, "a:int")(plan())
+    assert(cache.getOrPlan("SELECT  a\nFROM t", "t", 0, "a:int")(plan()) eq first)
+    assert(planned == 1)
+    // Each view, table, schema and query has its own plan.
+    cache.getOrPlan("SELECT a FROM t", "t", 1, "a:int")(plan())
+    cache.getOrPlan("SELECT a FROM t", "u", 0, "a:int")(plan())
+    cache.getOrPlan("SELECT a FROM t", "t", 0, "a:bigint")(plan())
+    cache.getOrPlan("SELECT b FROM t", "t", 0, "a:int")(plan())
+    assert(planned == 5)
+    cache.clear()
+    cache.getOrPlan("SELECT a FROM t", "t", 0, "a:int")(plan())
+    assert(planned == 6)
+  }
+
+  test("getOrPlan drops the least recently used plans") {
+    val cache = new QflockPlanCache(2)
+    var planned = 0
+    def plan(): QflockCachedPlan = {
+      planned += 1
+      QflockCachedPlan(OneRowRelation(), OneRowRelation())
+    }
+    cache.getOrPlan("q1", "t", 0, "")(plan())
+    cache.getOrPlan("q2", "t", 0, "")(plan())
+    cache.getOrPlan("q1", "t", 0, "")(plan())
+    cache.getOrPlan("q3", "t", 0, "")(plan())
+    assert(planned == 3)
+    cache.getOrPlan("q1", "t", 0, "")(plan())
+    assert(planned == 3)
+    cache.getOrPlan("q2", "t", 0, "")(plan())
+    assert(planned == 4)
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.qflock.server
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.file.Files
+
+import org.scalatest.funsuite.AnyFunSuite
+
+import org.apache.spark.SparkConf
+
+class QflockResultCacheTest extends AnyFunSuite {
+
+  private def newCache(memory: Long, disk: Long, maxEntry: Long): QflockResultCache = {
+    val dir = Files.createTempDirectory("qflock-result-cache").toFile
+    dir.deleteOnExit()
+    new QflockResultCache(QflockServerConfig(new SparkConf()).copy(
+      resultCacheMemory = memory,
+      resultCacheDisk = disk,
+      resultCacheDir = dir.getPath,
+      resultCacheMaxEntry = maxEntry))
+  }
+
+  private def key(offset: Int): QflockResultKey = QflockResultKey("q", "t", offset, 1, 0L)
+
+  private def data(offset: Int, length: Int): Array[Byte] = {
+    Array.tabulate[Byte](length)(i => (i * 7 + offset).toByte)
+  }
+
+  private def body(buffers: Array[ByteBuffer]): Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    buffers.foreach(b => {
+      val d = b.duplicate()
+      val bytes = new Array[Byte](d.remaining)
+      d.get(bytes)
+      out.write(bytes)
+    })
+    out.toByteArray
+  }
+
+  /** Runs the key as the leader of its flight, writing the body in small pieces.
+   */
+  private def lead(cache: QflockResultCache, offset: Int, length: Int): Unit = {
+    cache.lookup(key(offset)) match {
+      case QflockResultCache.Lead(flight) =>
+        val out = new ByteArrayOutputStream
+        val capture = cache.capture(out)
+        val bytes = data(offset, length)
+        bytes.grouped(5000).foreach(b => capture.write(b, 0, b.length))
+        assert(out.toByteArray.sameElements(bytes))
+        cache.complete(flight, Some(capture))
+      case other => fail(s"expected Lead, got $other")
+    }
+  }
+
+  private def assertHit(cache: QflockResultCache, offset: Int, length: Int): Unit = {
+    cache.lookup(key(offset)) match {
+      case QflockResultCache.Hit(buffers) =>
+        assert(body(buffers).sameElements(data(offset, length)))
+      case other => fail(s"expected Hit for $offset, got $other")
+    }
+  }
+
+  test("a completed body is a hit") {
+    val cache = newCache(1L << 20, 0, 1L << 20)
+    lead(cache, 0, 100000)
+    assertHit(cache, 0, 100000)
+    assertHit(cache, 0, 100000)
+  }
+
+  test("requests for a running key follow it") {
+    val cache = newCache(1L << 20, 0, 1L << 20)
+    val QflockResultCache.Lead(flight) = cache.lookup(key(0))
+    val QflockResultCache.Follow(following) = cache.lookup(key(0))
+    assert(following eq flight)
+    var early: Option[Array[ByteBuffer]] = None
+    following.onFinish(b => early = b)
+    assert(early.isEmpty)
+    val capture = cache.capture(new ByteArrayOutputStream)
+    capture.write(data(0, 100), 0, 100)
+    cache.complete(flight, Some(capture))
+    assert(body(early.get).sameElements(data(0, 100)))
+    // Called at once when registered after the flight is done.
+    var late: Option[Array[ByteBuffer]] = None
+    following.onFinish(b => late = b)
+    assert(body(late.get).sameElements(data(0, 100)))
+  }
+
+  test("a failed body is not kept") {
+    val cache = newCache(1L << 20, 0, 1L << 20)
+    val QflockResultCache.Lead(flight) = cache.lookup(key(0))
+    var followed: Option[Option[Array[ByteBuffer]]] = None
+    flight.onFinish(b => followed = Some(b))
+    val capture = cache.capture(new ByteArrayOutputStream)
+    capture.write(data(0, 100), 0, 100)
+    capture.fail()
+    cache.complete(flight, Some(capture))
+    assert(followed == Some(None))
+    assert(cache.lookup(key(0)).isInstanceOf[QflockResultCache.Lead])
+  }
+
+  test("a body larger than resultCacheMaxEntry is not kept") {
+    val cache = newCache(8L << 20, 0, 1L << 20)
+    lead(cache, 0, 2 << 20)
+    assert(cache.lookup(key(0)).isInstanceOf[QflockResultCache.Lead])
+  }
+
+  test("bodies move to disk and the least recently used are dropped") {
+    val length = 1536 * 1024
+    val cache = newCache(3L << 20, 5L << 20, 4L << 20)
+    (0 until 6).foreach(i => lead(cache, i, length))
+    // Two bodies fit in memory and three on disk, so the oldest is gone.
+    assert(cache.lookup(key(0)).isInstanceOf[QflockResultCache.Lead])
+    (1 until 6).foreach(i => assertHit(cache, i, length))
+  }
+
+  test("a disabled cache is bypassed") {
+    val cache = newCache(0, 0, 1L << 20)
+    assert(!cache.enabled)
+    assert(cache.lookup(key(0)) == QflockResultCache.Bypass)
+  }
+}